@@ -0,0 +1,22 @@
+package net.cscott.sdr.bench;
+
+/**
+ * A single micro-benchmark run by the {@link Harness}.  The harness calls
+ * {@link #setUp()} once, then calls {@link #run()} repeatedly, first to
+ * warm up the JIT and then to measure time and allocation per operation.
+ * Whatever {@link #run()} returns is consumed by the harness, so that the
+ * JIT can not discard the benchmarked computation as dead code.
+ * @author C. Scott Ananian
+ */
+public abstract class Benchmark {
+    private final String name;
+    protected Benchmark(String name) { this.name = name; }
+    /** The name used to select this benchmark and to report its results. */
+    public final String name() { return name; }
+    /** Build any state the benchmark needs.  Not timed. */
+    public void setUp() throws Exception { }
+    /** Perform one benchmark operation. */
+    public abstract Object run() throws Exception;
+    @Override
+    public String toString() { return name; }
+}
@@ -0,0 +1,325 @@
+package net.cscott.sdr.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.cscott.sdr.PMSD;
+import net.cscott.sdr.calls.Breather;
+import net.cscott.sdr.calls.CallDB;
+import net.cscott.sdr.calls.DanceProgram;
+import net.cscott.sdr.calls.DanceState;
+import net.cscott.sdr.calls.Dancer;
+import net.cscott.sdr.calls.Evaluator;
+import net.cscott.sdr.calls.ExactRotation;
+import net.cscott.sdr.calls.Formation;
+import net.cscott.sdr.calls.FormationList;
+import net.cscott.sdr.calls.GeneralFormationMatcher;
+import net.cscott.sdr.calls.NoMatchException;
+import net.cscott.sdr.calls.Position;
+import net.cscott.sdr.calls.Program;
+import net.cscott.sdr.calls.Rotation;
+import net.cscott.sdr.calls.StandardDancer;
+import net.cscott.sdr.calls.TaggedFormation;
+import net.cscott.sdr.calls.grm.CompletionEngine;
+import net.cscott.sdr.util.Fraction;
+
+/**
+ * Benchmarks for the hot paths of the dance engine.  Small kernels
+ * (fraction arithmetic, dancer rotation) are measured in isolation; the
+ * formation matcher, breather, call parser and completion engine are
+ * measured on typical inputs; and the evaluator is measured end-to-end
+ * by replaying sequences from the PMSD test corpus.
+ * @author C. Scott Ananian
+ */
+public class DanceBenchmarks {
+    private DanceBenchmarks() { /* static methods only */ }
+
+    /** Return all the benchmarks, in the order they should be run. */
+    public static List<Benchmark> all() {
+        List<Benchmark> l = new ArrayList<Benchmark>();
+        l.add(new FractionAdd());
+        l.add(new FractionMultiply());
+        l.add(new FractionCompare());
+        l.add(new RotateAroundOrigin());
+        l.add(new Match("match.couple", FormationList.FACING_LINES,
+                        FormationList.COUPLE, true));
+        l.add(new Match("match.miniwave", FormationList.PARALLEL_RH_WAVES,
+                        FormationList.RH_MINIWAVE, false));
+        l.add(new Match("match.box", FormationList.PARALLEL_RH_WAVES,
+                        FormationList.RH_BOX, true));
+        l.add(new Match("match.diamond", FormationList.RH_TWIN_DIAMONDS,
+                        FormationList.RH_DIAMOND, false));
+        l.add(new Breathe());
+        for (Program p : Program.values())
+            l.add(new Parse(p));
+        l.add(new Complete("complete.square", Program.PLUS, "square th"));
+        l.add(new Complete("complete.concept", Program.C4, "left "));
+        l.add(new Replay("eval.basic-calls-1"));
+        l.add(new Replay("eval.a1-calls-1"));
+        l.add(new Replay("eval.alamo"));
+        l.add(new Replay("eval.c4-calls-1"));
+        return l;
+    }
+
+    /** Fraction addition and subtraction with unlike denominators. */
+    static class FractionAdd extends Benchmark {
+        private final Fraction[] fs = {
+            Fraction.valueOf(1, 3), Fraction.valueOf(-5, 8),
+            Fraction.valueOf(7, 12), Fraction.valueOf(11, 16),
+            Fraction.valueOf(-3, 32), Fraction.valueOf(9, 10),
+        };
+        FractionAdd() { super("fraction.add"); }
+        @Override
+        public Object run() {
+            Fraction sum = Fraction.ZERO;
+            for (int i=0; i<fs.length; i++)
+                sum = sum.add(fs[i]).subtract(fs[(i+1) % fs.length]);
+            return sum;
+        }
+    }
+    /** Fraction multiplication and division. */
+    static class FractionMultiply extends Benchmark {
+        private final Fraction[] fs = {
+            Fraction.valueOf(2, 3), Fraction.valueOf(-5, 8),
+            Fraction.valueOf(7, 12), Fraction.valueOf(16, 11),
+        };
+        FractionMultiply() { super("fraction.multiply"); }
+        @Override
+        public Object run() {
+            Fraction p = Fraction.ONE;
+            for (int i=0; i<fs.length; i++)
+                p = p.multiply(fs[i]).divide(fs[(i+1) % fs.length]);
+            return p;
+        }
+    }
+    /** Fraction comparison, as used when sorting dancer positions. */
+    static class FractionCompare extends Benchmark {
+        private final Fraction[] fs = {
+            Fraction.valueOf(1, 3), Fraction.valueOf(-5, 8),
+            Fraction.valueOf(7, 12), Fraction.valueOf(11, 16),
+        };
+        FractionCompare() { super("fraction.compare"); }
+        @Override
+        public Object run() {
+            int c = 0;
+            for (Fraction a : fs)
+                for (Fraction b : fs)
+                    c += a.compareTo(b);
+            return c;
+        }
+    }
+    /** Rotate every dancer of a squared set by every eighth of a turn. */
+    static class RotateAroundOrigin extends Benchmark {
+        private final List<Position> positions = new ArrayList<Position>();
+        private final List<ExactRotation> rotations =
+            new ArrayList<ExactRotation>();
+        RotateAroundOrigin() { super("position.rotateAroundOrigin"); }
+        @Override
+        public void setUp() {
+            Formation f = Formation.SQUARED_SET;
+            for (Dancer d : f.sortedDancers())
+                positions.add(f.location(d));
+            for (int i=0; i<8; i++)
+                rotations.add(new ExactRotation(Fraction.valueOf(i, 8)));
+        }
+        @Override
+        public Object run() {
+            Position last = null;
+            for (ExactRotation r : rotations)
+                for (Position p : positions)
+                    last = p.rotateAroundOrigin(r);
+            return last;
+        }
+    }
+    /** Match a standard formation against one of the common goals. */
+    static class Match extends Benchmark {
+        private final TaggedFormation input, goal;
+        private final boolean allowUnmatched;
+        private Formation f;
+        Match(String name, TaggedFormation input, TaggedFormation goal,
+              boolean allowUnmatched) {
+            super(name);
+            this.input = input;
+            this.goal = goal;
+            this.allowUnmatched = allowUnmatched;
+        }
+        @Override
+        public void setUp() throws NoMatchException {
+            this.f = input.mapStd();
+            run(); // make sure the match succeeds
+        }
+        @Override
+        public Object run() throws NoMatchException {
+            return GeneralFormationMatcher.doMatch
+                (f, goal, allowUnmatched, false);
+        }
+    }
+    /** Breathe a mix of formations which need breathing (taken from the
+     *  {@link Breather} doctests) and formations which don't. */
+    static class Breathe extends Benchmark {
+        private final List<Formation> formations = new ArrayList<Formation>();
+        Breathe() { super("breather.breathe"); }
+        @Override
+        public void setUp() {
+            // from 'do half of an ends cross run'
+            formations.add(mkform(new String[][] {
+                { "1", "0", "n" }, { "3/2", "1", "w" },
+                { "3", "0", "s" }, { "5/2", "-1", "e" },
+                { "-1", "0", "s" }, { "-3/2", "-1", "e" },
+                { "-3", "0", "n" }, { "-5/2", "1", "w" } }));
+            // ends of the outside lines too close together
+            formations.add(mkform(new String[][] {
+                { "3", "-1", "w" }, { "3", "1", "w" },
+                { "1", "0", "n" }, { "3", "0", "s" },
+                { "-3", "1", "e" }, { "-3", "-1", "e" },
+                { "-1", "0", "s" }, { "-3", "0", "n" } }));
+            // already breathed
+            formations.add(FormationList.PARALLEL_RH_WAVES.mapStd());
+            formations.add(FormationList.RH_TWIN_DIAMONDS.mapStd());
+        }
+        private static Formation mkform(String[][] pos) {
+            Map<Dancer,Position> m = new LinkedHashMap<Dancer,Position>();
+            for (int i=0; i<pos.length; i++)
+                m.put(StandardDancer.values()[i], new Position
+                      (Fraction.valueOf(pos[i][0]), Fraction.valueOf(pos[i][1]),
+                       Rotation.fromAbsoluteString(pos[i][2])));
+            return new Formation(m);
+        }
+        @Override
+        public Object run() {
+            Formation last = null;
+            for (Formation f : formations)
+                last = Breather.breathe(f);
+            return last;
+        }
+    }
+    /** Parse a typical call at the given program. */
+    static class Parse extends Benchmark {
+        private static final String[] CALLS = {
+            /* BASIC */ "heads square thru 4",
+            /* MAINSTREAM */ "centers tag the line",
+            /* PLUS */ "peel the top",
+            /* A1 */ "cross clover and pass out",
+            /* A2 */ "centers switch the wave",
+            /* C1 */ "tandem swing thru",
+            /* C2 */ "switch to a diamond",
+            /* C3A */ "chain the square",
+            /* C3B */ "first couple go left next couple go right",
+            /* C4 */ "heads break the alamo",
+        };
+        private final Program program;
+        private final String call;
+        Parse(Program program) {
+            super("calldb.parse." + program.name().toLowerCase());
+            this.program = program;
+            this.call = CALLS[program.ordinal()];
+        }
+        @Override
+        public Object run() {
+            return CallDB.INSTANCE.parse(program, call);
+        }
+    }
+    /** Produce the first few completions of a partial call. */
+    static class Complete extends Benchmark {
+        private final Program program;
+        private final String input;
+        Complete(String name, Program program, String input) {
+            super(name);
+            this.program = program;
+            this.input = input;
+        }
+        @Override
+        public Object run() {
+            return CompletionEngine.complete(program, input, 10);
+        }
+    }
+    /**
+     * Parse and evaluate the calls of a test transcript from the PMSD
+     * corpus, starting from a squared set.  Only the calls up to the first
+     * directive we don't understand or the first failing call are
+     * replayed, so that every operation does the same work.
+     */
+    static class Replay extends Benchmark {
+        private final String test;
+        private Program program;
+        private final List<String> calls = new ArrayList<String>();
+        Replay(String name) {
+            super(name);
+            this.test = name.substring(name.indexOf('.') + 1);
+        }
+        @Override
+        public void setUp() throws IOException {
+            this.program = Program.PLUS; // PMSD default
+            List<String> script = new ArrayList<String>();
+            Program p = program;
+            for (String line : readTest(test)) {
+                line = line.trim();
+                if (!line.startsWith("sdr>")) continue;
+                line = line.substring(4).trim();
+                int comment = line.indexOf("//");
+                if (comment == 0) continue; // comment line
+                if (comment > 0) line = line.substring(0, comment).trim();
+                if (line.startsWith("/")) {
+                    // directive: we only understand setting the program
+                    // and starting from a squared set.
+                    if (!script.isEmpty()) break; // keep program fixed
+                    boolean understood = true;
+                    for (String d : line.substring(1).split(";")) {
+                        d = d.trim();
+                        if (d.startsWith("program ="))
+                            p = Program.valueOf
+                                (d.substring("program =".length()).trim()
+                                 .replace("Program.", ""));
+                        else if (!d.equals
+                                 ("setFormation(Formation.SQUARED_SET)"))
+                            understood = false;
+                    }
+                    if (!understood) break;
+                    continue;
+                }
+                for (String call : line.split(";"))
+                    script.add(call.trim());
+            }
+            this.program = p;
+            // keep only the calls which evaluate successfully
+            for (String call : script) {
+                calls.add(call);
+                try {
+                    run();
+                } catch (RuntimeException e) {
+                    calls.remove(calls.size() - 1);
+                    break;
+                }
+            }
+        }
+        @Override
+        public Object run() {
+            DanceState ds = new DanceState(new DanceProgram(program),
+                                           Formation.SQUARED_SET);
+            Evaluator.parseAndEval(ds, calls.toArray(new String[0]));
+            return ds;
+        }
+        private static List<String> readTest(String name) throws IOException {
+            InputStream is = PMSD.class.getResourceAsStream("tests/"+name);
+            if (is == null)
+                throw new IOException("no such test: "+name);
+            BufferedReader r = new BufferedReader
+                (new InputStreamReader(is, "utf-8"));
+            try {
+                List<String> lines = new ArrayList<String>();
+                String line;
+                while ((line = r.readLine()) != null)
+                    lines.add(line);
+                return lines;
+            } finally {
+                r.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.cscott.sdr.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A small benchmark harness in the style of JMH: each {@link Benchmark} is
+ * run for a number of untimed warmup iterations followed by a number of
+ * measured iterations of fixed duration, and the average time and the
+ * number of bytes allocated per operation are reported, along with the
+ * resulting allocation rate.  Allocation is measured with the per-thread
+ * allocation counter of the HotSpot <code>ThreadMXBean</code>; on other
+ * VMs it is reported as <code>-1</code>.
+ * <p>
+ * The command-line arguments are prefixes of the benchmark names to run;
+ * with no arguments all of the {@link DanceBenchmarks} are run.  The
+ * following system properties tune the run:</p>
+ * <dl>
+ * <dt><code>bench.warmup</code></dt><dd>warmup iterations (default 5)</dd>
+ * <dt><code>bench.iterations</code></dt><dd>measured iterations
+ *     (default 5)</dd>
+ * <dt><code>bench.time</code></dt><dd>duration of each iteration, in
+ *     milliseconds (default 500)</dd>
+ * <dt><code>bench.output</code></dt><dd>file to write results to, in the
+ *     same format as the baseline</dd>
+ * <dt><code>bench.baseline</code></dt><dd>results file to compare
+ *     against, if it exists; the change relative to the baseline is printed
+ *     next to each result</dd>
+ * </dl>
+ * @author C. Scott Ananian
+ */
+public class Harness {
+    private final int warmup, iterations;
+    private final long iterationNanos;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    /** Results of every benchmark are stored here so that the JIT can
+     *  not optimize the benchmarked computation away. */
+    private volatile Object sink;
+
+    public Harness(int warmup, int iterations, long iterationMillis) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    /** Measurements for a single benchmark. */
+    public static class Result {
+        public final String name;
+        /** Average wall-clock time per operation, in nanoseconds. */
+        public final double nanosPerOp;
+        /** Average number of bytes allocated per operation, or -1 if
+         *  allocation can not be measured on this VM. */
+        public final double bytesPerOp;
+        public Result(String name, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+        /** Allocation rate in megabytes per second, or -1 if unknown. */
+        public double allocationRate() {
+            if (bytesPerOp < 0) return -1;
+            return (bytesPerOp / nanosPerOp) * 1e9 / (1024 * 1024);
+        }
+        /** Format this result as a line of a results file. */
+        public String toLine() {
+            return String.format(Locale.US, "%-32s %14.1f %14.1f %10.1f",
+                                 name, nanosPerOp, bytesPerOp,
+                                 allocationRate());
+        }
+    }
+    /** Header line for a results file. */
+    public static final String HEADER = String.format
+        (Locale.US, "# %-30s %14s %14s %10s",
+         "benchmark", "ns/op", "B/op", "MB/s");
+
+    /** Warm up and then measure the given benchmark. */
+    public Result measure(Benchmark b) throws Exception {
+        b.setUp();
+        for (int i=0; i<warmup; i++)
+            iteration(b);
+        long ops = 0, nanos = 0, bytes = 0;
+        for (int i=0; i<iterations; i++) {
+            long[] r = iteration(b);
+            ops += r[0]; nanos += r[1]; bytes += r[2];
+        }
+        return new Result(b.name(), nanos / (double) ops,
+                          bytes < 0 ? -1 : bytes / (double) ops);
+    }
+    /** Run the benchmark for one iteration, returning the number of
+     *  operations, the elapsed time, and the number of bytes allocated. */
+    private long[] iteration(Benchmark b) throws Exception {
+        long ops = 0;
+        long bytes0 = allocatedBytes();
+        long start = System.nanoTime(), now;
+        do {
+            sink = b.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now - start < iterationNanos);
+        long bytes1 = allocatedBytes();
+        long bytes = (bytes0 < 0 || bytes1 < 0) ? -1 : bytes1 - bytes0;
+        return new long[] { ops, now - start, bytes };
+    }
+    /** Bytes allocated so far by the current thread, or -1 if this VM
+     *  doesn't keep track. */
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean t =
+                (com.sun.management.ThreadMXBean) threads;
+            if (t.isThreadAllocatedMemorySupported() &&
+                t.isThreadAllocatedMemoryEnabled())
+                return t.getThreadAllocatedBytes
+                    (Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** Read a results file, as written by {@link #main}. */
+    public static Map<String,Result> readResults(File f) throws IOException {
+        Map<String,Result> results = new LinkedHashMap<String,Result>();
+        BufferedReader r = new BufferedReader
+            (new InputStreamReader(new FileInputStream(f), "utf-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if (line.length()==0 || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                results.put(fields[0], new Result
+                            (fields[0], Double.parseDouble(fields[1]),
+                             Double.parseDouble(fields[2])));
+            }
+        } finally {
+            r.close();
+        }
+        return results;
+    }
+    private static String change(double now, double then) {
+        if (now < 0 || then <= 0) return "     n/a";
+        return String.format(Locale.US, "%+7.1f%%", 100 * (now-then) / then);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Harness h = new Harness
+            (Integer.getInteger("bench.warmup", 5),
+             Integer.getInteger("bench.iterations", 5),
+             Long.getLong("bench.time", 500));
+        String baselineFile = System.getProperty("bench.baseline");
+        Map<String,Result> baseline = null;
+        if (baselineFile != null && new File(baselineFile).exists())
+            baseline = readResults(new File(baselineFile));
+        List<Benchmark> toRun = new ArrayList<Benchmark>();
+        for (Benchmark b : DanceBenchmarks.all()) {
+            boolean selected = (args.length == 0);
+            for (String prefix : args)
+                if (b.name().startsWith(prefix))
+                    selected = true;
+            if (selected) toRun.add(b);
+        }
+        List<Result> results = new ArrayList<Result>(toRun.size());
+        System.out.println(HEADER + (baseline == null ? "" :
+                                     "  ns/op vs base  B/op vs base"));
+        for (Benchmark b : toRun) {
+            Result r = h.measure(b);
+            results.add(r);
+            StringBuilder sb = new StringBuilder(r.toLine());
+            Result base = (baseline == null) ? null : baseline.get(r.name);
+            if (base != null) {
+                sb.append("      ");
+                sb.append(change(r.nanosPerOp, base.nanosPerOp));
+                sb.append("      ");
+                sb.append(change(r.bytesPerOp, base.bytesPerOp));
+            }
+            System.out.println(sb);
+        }
+        String output = System.getProperty("bench.output");
+        if (output != null) {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter
+                (new FileOutputStream(output), "utf-8"));
+            try {
+                pw.println(HEADER);
+                for (Result r : results)
+                    pw.println(r.toLine());
+            } finally {
+                pw.close();
+            }
+        }
+    }
+}
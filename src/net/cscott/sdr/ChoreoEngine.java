@@ -17,6 +17,8 @@ import net.cscott.sdr.calls.DanceState;
 import net.cscott.sdr.calls.Dancer;
 import net.cscott.sdr.calls.DancerBezierPath;
 import net.cscott.sdr.calls.DancerPath;
+import net.cscott.sdr.calls.Deadline;
+import net.cscott.sdr.calls.DeadlineExceededException;
 import net.cscott.sdr.calls.Evaluator;
 import net.cscott.sdr.calls.Formation;
 import net.cscott.sdr.calls.Program;
@@ -148,13 +150,60 @@ public class ChoreoEngine {
     public Apply lastCall() { return null; }
     public Formation currentFormation() { return null; }
 
+    /** Timing statistics for the evaluations done by the dance thread:
+     *  how much of its deadline each evaluation left unused, and how many
+     *  ran out of time altogether.  Thread-safe. */
+    public static class EvaluationStats {
+        private long evaluations = 0, misses = 0;
+        private long totalSlack = 0, minSlack = Long.MAX_VALUE;
+        /** Record an evaluation which finished with the given number of
+         *  nanoseconds to spare. */
+        synchronized void finished(long slackNanos) {
+            evaluations++;
+            totalSlack += slackNanos;
+            minSlack = Math.min(minSlack, slackNanos);
+        }
+        /** Record an evaluation which was abandoned at its deadline. */
+        synchronized void missed() {
+            evaluations++;
+            misses++;
+            minSlack = Math.min(minSlack, 0);
+        }
+        /** Number of timed evaluations attempted. */
+        public synchronized long evaluations() { return evaluations; }
+        /** Number of evaluations which missed their deadline. */
+        public synchronized long misses() { return misses; }
+        /** Least slack (in nanoseconds) left by any evaluation, or
+         *  {@link Long#MAX_VALUE} if there have been none. */
+        public synchronized long minSlack() { return minSlack; }
+        /** Mean slack (in nanoseconds) left by the evaluations which
+         *  finished in time. */
+        public synchronized long meanSlack() {
+            long finished = evaluations - misses;
+            return (finished == 0) ? 0 : totalSlack / finished;
+        }
+        @Override
+        public synchronized String toString() {
+            return evaluations+" evaluations, "+misses+" missed, slack min "+
+                (minSlack()/1000000)+"ms mean "+(meanSlack()/1000000)+"ms";
+        }
+    }
+    private final EvaluationStats evaluationStats = new EvaluationStats();
+    /** Return timing statistics for the dance thread's evaluations. */
+    public EvaluationStats evaluationStats() { return evaluationStats; }
+
     class DanceThread extends Thread {
         private final ConcurrentMap<String,String> props =
             new ConcurrentHashMap<String,String>();
         private final Fraction MARGIN = Fraction.TWO; // dance two beats ahead
+        /** Number of times we'll mark time while retrying a call which
+         *  missed its deadline, before giving up on it. */
+        private static final int MAX_RETRIES = 2;
         private final DanceState initialDanceState;
         private final Evaluator initialEvaluator;
         private boolean isEnding, goingHome;
+        /** Deadline of the evaluation in progress, if any. */
+        private Deadline deadline;
         DanceThread(DanceProgram dp, Evaluator e) {
             props.put("call-pending", "false");
             this.initialDanceState = new DanceState
@@ -162,27 +211,72 @@ public class ChoreoEngine {
             this.initialEvaluator = e;
             this.isEnding = false;
             this.goingHome = false;
+            this.deadline = null;
             this.setDaemon(true);
         }
 
         public synchronized void stopDancing() {
             this.isEnding = true;
             props.put("call-pending", "true");
+            // don't make the dancers wait for a call we're abandoning
+            if (this.deadline != null)
+                this.deadline.cancel();
         }
         private synchronized boolean isEnding() {
             return this.isEnding;
         }
+        /** Start the deadline for an evaluation which must be finished
+         *  before the dancers run out of moves at <code>beat</code>. */
+        private synchronized Deadline startDeadline(Fraction beat) {
+            long nanos = danceFloor.nanosUntilBeat(beat);
+            this.deadline = (nanos == Long.MAX_VALUE) ?
+                Deadline.unbounded() : Deadline.after(nanos);
+            if (this.isEnding)
+                this.deadline.cancel();
+            return this.deadline;
+        }
+        private synchronized void endDeadline() {
+            this.deadline = null;
+        }
 
         @Override
         public void run() {
             DanceState ds = initialDanceState;
             Evaluator e = initialEvaluator;
+            Evaluator retry = null;
+            int retries = 0;
             Fraction offsetTime = danceFloor.waitForBeat(Fraction.ZERO);
             // round to multiple of 8 beats so we start on a phrase.
             offsetTime = Fraction.valueOf((offsetTime.intValue()/8)*8 + 8);
 
             while (e != null) {
-                e = e.evaluate(ds);
+                // evaluate against the clock; if we can't finish before the
+                // dancers run out of moves, throw the result away.
+                DanceState start = ds.snapshot();
+                Deadline deadline = startDeadline(offsetTime);
+                Deadline oldDeadline = Deadline.enter(deadline);
+                boolean stalled = false;
+                try {
+                    e = e.evaluate(ds);
+                    if (deadline.remaining() != Long.MAX_VALUE)
+                        evaluationStats.finished(deadline.remaining());
+                    retries = 0;
+                } catch (DeadlineExceededException dee) {
+                    evaluationStats.missed();
+                    ds = start;
+                    stalled = true;
+                    if (!deadline.isCancelled() && retries++ < MAX_RETRIES)
+                        retry = e; // try again after marking time
+                    else {
+                        hud.setNotice("Too slow!", 2000);
+                        retry = null;
+                        retries = 0;
+                    }
+                    e = null;
+                } finally {
+                    Deadline.exit(oldDeadline);
+                    endDeadline();
+                }
                 ds.syncDancers();
                 for (Dancer d : ds.dancers()) {
                     Fraction startTime = offsetTime;
@@ -207,14 +301,33 @@ public class ChoreoEngine {
                         offsetTime = Fraction.valueOf(offsetTime.floor());
                         // do nothing for a beat
                         e = new Evaluator.Standard(new Seq(new Apply(Expr.literal("nothing"))));
-                        // subtract timeliness points.
-                        score.dancersWaiting();
+                        if (retry != null) {
+                            // ...and then have another go at the slow call
+                            e = andThen(e, retry);
+                            retry = null;
+                        }
+                        // subtract timeliness points, unless it was our
+                        // fault the dancers were left waiting.
+                        if (!stalled)
+                            score.dancersWaiting();
                     }
                 }
             }
             danceFloor.waitForBeat(offsetTime);
         }
     }
+    /** Return an {@link Evaluator} which performs all of <code>first</code>
+     *  and then continues with <code>then</code>. */
+    private static Evaluator andThen(final Evaluator first,
+                                     final Evaluator then) {
+        return new Evaluator() {
+            @Override
+            public Evaluator evaluate(DanceState ds) {
+                Evaluator next = first.evaluate(ds);
+                return (next == null) ? then : andThen(next, then);
+            }
+        };
+    }
     private class InputThread extends Thread {
         private final CommandInput input;
         private final ChoreoEngine choreo;
@@ -53,11 +53,43 @@ public class DanceFloor {
     private final BlockingQueue<Fraction> beatQueue =
         new LinkedBlockingQueue<Fraction>();
 
+    /** Beat and time of the most recent notification. */
+    private Fraction lastBeat = null;
+    private long lastNanos;
+    /** Start of the interval over which the tempo is being measured. */
+    private Fraction tempoBeat = null;
+    private long tempoNanos;
+    /** Measured length of a beat, or zero if not yet known. */
+    private double nanosPerBeat = 0;
+
     /** Notify the choreography engine that the given beat is now occurring.
      *  Thread-safe. */
     public void notifyBeat(Fraction beat) {
+        noteTempo(beat, System.nanoTime());
         beatQueue.add(beat);
     }
+    private synchronized void noteTempo(Fraction beat, long now) {
+        if (tempoBeat == null || beat.compareTo(tempoBeat) < 0) {
+            // first beat, or the music restarted
+            tempoBeat = beat; tempoNanos = now;
+        } else {
+            // re-measure the tempo once every beat or so
+            Fraction elapsed = beat.subtract(tempoBeat);
+            if (elapsed.compareTo(Fraction.ONE) >= 0) {
+                nanosPerBeat = (now - tempoNanos) / elapsed.doubleValue();
+                tempoBeat = beat; tempoNanos = now;
+            }
+        }
+        lastBeat = beat; lastNanos = now;
+    }
+    /** Estimate the number of nanoseconds until the given beat occurs,
+     *  from the tempo of recent notifications.  Returns
+     *  {@link Long#MAX_VALUE} if the tempo is not yet known.  Thread-safe. */
+    public synchronized long nanosUntilBeat(Fraction beat) {
+        if (nanosPerBeat == 0) return Long.MAX_VALUE;
+        double beats = beat.subtract(lastBeat).doubleValue();
+        return lastNanos + (long) (beats * nanosPerBeat) - System.nanoTime();
+    }
 
     /** Block waiting until notifyBeat() is called with a beat greater than
      *  or equal to that specified.  Thread-safe. */
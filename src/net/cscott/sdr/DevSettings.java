@@ -15,4 +15,17 @@ public abstract class DevSettings {
     /** Add some extra graphical debugging indicators: fps indication and
      *  memory gauge. */
     public static final boolean GRAPHICS_DEBUG = false;
+    /** Solve each {@link net.cscott.sdr.calls.Breather} axis with the
+     *  Cassowary linear programming solver as well as the specialized one,
+     *  and fail loudly if they disagree. */
+    public static final boolean BREATHER_VERIFY = false;
+    /** Evaluate every part of a meta formation, even those which could
+     *  reuse the result of a congruent part, and fail loudly if the reused
+     *  result differs from the one actually computed. */
+    public static final boolean META_SYMMETRY_VERIFY = false;
+    /** Record a stack trace in every
+     *  {@link net.cscott.sdr.calls.BadCallException}.  The evaluator throws
+     *  these routinely while backtracking, so they are normally left
+     *  stackless. */
+    public static final boolean BAD_CALL_STACK_TRACES = false;
 }
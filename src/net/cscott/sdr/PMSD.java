@@ -38,7 +38,7 @@ import net.cscott.sdr.calls.Program;
 import net.cscott.sdr.calls.StandardDancer;
 import net.cscott.sdr.calls.ast.Comp;
 import net.cscott.sdr.calls.ast.Seq;
-import net.cscott.sdr.calls.grm.CompletionEngine;
+import net.cscott.sdr.calls.grm.CompletionTrie;
 import net.cscott.sdr.util.ListUtils;
 
 import org.junit.runner.RunWith;
@@ -677,7 +677,7 @@ public class PMSD {
             //      string "pass thru"
             SortedSet<String> results = new TreeSet<String>();
             Program p = state.ds.dance.getProgram();
-            for (String s : CompletionEngine.complete(p, start, 50)) {
+            for (String s : CompletionTrie.suggest(p, start, 50)) {
                 // XXX: do we need to filter out the <foo> nonterminals?
                 //s = s.replaceFirst("<.*", "");
                 results.add(s);
@@ -1,8 +1,34 @@
 package net.cscott.sdr.calls;
 
+import java.util.Iterator;
+import java.util.List;
+
+import net.cscott.jdoctest.JDoctestRunner;
+import net.cscott.sdr.DevSettings;
 import net.cscott.sdr.util.Fraction;
 
-/** This exception indicates that a call was invalid. */
+import org.junit.runner.RunWith;
+
+/** This exception indicates that a call was invalid.
+ *  <p>
+ *  The evaluator uses these exceptions to backtrack between alternatives,
+ *  so they don't record a stack trace (unless
+ *  {@link DevSettings#BAD_CALL_STACK_TRACES} is set) and their messages
+ *  may be described by a {@link Failure} record which is only rendered to
+ *  text when {@link #getMessage()} is called.
+ *  @doc.test
+ *   js> bce = new BadCallException("Can't do that")
+ *   net.cscott.sdr.calls.BadCallException: Can't do that
+ *   js> bce.getStackTrace().length
+ *   0
+ *   js> nme = new NoMatchException("OCEAN WAVE", "no matches"); undefined
+ *   js> l = java.util.Collections.singletonList(nme.asFailure(" ")); undefined
+ *   js> f = new BadCallException.Failure("Invalid formation", " ", l)
+ *   Invalid formation (OCEAN WAVE (no matches))
+ *   js> new BadCallException(f, net.cscott.sdr.util.Fraction.mONE).getMessage()
+ *   Invalid formation (OCEAN WAVE (no matches))
+ */
+@RunWith(value=JDoctestRunner.class)
 public class BadCallException extends RuntimeException {
     /** Priority field helps us distinguish
      *  ordinary "you can't do that from here" exceptions from special
@@ -12,10 +38,79 @@ public class BadCallException extends RuntimeException {
      *  to 1.
      */
     public final Fraction priority;
+    /** Structured description of the failure, if the message wasn't given
+     *  as a string. */
+    private final Failure failure;
+    /** The rendered message, once computed. */
+    private String message;
     //public BadCallException() { super(); }
     public BadCallException(String s) { this(s, Fraction.ZERO); }
     public BadCallException(String s, Fraction priority) {
-	super(s);
+	super(s, null, false, DevSettings.BAD_CALL_STACK_TRACES);
 	this.priority = priority;
+	this.failure = null;
+    }
+    /** Create an exception whose message is the rendered form of the
+     *  given {@link Failure}. */
+    public BadCallException(Failure failure, Fraction priority) {
+	super(null, null, false, DevSettings.BAD_CALL_STACK_TRACES);
+	this.priority = priority;
+	this.failure = failure;
+    }
+    /** Create an exception whose subclass will provide a message by
+     *  overriding {@link #formatMessage()}. */
+    protected BadCallException(Fraction priority) {
+	this((Failure) null, priority);
+    }
+    @Override
+    public String getMessage() {
+	String s = super.getMessage();
+	if (s != null) return s;
+	if (message == null)
+	    message = formatMessage();
+	return message;
+    }
+    /** Render the message of an exception which wasn't created with a
+     *  string message.  Called at most once (modulo races). */
+    protected String formatMessage() {
+	return (failure == null) ? null : failure.toString();
+    }
+    /** Return the text used to explain this exception when it is nested
+     *  inside a {@link Failure}. */
+    public String explanation() {
+	return getMessage();
+    }
+
+    /** A record of some alternative which failed: what was tried, and the
+     *  exceptions (or other explanations) describing why.  It renders as
+     *  <code>what + sep + "(" + reasons + ")"</code>, but only when
+     *  {@link #toString()} is called. */
+    public static class Failure {
+	/** The matcher, expression or name of the thing which failed. */
+	public final Object what;
+	/** The reasons it failed; {@link BadCallException}s are rendered
+	 *  with {@link BadCallException#explanation()}. */
+	public final List<?> reasons;
+	private final String sep;
+	public Failure(Object what, String sep, List<?> reasons) {
+	    this.what = what;
+	    this.sep = sep;
+	    this.reasons = reasons;
+	}
+	@Override
+	public String toString() {
+	    return what + sep + "(" + join(reasons) + ")";
+	}
+	/** Render a list of reasons, separated by commas. */
+	static String join(List<?> reasons) {
+	    StringBuilder sb = new StringBuilder();
+	    for (Iterator<?> it = reasons.iterator(); it.hasNext(); ) {
+		Object o = it.next();
+		sb.append((o instanceof BadCallException) ?
+			  ((BadCallException) o).explanation() : o);
+		if (it.hasNext()) sb.append(", ");
+	    }
+	    return sb.toString();
+	}
     }
 }
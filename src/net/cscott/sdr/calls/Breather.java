@@ -1,15 +1,19 @@
 package net.cscott.sdr.calls;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import net.cscott.jdoctest.JDoctestRunner;
+import net.cscott.sdr.DevSettings;
 import net.cscott.sdr.util.Box;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.LRUCache;
 import net.cscott.sdr.util.Point;
 import net.cscott.sdr.util.SdrToString;
 import net.cscott.sdr.util.Tools.ListMultiMap;
@@ -70,8 +74,9 @@ import EDU.Washington.grad.gjb.cassowary.ExCLRequiredFailure;
  * Third: Sort and order the boundary coordinates, and then allocate space
  * between boundaries so that it is "just enough" to fit the dancers between
  * them.  If a dancer spans multiple boundary points, their allocation is
- * divided equally between them.  We use linear programming here to find
- * an optimal expansion.  Finally, the output formations are
+ * divided equally between them.  This is a linear program, but one
+ * simple enough that we can usually find the optimal expansion with a
+ * longest-path computation.  Finally, the output formations are
  * relocated so that they are centered between their new boundaries.
  *
  * @author C. Scott Ananian
@@ -594,10 +599,37 @@ public class Breather {
         }
     }
     private static Formation _breathe(List<FormationPiece> pieces) throws ExCLError {
+        Deadline.poll();
         // Locate collisions and resolve them to miniwaves.
         pieces = resolveCollisions(pieces);
         // center all output formations
         pieces = centerOutputPieces(pieces);
+        // the new boundaries depend only on the shapes of the pieces
+        BreatheKey key = new BreatheKey(pieces);
+        List<Box> newBounds = BREATHE_CACHE.get(key);
+        if (newBounds == null) {
+            newBounds = solveBounds(pieces);
+            BREATHE_CACHE.put(key, newBounds);
+        }
+        // assemble meta formation.
+        Map<Dancer,Position> nf = new LinkedHashMap<Dancer,Position>();
+        for (int i=0; i<pieces.size(); i++) {
+            FormationPiece fp = pieces.get(i);
+            Point newCenter = newBounds.get(i).center();
+            // translate the output formation to this center.
+            for (Dancer d: fp.output.dancers()) {
+                Position oldPos = fp.output.location(d);
+                nf.put(d, oldPos.relocate(oldPos.x.add(newCenter.x),
+                                          oldPos.y.add(newCenter.y),
+                                          oldPos.facing));
+            }
+        }
+        return new Formation(nf);
+    }
+    /** Return the new bounds of each of the given (collision-free,
+     *  centered) pieces after breathing. */
+    private static List<Box> solveBounds(List<FormationPiece> pieces)
+        throws ExCLError {
         // Trim boundaries to resolve overlaps
         List<Box> inputBounds = trimOverlap(pieces);
 	// Find and sort boundaries of component formations.
@@ -619,83 +651,189 @@ public class Breather {
         y.bounds.put(Fraction.ZERO, Fraction.ZERO);
         // okay, now expand our formations, until all our constraints are met
         for (Axis axis: l(x, y)) {
-            // use Cassowary constraint solver (basic linear programming)
-            // to expand formation.
+            if (DevSettings.BREATHER_VERIFY) {
+                TreeMap<Fraction,Fraction> expected =
+                    new TreeMap<Fraction,Fraction>(axis.bounds);
+                solveCassowary(axis, expected);
+                if (solveDifference(axis, axis.bounds) &&
+                    !expected.equals(axis.bounds))
+                    throw new AssertionError("Breather solvers disagree on "+
+                                             axis+": expected "+expected);
+                axis.bounds.putAll(expected);
+            } else if (!solveDifference(axis, axis.bounds))
+                solveCassowary(axis, axis.bounds);
+        }
+        List<Box> result = new ArrayList<Box>(pieces.size());
+        for (Box origBounds : inputBounds)
+            result.add(new Box(new Point(x.bounds.get(origBounds.ll.x),
+                                         y.bounds.get(origBounds.ll.y)),
+                               new Point(x.bounds.get(origBounds.ur.x),
+                                         y.bounds.get(origBounds.ur.y))));
+        return Collections.unmodifiableList(result);
+    }
+
+    // ---- breathe cache
+
+    /** Default maximum number of entries in the {@link #breatheCache()}. */
+    public static final int BREATHE_CACHE_SIZE = 4096;
+    private static final LRUCache<BreatheKey,List<Box>> BREATHE_CACHE =
+        new LRUCache<BreatheKey,List<Box>>(BREATHE_CACHE_SIZE);
+    /** Return the cache of solved piece boundaries used by
+     *  {@link #breathe(List)}, so that its hit and miss counts can be
+     *  monitored and its capacity adjusted.
+     * @doc.test Breathing the same shape with different dancers hits the
+     *  cache:
+     *  js> f = FormationList.RH_DIAMOND.mapStd([]); undefined
+     *  js> Breather.breathe(f).toStringDiagram()
+     *    1B>
+     *  
+     *  1G^  3Gv
+     *  
+     *    3B<
+     *  js> hits = Breather.breatheCache().hits(); undefined
+     *  js> SD = StandardDancer; undefined
+     *  js> f = FormationList.RH_DIAMOND.mapStd([SD.COUPLE_2_BOY, SD.COUPLE_2_GIRL]);
+     *    > Breather.breathe(f).toStringDiagram()
+     *    2B>
+     *  
+     *  2G^  4Gv
+     *  
+     *    4B<
+     *  js> Breather.breatheCache().hits() - hits
+     *  1
+     */
+    public static LRUCache<?,?> breatheCache() { return BREATHE_CACHE; }
 
-            // solver setup: create variables for each boundary point;
-            //               objective function minimizes all boundaries
-            ClSimplexSolver solver = new ClSimplexSolver();
-            Map<Fraction, ClVariable> vars =
-                new LinkedHashMap<Fraction, ClVariable>();
-            for (Fraction f: axis.bounds.keySet()) {
-                ClVariable v = new ClVariable(Fraction.ZERO);
-                ClStrength s = f.equals(Fraction.ZERO) ?
-                        ClStrength.required : ClStrength.weak;
-                solver.addConstraint(new ClLinearEquation(v, Fraction.ZERO, s));
-                vars.put(f, v);
+    /** Key for the {@link #breatheCache()}.  Each piece is described by
+     *  everything {@link #solveBounds} looks at: the bounds of its input
+     *  and output formations, and the facing direction (modulo 1/2) of
+     *  its input formation, which determines its handholds. */
+    private static class BreatheKey {
+        final List<Object> shape;
+        final int hashCode;
+        BreatheKey(List<FormationPiece> pieces) {
+            this.shape = new ArrayList<Object>(3*pieces.size());
+            for (FormationPiece fp : pieces) {
+                shape.add(fp.input.bounds());
+                shape.add(formationFacing(fp.input, Fraction.ONE_HALF));
+                shape.add(fp.output.bounds());
             }
-            assert vars.containsKey(Fraction.ZERO);
-            // Constraint 1: Boundaries need to be strictly increasing
-            //               (required constraint)
-            Fraction last = null;
-            for (Fraction f : axis.bounds.keySet()) {
-                if (last!=null)
-                    solver.addConstraint(new ClLinearInequality
-                            (vars.get(f), CL.Op.GEQ, vars.get(last)));
-                last = f;
+            this.hashCode = shape.hashCode();
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BreatheKey)) return false;
+            BreatheKey bk = (BreatheKey) o;
+            return this.hashCode == bk.hashCode && this.shape.equals(bk.shape);
+        }
+        @Override
+        public int hashCode() { return hashCode; }
+    }
+    /**
+     * Expand the given axis without a general-purpose LP solver, writing
+     * the new location of each boundary into <code>result</code>.
+     * The two halves of the axis are independent, since the centerline is
+     * fixed and every {@link Bit} lies on one side of it; see
+     * {@link HalfAxis#solve()}.  Returns false without writing any results
+     * if the required constraints can't be satisfied; the caller should
+     * then use {@link #solveCassowary} to report the failure.
+     */
+    private static boolean solveDifference(Axis axis,
+                                           Map<Fraction,Fraction> result) {
+        int n = axis.bounds.size();
+        Fraction[] keys = axis.bounds.keySet().toArray(new Fraction[n]);
+        Map<Fraction,Integer> index = new HashMap<Fraction,Integer>();
+        for (int i=0; i<n; i++)
+            index.put(keys[i], i);
+        int zero = index.get(Fraction.ZERO);
+        // number boundaries outward from the centerline on each side.
+        HalfAxis pos = new HalfAxis(n-1-zero), neg = new HalfAxis(zero);
+        for (Bit b : axis.bits) {
+            int start = index.get(b.start), end = index.get(b.end);
+            if (start >= end && b.size.compareTo(Fraction.ZERO) > 0)
+                return false; // infeasible
+            if (start >= zero)
+                pos.addBit(start-zero, end-zero, b.size);
+            else
+                neg.addBit(zero-end, zero-start, b.size);
+            // symmetric gap pairs, generated the same way as in
+            // solveCassowary().  (Gap i lies between boundaries i and i+1.)
+            for (int inner = start, outer = end-1; inner+1 < outer;
+                 inner++, outer--) {
+                if (start >= zero)
+                    pos.addPair(inner-zero, outer-zero);
+                else
+                    neg.addPair(zero-1-inner, zero-1-outer);
             }
-            // Constraint 2: Must fit formation (outer-inner >= size)
-            //               (required constraint)
-            for (Bit b : axis.bits) {
-                ClVariable lo = vars.get(b.start), hi = vars.get(b.end);
+        }
+        Fraction[] pv = pos.solve(), nv = neg.solve();
+        for (int i=0; i<n; i++)
+            result.put(keys[i], (i >= zero) ? pv[i-zero] : nv[zero-i].negate());
+        return true;
+    }
+    /**
+     * Expand the given axis using the Cassowary constraint solver (basic
+     * linear programming), writing the new location of each boundary into
+     * <code>result</code>.  This is the reference implementation for
+     * {@link #solveDifference}; see {@link DevSettings#BREATHER_VERIFY}.
+     */
+    private static void solveCassowary(Axis axis,
+                                       Map<Fraction,Fraction> result)
+        throws ExCLError {
+        // solver setup: create variables for each boundary point;
+        //               objective function minimizes all boundaries
+        ClSimplexSolver solver = new ClSimplexSolver();
+        Map<Fraction, ClVariable> vars =
+            new LinkedHashMap<Fraction, ClVariable>();
+        for (Fraction f: axis.bounds.keySet()) {
+            ClVariable v = new ClVariable(Fraction.ZERO);
+            ClStrength s = f.equals(Fraction.ZERO) ?
+                    ClStrength.required : ClStrength.weak;
+            solver.addConstraint(new ClLinearEquation(v, Fraction.ZERO, s));
+            vars.put(f, v);
+        }
+        assert vars.containsKey(Fraction.ZERO);
+        // Constraint 1: Boundaries need to be strictly increasing
+        //               (required constraint)
+        Fraction last = null;
+        for (Fraction f : axis.bounds.keySet()) {
+            if (last!=null)
                 solver.addConstraint(new ClLinearInequality
-                        (CL.Plus(lo, b.size), CL.Op.LEQ, hi));
-            }
-            // Symmetry constraint: moving from edges in, gaps should
-            // be equal. (strong constraint, not required)
-            for (Bit b : axis.bits) {
-                // (inner and outer are actually reversed for negative coords,
-                //  but it doesn't matter)
-                Fraction lastInner = b.start, lastOuter = b.end;
-                while(true) {
-                    Fraction inner = axis.bounds.higherKey(lastInner);
-                    Fraction outer = axis.bounds.lowerKey(lastOuter);
-                    if (inner.compareTo(outer) >= 0) break; // done.
-                    // okay, compare size of inner gap (inner-lastInner)
-                    // to outer gap (lastOuter-outer).
-                    ClLinearExpression innerSize =
-                        CL.Minus(vars.get(inner), vars.get(lastInner));
-                    ClLinearExpression outerSize =
-                        CL.Minus(vars.get(lastOuter), vars.get(outer));
-                    solver.addConstraintNoException(new ClLinearEquation
-                            (innerSize, outerSize, ClStrength.strong));
-                    lastInner = inner; lastOuter = outer;
-                }
-            }
-            // okay, read out the results.
-            for (Fraction f : axis.bounds.keySet()) {
-                axis.bounds.put(f, vars.get(f).value());
-            }
+                        (vars.get(f), CL.Op.GEQ, vars.get(last)));
+            last = f;
         }
-        // assemble meta formation.
-        Map<Dancer,Position> nf = new LinkedHashMap<Dancer,Position>();
-        for (int i=0; i<pieces.size(); i++) {
-            FormationPiece fp = pieces.get(i);
-            Box origBounds = inputBounds.get(i);
-            Box newBounds = new Box(new Point(x.bounds.get(origBounds.ll.x),
-                                              y.bounds.get(origBounds.ll.y)),
-                                    new Point(x.bounds.get(origBounds.ur.x),
-                                              y.bounds.get(origBounds.ur.y)));
-            Point newCenter = newBounds.center();
-            // translate the output formation to this center.
-            for (Dancer d: fp.output.dancers()) {
-                Position oldPos = fp.output.location(d);
-                nf.put(d, oldPos.relocate(oldPos.x.add(newCenter.x),
-                                          oldPos.y.add(newCenter.y),
-                                          oldPos.facing));
+        // Constraint 2: Must fit formation (outer-inner >= size)
+        //               (required constraint)
+        for (Bit b : axis.bits) {
+            ClVariable lo = vars.get(b.start), hi = vars.get(b.end);
+            solver.addConstraint(new ClLinearInequality
+                    (CL.Plus(lo, b.size), CL.Op.LEQ, hi));
+        }
+        // Symmetry constraint: moving from edges in, gaps should
+        // be equal. (strong constraint, not required)
+        for (Bit b : axis.bits) {
+            // (inner and outer are actually reversed for negative coords,
+            //  but it doesn't matter)
+            Fraction lastInner = b.start, lastOuter = b.end;
+            while(true) {
+                Fraction inner = axis.bounds.higherKey(lastInner);
+                Fraction outer = axis.bounds.lowerKey(lastOuter);
+                if (inner.compareTo(outer) >= 0) break; // done.
+                // okay, compare size of inner gap (inner-lastInner)
+                // to outer gap (lastOuter-outer).
+                ClLinearExpression innerSize =
+                    CL.Minus(vars.get(inner), vars.get(lastInner));
+                ClLinearExpression outerSize =
+                    CL.Minus(vars.get(lastOuter), vars.get(outer));
+                solver.addConstraintNoException(new ClLinearEquation
+                        (innerSize, outerSize, ClStrength.strong));
+                lastInner = inner; lastOuter = outer;
             }
         }
-        return new Formation(nf);
+        // okay, read out the results.
+        for (Fraction f : axis.bounds.keySet()) {
+            result.put(f, vars.get(f).value());
+        }
     }
     /** Abstract representation of one dimension of a formation, used
      * for the expansion algorithm. */
@@ -748,6 +886,159 @@ public class Breather {
                 .toString();
         }
     }
+    /** One half of an {@link Axis}, with its boundaries numbered outward
+     *  from the centerline (which is boundary 0).  Gap <i>i</i> lies between
+     *  boundaries <i>i</i> and <i>i+1</i>. */
+    private static class HalfAxis {
+        final int numGaps;
+        final List<int[]> bits = new ArrayList<int[]>();
+        final List<Fraction> bitSizes = new ArrayList<Fraction>();
+        final List<int[]> pairs = new ArrayList<int[]>();
+        HalfAxis(int numGaps) { this.numGaps = numGaps; }
+        /** Boundary <code>end</code> must be at least <code>size</code>
+         *  further from the centerline than boundary <code>start</code>. */
+        void addBit(int start, int end, Fraction size) {
+            bits.add(new int[] { start, end });
+            bitSizes.add(size);
+        }
+        /** Gaps <code>a</code> and <code>b</code> should be equal. */
+        void addPair(int a, int b) {
+            pairs.add(new int[] { a, b });
+        }
+        /**
+         * Return the distance of each boundary from the centerline.
+         * We want the smallest distances (the weak constraints) which fit
+         * every bit (the required constraints) while keeping symmetric
+         * gaps equal (the strong constraints, which can always be satisfied
+         * by making gaps large enough).  The required constraints alone
+         * form a difference-constraint system, whose pointwise-smallest
+         * solution is found by a longest-path computation outward from
+         * the centerline; if that solution happens to be symmetric, it is
+         * the unique optimum.  Otherwise, we solve the (small) linear
+         * program over the gap sizes directly.
+         * @doc.test The shortest solution isn't symmetric; the smallest
+         *  symmetric one pulls boundary 2 out rather than pushing 1 and 3:
+         *  js> importPackage(net.cscott.sdr.util)
+         *  js> h = new Breather.HalfAxis(3); undefined
+         *  js> h.addBit(0, 1, Fraction.ONE); h.addBit(0, 2, Fraction.ONE)
+         *  js> h.addBit(0, 3, Fraction.TWO); h.addBit(1, 3, Fraction.TWO)
+         *  js> h.addPair(0, 2)
+         *  js> java.util.Arrays.asList(h.solve())
+         *  [0/1, 1/1, 2/1, 3/1]
+         */
+        Fraction[] solve() {
+            Fraction[] v = new Fraction[numGaps+1];
+            v[0] = Fraction.ZERO;
+            for (int i=1; i<=numGaps; i++) {
+                v[i] = v[i-1];
+                for (int j=0; j<bits.size(); j++)
+                    if (bits.get(j)[1] == i)
+                        v[i] = max(v[i], v[bits.get(j)[0]].add(bitSizes.get(j)));
+            }
+            for (int[] pair : pairs)
+                if (!gap(v, pair[0]).equals(gap(v, pair[1])))
+                    return solveGaps();
+            return v;
+        }
+        private static Fraction gap(Fraction[] v, int i) {
+            return v[i+1].subtract(v[i]);
+        }
+        /**
+         * Merge symmetric gaps into classes and minimize the total distance
+         * from the centerline: each gap contributes its size once for every
+         * boundary beyond it.  This is a covering problem (every bit must
+         * be covered by at least its size); we solve its dual, a packing
+         * problem for which zero is a feasible starting point, with the
+         * simplex method and read the gap sizes off the final objective
+         * row.  Bland's rule prevents cycling.
+         */
+        private Fraction[] solveGaps() {
+            // union-find to merge gaps which must be equal
+            int[] parent = new int[numGaps];
+            for (int i=0; i<numGaps; i++) parent[i] = i;
+            for (int[] pair : pairs)
+                parent[find(parent, pair[0])] = find(parent, pair[1]);
+            int[] column = new int[numGaps];
+            int cols = 0;
+            Arrays.fill(column, -1);
+            for (int i=0; i<numGaps; i++) {
+                int r = find(parent, i);
+                if (column[r] < 0) column[r] = cols++;
+                column[i] = column[r];
+            }
+            // tableau: one row per gap class, columns are the dual
+            // variables (one per bit), then the slacks, then the rhs.
+            int rows = bits.size(), width = rows + cols + 1, rhs = width-1;
+            Fraction[][] t = new Fraction[cols][width];
+            for (Fraction[] row : t)
+                Arrays.fill(row, Fraction.ZERO);
+            for (int j=0; j<rows; j++)
+                for (int i=bits.get(j)[0]; i<bits.get(j)[1]; i++)
+                    t[column[i]][j] = t[column[i]][j].add(Fraction.ONE);
+            for (int c=0; c<cols; c++)
+                t[c][rows+c] = Fraction.ONE;
+            for (int i=0; i<numGaps; i++)
+                t[column[i]][rhs] =
+                    t[column[i]][rhs].add(Fraction.valueOf(numGaps-i));
+            Fraction[] obj = new Fraction[width];
+            Arrays.fill(obj, Fraction.ZERO);
+            for (int j=0; j<rows; j++)
+                obj[j] = bitSizes.get(j).negate();
+            int[] basis = new int[cols];
+            for (int c=0; c<cols; c++)
+                basis[c] = rows+c;
+            while (true) {
+                int enter = -1;
+                for (int j=0; j<rhs && enter<0; j++)
+                    if (obj[j].compareTo(Fraction.ZERO) < 0)
+                        enter = j;
+                if (enter < 0) break; // optimal
+                int leave = -1;
+                Fraction best = null;
+                for (int c=0; c<cols; c++) {
+                    if (t[c][enter].compareTo(Fraction.ZERO) <= 0) continue;
+                    Fraction ratio = t[c][rhs].divide(t[c][enter]);
+                    int cmp = (best==null) ? -1 : ratio.compareTo(best);
+                    if (cmp < 0 || (cmp == 0 && basis[c] < basis[leave])) {
+                        leave = c; best = ratio;
+                    }
+                }
+                // the primal is always feasible, so the dual is bounded
+                assert leave >= 0;
+                pivot(t, obj, leave, enter);
+                basis[leave] = enter;
+            }
+            Fraction[] v = new Fraction[numGaps+1];
+            v[0] = Fraction.ZERO;
+            for (int i=0; i<numGaps; i++)
+                v[i+1] = v[i].add(obj[rows+column[i]]);
+            return v;
+        }
+        private static int find(int[] parent, int i) {
+            while (parent[i] != i)
+                i = parent[i];
+            return i;
+        }
+        private static void pivot(Fraction[][] t, Fraction[] obj,
+                                  int row, int col) {
+            Fraction[] pr = t[row];
+            Fraction p = pr[col];
+            for (int j=0; j<pr.length; j++)
+                pr[j] = pr[j].divide(p);
+            for (Fraction[] r : t)
+                if (r != pr) eliminate(r, pr, col);
+            eliminate(obj, pr, col);
+        }
+        private static void eliminate(Fraction[] r, Fraction[] pr, int col) {
+            Fraction f = r[col];
+            if (f.compareTo(Fraction.ZERO) == 0) return;
+            for (int j=0; j<r.length; j++)
+                r[j] = r[j].subtract(f.multiply(pr[j]));
+        }
+    }
+    private static Fraction max(Fraction a, Fraction b) {
+        return (a.compareTo(b) >= 0) ? a : b;
+    }
     /** Locate collisions and resolve them to miniwaves. */
     private static List<FormationPiece> resolveCollisions(List<FormationPiece>
                                                           pieces) {
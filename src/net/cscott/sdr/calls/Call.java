@@ -1,5 +1,6 @@
 package net.cscott.sdr.calls;
 
+import java.io.Serializable;
 import java.util.Collections;
 import java.util.List;
 
@@ -85,24 +86,37 @@ public abstract class Call extends ExprFunc<Evaluator> {
     /** Create a Call object for a 'simple call' which takes no arguments. */
     public static Call makeSimpleCall(final String name, final Program program,
                                       final Comp def, final Rule rule) {
-        return new Call() {
-            @Override
-            public String getName() { return name; }
-            @Override
-            public Program getProgram() { return program; }
-            @Override
-            public Evaluator getEvaluator(DanceState ds, List<Expr> args) {
-                assert args.isEmpty();
-                return new Evaluator.Standard(def);
-            }
-            @Override
-            public int getMinNumberOfArguments() { return 0; }
-            @Override
-            public List<Expr> getDefaultArguments() {
-                return Collections.emptyList();
-            }
-            @Override
-            public Rule getRule() { return rule; }
-        };
+        return new SimpleCall(name, program, def, rule);
+    }
+    /** A call which takes no arguments; serializable so that it can be
+     *  saved in a {@link CallDBSnapshot}. */
+    private static class SimpleCall extends Call implements Serializable {
+        private final String name;
+        private final Program program;
+        private final Comp def;
+        private final Rule rule;
+        SimpleCall(String name, Program program, Comp def, Rule rule) {
+            this.name = name;
+            this.program = program;
+            this.def = def;
+            this.rule = rule;
+        }
+        @Override
+        public String getName() { return name; }
+        @Override
+        public Program getProgram() { return program; }
+        @Override
+        public Evaluator getEvaluator(DanceState ds, List<Expr> args) {
+            assert args.isEmpty();
+            return new Evaluator.Standard(def);
+        }
+        @Override
+        public int getMinNumberOfArguments() { return 0; }
+        @Override
+        public List<Expr> getDefaultArguments() {
+            return Collections.emptyList();
+        }
+        @Override
+        public Rule getRule() { return rule; }
     }
 }
@@ -1,18 +1,27 @@
 package net.cscott.sdr.calls;
 
+import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Logger;
 
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.sdr.DevSettings;
 import net.cscott.sdr.calls.ast.Apply;
 import net.cscott.sdr.calls.ast.Expr;
+import net.cscott.sdr.calls.grm.Grm;
 import net.cscott.sdr.calls.lists.A1List;
 import net.cscott.sdr.calls.lists.A2List;
 import net.cscott.sdr.calls.lists.BasicList;
@@ -24,6 +33,7 @@ import net.cscott.sdr.calls.lists.C4List;
 import net.cscott.sdr.calls.lists.MainstreamList;
 import net.cscott.sdr.calls.lists.PlusList;
 import net.cscott.sdr.calls.transform.CallFileLoader;
+import net.cscott.sdr.util.LRUCache;
 
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.CharStream;
@@ -34,15 +44,74 @@ import org.antlr.runtime.TokenStream;
 import org.junit.runner.RunWith;
 
 /** CallDB holds all the calls and concepts we know about.
- * It is a singleton class; its static constructor loads
- * all the call definitions from files and other classes.
+ * It is a singleton class.  Call definitions are loaded from files and
+ * other classes on demand, one {@link Program} at a time: a session which
+ * only parses BASIC calls never loads the C4 list.
+ * @doc.test Calls are loaded up to the highest program used so far:
+ *  js> db = CallDB.INSTANCE ; undefined
+ *  js> db.parse(Program.MAINSTREAM, "walk and dodge")
+ *  (Apply 'walk and dodge)
+ *  js> db.loadedProgram().includes(Program.MAINSTREAM)
+ *  true
+ *  js> db.lookup("triple trade").getProgram()
+ *  A1
+ *  js> db.loadedProgram().includes(Program.A1)
+ *  true
  * @author C. Scott Ananian
  */
 @RunWith(value=JDoctestRunner.class)
 public class CallDB {
+    private static final Logger LOG = Logger.getLogger(CallDB.class.getName());
+
+    /** The calls loaded so far: those of every program up to and
+     *  including {@link #program}, which is null if none have been loaded.
+     *  Instances are never mutated after they are published, so readers
+     *  need no lock; loading and reloading calls publishes a new one. */
+    private static final class Loaded {
+        final Program program;
+        final Map<String,Call> db;
+        /** Incremented whenever call definitions are reloaded. */
+        final long version;
+        /** For each program (indexed by ordinal), the {@link #version} at
+         *  which the definitions of it or any program it includes last
+         *  changed. */
+        final long[] versions;
+        /** Checksums of the call lists, as loaded, indexed by ordinal. */
+        final long[] fingerprints;
+        Loaded(Program program, Map<String,Call> db, long version,
+               long[] versions, long[] fingerprints) {
+            this.program = program;
+            this.db = Collections.unmodifiableMap(db);
+            this.version = version;
+            this.versions = versions;
+            this.fingerprints = fingerprints;
+        }
+    }
+    private static final Loaded NOTHING =
+        new Loaded(null, Collections.<String,Call>emptyMap(), 0,
+                   new long[Program.values().length],
+                   new long[Program.values().length]);
+    private volatile Loaded loaded = NOTHING;
+    /** The classes defining the complex calls and concepts of each
+     *  program. */
+    private static final Map<Program,Class<?>> LIST_CLASSES =
+        new EnumMap<Program,Class<?>>(Program.class);
+    static {
+        LIST_CLASSES.put(Program.BASIC, BasicList.class);
+        LIST_CLASSES.put(Program.MAINSTREAM, MainstreamList.class);
+        LIST_CLASSES.put(Program.PLUS, PlusList.class);
+        LIST_CLASSES.put(Program.A1, A1List.class);
+        LIST_CLASSES.put(Program.A2, A2List.class);
+        LIST_CLASSES.put(Program.C1, C1List.class);
+        LIST_CLASSES.put(Program.C2, C2List.class);
+        LIST_CLASSES.put(Program.C3A, C3aList.class);
+        LIST_CLASSES.put(Program.C3B, C3bList.class);
+        LIST_CLASSES.put(Program.C4, C4List.class);
+    }
     public static final CallDB INSTANCE = new CallDB();
-    private Map<String, Call> db = new HashMap<String,Call>();
-    /** Lookup a call in the database.
+
+    /** Lookup a call in the database, loading the calls of higher
+     *  programs if necessary.
      * @throws IllegalArgumentException if the call name is
      * unknown.
      * @doc.test
@@ -61,46 +130,198 @@ public class CallDB {
      *  java.lang.IllegalArgumentException: Unknown call: foobar bat
      */
     public Call lookup(String name) {
-        if (!db.containsKey(name))
+        Loaded l = loaded;
+        Call c;
+        while ((c = l.db.get(name)) == null && l.program != Program.C4)
+            l = load(next(l.program));
+        if (c == null)
             throw new IllegalArgumentException("Unknown call: "+name);
-        return db.get(name);
+        return c;
+    }
+    /** All the calls in the database.  Iterating over this collection (or
+     *  asking its size) loads the calls of every program. */
+    public final Collection<Call> allCalls = new AbstractCollection<Call>() {
+        @Override
+        public Iterator<Call> iterator() {
+            return Collections.unmodifiableCollection
+                (load(Program.C4).db.values()).iterator();
+        }
+        @Override
+        public int size() { return load(Program.C4).db.size(); }
+    };
+    /** Return the highest program whose calls have been loaded, or null
+     *  if no calls have been loaded yet. */
+    public Program loadedProgram() { return loaded.program; }
+
+    /** Return the number of times call definitions have been reloaded.
+     *  Caches of anything derived from the definitions can compare this
+     *  with the version they were made at, or more selectively use
+     *  {@link #version(Program)}. */
+    public long version() { return loaded.version; }
+    /** Return the {@link #version()} at which the definitions of calls in
+     *  the given program, or any program it includes, last changed.
+     *  Reloading a PLUS call list changes the version of PLUS and all the
+     *  programs above it, but not that of BASIC or MAINSTREAM; a cache
+     *  keyed by program only has to discard entries whose version has
+     *  changed. */
+    public long version(Program program) {
+        return loaded.versions[program.ordinal()];
     }
-    public final Collection<Call> allCalls = 
-        Collections.unmodifiableCollection(db.values());
 
-    private CallDB() {
-        this.reload();
+    private CallDB() { }
+    /** Reload the call lists which have changed since they were loaded,
+     *  returning the programs reloaded.  Lists which haven't been loaded
+     *  yet will be read fresh when they are first needed.
+     * @doc.test Reloading a list replaces its calls and changes its version,
+     *  but not the versions of the programs below it:
+     *  js> db = CallDB.INSTANCE ; undefined
+     *  js> db.reload()
+     *  []
+     *  js> db.parse(Program.PLUS, "trade and roll"); undefined
+     *  js> roll = db.lookup("and roll"); basic = db.lookup("square thru"); undefined
+     *  js> v = db.version(); vm = db.version(Program.MAINSTREAM); undefined
+     *  js> db.reload(Program.PLUS)
+     *  js> db.version() - v
+     *  1
+     *  js> db.version(Program.PLUS) == db.version()
+     *  true
+     *  js> db.version(Program.MAINSTREAM) == vm
+     *  true
+     *  js> db.lookup("and roll") === roll
+     *  false
+     *  js> db.lookup("square thru") === basic
+     *  true
+     */
+    public synchronized List<Program> reload() {
+        Loaded l = loaded;
+        List<Program> reloaded = new ArrayList<Program>();
+        for (Program p = l.program; p != null; p = previous(p))
+            if (fingerprint(p) != l.fingerprints[p.ordinal()])
+                reloaded.add(0, p);
+        for (Program p : reloaded)
+            reload(p);
+        return reloaded;
+    }
+    /** Reload the calls defined by the given program's call list and
+     *  class, replacing the previous definitions atomically.  Readers
+     *  see either all of the old definitions or all of the new ones.
+     *  Nothing is done if the program's calls haven't been loaded yet. */
+    public synchronized void reload(Program program) {
+        Loaded l = loaded;
+        if (l.program == null || !l.program.includes(program))
+            return; // will be read fresh when needed
+        long start = System.nanoTime();
+        List<Call> calls = CallDBSnapshot.read(program);
+        if (calls == null)
+            calls = CallDBSnapshot.parse(program);
+        Map<String,Call> db = new HashMap<String,Call>(l.db);
+        for (Iterator<Call> it = db.values().iterator(); it.hasNext(); )
+            if (it.next().getProgram() == program)
+                it.remove();
+        add(calls, db);
+        loadFromClass(LIST_CLASSES.get(program), db);
+        long version = l.version + 1;
+        long[] versions = l.versions.clone();
+        for (Program p : Program.values())
+            if (p.includes(program))
+                versions[p.ordinal()] = version;
+        long[] fingerprints = l.fingerprints.clone();
+        fingerprints[program.ordinal()] = fingerprint(program);
+        this.loaded =
+            new Loaded(l.program, db, version, versions, fingerprints);
+        LOG.info("Reloaded "+program+" calls (version "+version+") in "+
+                 (System.nanoTime()-start)/1000000+" ms");
+    }
+    /** Ensure that the calls of the given program (and all the programs it
+     *  includes) are loaded, along with the grammar used to parse them, so
+     *  that the first call parsed from that program isn't slow. */
+    public void prewarm(Program program) {
+        load(program);
+        try {
+            grammar(program);
+        } catch (Exception e) {
+            assert false : "grammars not generated yet? "+e;
+        }
+        Grm.grammar(program);
     }
-    /** Reload call definitions from resource files and classes. */
-    public void reload() {
-        this.db.clear();
+    /** Return the program after the given one, or the first program if
+     *  the argument is null. */
+    private static Program next(Program program) {
+        return Program.values()[program == null ? 0 : program.ordinal()+1];
+    }
+    /** Return the program before the given one, or null if it is the
+     *  first. */
+    private static Program previous(Program program) {
+        int i = program.ordinal();
+        return (i == 0) ? null : Program.values()[i-1];
+    }
+    /** Checksum the given program's call list, or return zero if it can't
+     *  be read. */
+    private static long fingerprint(Program program) {
+        try {
+            return CallDBSnapshot.fingerprint(program);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    /** Load the calls of the given program and all the programs it
+     *  includes, returning the new contents of the database.  The calls
+     *  defined by each program's call list are read from a
+     *  {@link CallDBSnapshot} if an up-to-date one is available; otherwise
+     *  the lists are parsed (in parallel). */
+    private Loaded load(Program program) {
+        Loaded l = loaded;
+        if (l.program != null && l.program.includes(program))
+            return l; // already done
+        synchronized (this) {
+            return loadMore(program);
+        }
+    }
+    private Loaded loadMore(Program program) {
+        assert Thread.holdsLock(this);
+        Loaded l = loaded;
+        if (l.program != null && l.program.includes(program))
+            return l; // another thread beat us to it
+        long start = System.nanoTime();
         // okay, first load the call definition lists.
-        CallFileLoader.load(resource("basic"), db);
-        CallFileLoader.load(resource("mainstream"), db);
-        CallFileLoader.load(resource("plus"), db);
-        CallFileLoader.load(resource("a1"), db);
-        CallFileLoader.load(resource("a2"), db);
-        CallFileLoader.load(resource("c1"), db);
-        CallFileLoader.load(resource("c2"), db);
-        CallFileLoader.load(resource("c3a"), db);
-        CallFileLoader.load(resource("c3b"), db);
-        CallFileLoader.load(resource("c4"), db);
+        List<Program> programs = new ArrayList<Program>();
+        for (Program p = next(l.program); ; p = next(p)) {
+            programs.add(p);
+            if (p == program) break;
+        }
+        List<Call> calls = new ArrayList<Call>();
+        List<URL> unsaved = new ArrayList<URL>();
+        for (Program p : programs) {
+            List<Call> saved = CallDBSnapshot.read(p);
+            if (saved == null)
+                unsaved.add(CallDBSnapshot.callList(p));
+            else
+                calls.addAll(saved);
+        }
+        calls.addAll(CallFileLoader.loadAll(unsaved));
+        Map<String,Call> db = new HashMap<String,Call>(l.db);
+        add(calls, db);
         // now load complex calls and concepts.
-        loadFromClass(BasicList.class);
-        loadFromClass(MainstreamList.class);
-        loadFromClass(PlusList.class);
-        loadFromClass(A1List.class);
-        loadFromClass(A2List.class);
-        loadFromClass(C1List.class);
-        loadFromClass(C2List.class);
-        loadFromClass(C3aList.class);
-        loadFromClass(C3bList.class);
-        loadFromClass(C4List.class);
-    }
-    private static URL resource(String name) {
-        return CallDB.class.getClassLoader().getResource("net/cscott/sdr/calls/lists/"+name+".calls");
-    }
-    private void loadFromClass(Class<?> c) {
+        long[] fingerprints = l.fingerprints.clone();
+        for (Program p : programs) {
+            loadFromClass(LIST_CLASSES.get(p), db);
+            fingerprints[p.ordinal()] = fingerprint(p);
+        }
+        this.loaded = l = new Loaded(program, db, l.version, l.versions,
+                                     fingerprints);
+        LOG.info("Loaded "+db.size()+" calls through "+program+" ("+
+                 unsaved.size()+" of "+programs.size()+" lists parsed) in "+
+                 (System.nanoTime()-start)/1000000+" ms");
+        return l;
+    }
+    private static void add(List<Call> calls, Map<String,Call> db) {
+        for (Call call : calls) {
+            assert !db.containsKey(call.getName()) :
+                "duplicate call: "+call.getName();
+            db.put(call.getName(), call);
+        }
+    }
+    private static void loadFromClass(Class<?> c, Map<String,Call> db) {
         // iterate through all fields in class, and add fields of type 'Call'
         for (Field f : c.getFields()) {
             if (Call.class.isAssignableFrom(f.getType()) &&
@@ -177,28 +398,158 @@ public class CallDB {
     public Apply parse(Program program, String s) {
         if (program!=Program.C4 && DevSettings.ONLY_C4_GRAMMAR)
             program=Program.C4; // speed up compilation during development
-        String pkgName = "net.cscott.sdr.calls.lists.";
-        String baseName = program.toTitleCase()+"Grammar";
-        String parserName = baseName+"Parser";
-        String lexerName = baseName+"Lexer";
-	Expr result=null;
-
-        try {
-            Lexer lexer = (Lexer) Class.forName(pkgName+lexerName)
-                .getConstructor(CharStream.class).newInstance
-                (new ANTLRStringStream(s.replace('-',' ').toLowerCase()));
-            CommonTokenStream tokens = new CommonTokenStream(lexer);
-            Parser parser = (Parser) Class.forName(pkgName+parserName)
-                .getConstructor(TokenStream.class).newInstance(tokens);
-            Method m = parser.getClass().getMethod("start");
-            result = (Expr) m.invoke(parser);
-            if (lexer.getNumberOfSyntaxErrors() > 0 ||
-                parser.getNumberOfSyntaxErrors() > 0 ||
-                result == null)
-                throw new Exception();
-        } catch (Exception e) {
+        String input = normalize(s);
+        ParseKey key = new ParseKey(program, input);
+        Object cached = parseCache.get(key);
+        if (cached == null) {
+            load(program);
+            Expr result = null;
+            try {
+                result = grammar(program).parse(input);
+            } catch (Exception e) {
+                /* fall through: not on list */
+            }
+            cached = (result == null) ? NOT_ON_LIST : new Apply(result);
+            parseCache.put(key, cached);
+        }
+        if (cached == NOT_ON_LIST)
             throw new BadCallException("Not on list: "+s);
+        return (Apply) cached;
+    }
+    /** Canonicalize the text of a call, so that equivalent inputs share
+     *  a {@link #parseCache()} entry: the grammars are lower case, treat
+     *  hyphens like spaces, and ignore the amount of whitespace between
+     *  words. */
+    private static String normalize(String s) {
+        return s.replace('-',' ').toLowerCase()
+            .replaceAll("[ \t\r\n]+", " ").trim();
+    }
+
+    // ---- parse cache
+
+    /** Default maximum number of entries in the {@link #parseCache()}. */
+    public static final int PARSE_CACHE_SIZE = 1024;
+    /** Cache value recording that the input could not be parsed. */
+    private static final Object NOT_ON_LIST = new Object();
+    /** Maps a program and normalized call text to the (immutable)
+     *  {@link Apply} parsed from it, or to {@link #NOT_ON_LIST}.  Parses
+     *  depend only on the grammars, which are compiled, and not on the
+     *  call definitions, so the cache survives reloading them. */
+    private final LRUCache<ParseKey,Object> parseCache =
+        new LRUCache<ParseKey,Object>(PARSE_CACHE_SIZE);
+    /** Return the cache of parse results used by
+     *  {@link #parse(Program,String)}, so that its hit and miss counts can
+     *  be monitored and its capacity adjusted.
+     * @doc.test Inputs which differ only in case, hyphens, or spacing
+     *  share a cache entry, as do failures:
+     *  js> db = CallDB.INSTANCE ; undefined
+     *  js> a = db.parse(Program.PLUS, "Trade and Roll"); undefined
+     *  js> hits = db.parseCache().hits(); undefined
+     *  js> db.parse(Program.PLUS, "trade  and-roll") === a
+     *  true
+     *  js> try { db.parse(Program.BASIC, "trade and roll") } catch (e) { }
+     *  js> try {
+     *    >   db.parse(Program.BASIC, "Trade and Roll")
+     *    > } catch (e) {
+     *    >   print(e.javaException)
+     *    > }
+     *  net.cscott.sdr.calls.BadCallException: Not on list: Trade and Roll
+     *  js> db.parseCache().hits() - hits
+     *  2
+     */
+    public LRUCache<?,?> parseCache() { return parseCache; }
+
+    /** Key for the {@link #parseCache()}. */
+    private static class ParseKey {
+        final Program program;
+        final String input;
+        ParseKey(Program program, String input) {
+            this.program = program;
+            this.input = input;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ParseKey)) return false;
+            ParseKey pk = (ParseKey) o;
+            return this.program == pk.program && this.input.equals(pk.input);
+        }
+        @Override
+        public int hashCode() {
+            return 31*program.hashCode() + input.hashCode();
+        }
+    }
+
+    // ---- grammar factories
+
+    private static final Map<Program,GrammarFactory> grammars =
+        new EnumMap<Program,GrammarFactory>(Program.class);
+    /** Return the (shared) factory for the given program's grammar. */
+    private static GrammarFactory grammar(Program program) throws Exception {
+        synchronized (grammars) {
+            GrammarFactory gf = grammars.get(program);
+            if (gf == null) {
+                gf = new GrammarFactory(program);
+                grammars.put(program, gf);
+            }
+            return gf;
+        }
+    }
+    /**
+     * Creates and recycles the ANTLR lexer and parser for the grammar of a
+     * single {@link Program}.  The grammar classes are generated from the
+     * call database after this class is compiled, so they have to be found
+     * by reflection; but we only look them up once.  Each thread keeps an
+     * idle lexer/parser pair which is reset for every new input.
+     */
+    private static class GrammarFactory {
+        private final Constructor<? extends Lexer> lexerCons;
+        private final Constructor<? extends Parser> parserCons;
+        private final Method start;
+        private final ThreadLocal<Recognizers> idle =
+            new ThreadLocal<Recognizers>();
+        GrammarFactory(Program program) throws Exception {
+            String baseName = "net.cscott.sdr.calls.lists." +
+                program.toTitleCase() + "Grammar";
+            this.lexerCons = Class.forName(baseName+"Lexer")
+                .asSubclass(Lexer.class).getConstructor(CharStream.class);
+            this.parserCons = Class.forName(baseName+"Parser")
+                .asSubclass(Parser.class).getConstructor(TokenStream.class);
+            this.start = parserCons.getDeclaringClass().getMethod("start");
+        }
+        /** Parse the given (normalized) input, returning null if it
+         *  contains syntax errors. */
+        Expr parse(String input) throws Exception {
+            CharStream cs = new ANTLRStringStream(input);
+            Recognizers r = idle.get();
+            if (r == null) {
+                r = new Recognizers(this, cs);
+            } else {
+                idle.set(null); // in case we are reentered
+                r.reset(cs);
+            }
+            Expr result = (Expr) start.invoke(r.parser);
+            // only recycle recognizers which finished normally
+            idle.set(r);
+            if (r.lexer.getNumberOfSyntaxErrors() > 0 ||
+                r.parser.getNumberOfSyntaxErrors() > 0)
+                return null;
+            return result;
+        }
+    }
+    /** A lexer and parser, connected by a token stream. */
+    private static class Recognizers {
+        final Lexer lexer;
+        final CommonTokenStream tokens;
+        final Parser parser;
+        Recognizers(GrammarFactory gf, CharStream cs) throws Exception {
+            this.lexer = gf.lexerCons.newInstance(cs);
+            this.tokens = new CommonTokenStream(lexer);
+            this.parser = gf.parserCons.newInstance(tokens);
+        }
+        void reset(CharStream cs) {
+            lexer.setCharStream(cs);
+            tokens.setTokenSource(lexer);
+            parser.setTokenStream(tokens);
         }
-	return new Apply(result);
     }
 }
@@ -0,0 +1,181 @@
+package net.cscott.sdr.calls;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import net.cscott.jdoctest.JDoctestRunner;
+import net.cscott.sdr.calls.ast.AstNode;
+import net.cscott.sdr.calls.transform.CallFileLoader;
+
+import org.junit.runner.RunWith;
+
+/**
+ * A {@link CallDBSnapshot} is a precompiled copy of the calls defined in
+ * one of the call list resources, which {@link CallDB} reads instead of
+ * parsing the list.  The build writes one for each {@link Program} with
+ * {@link #main(String[])}.
+ * A snapshot is ignored (and the list parsed) if it is missing, has the
+ * wrong format version, or was made from a call list whose contents
+ * differ from the current one; a snapshot made by classes which no longer
+ * match the current ones fails to deserialize and is likewise ignored.
+ * @doc.test A snapshot round trip:
+ *  js> calls = CallDBSnapshot.parse(Program.PLUS); undefined
+ *  js> out = new java.io.ByteArrayOutputStream(); undefined
+ *  js> CallDBSnapshot.write(Program.PLUS, calls, out)
+ *  js> bytes = out.toByteArray(); undefined
+ *  js> function input() { return new java.io.ByteArrayInputStream(bytes) }
+ *  js> copy = CallDBSnapshot.read(Program.PLUS, input()); undefined
+ *  js> copy.size() == calls.size()
+ *  true
+ *  js> copy.get(0) === calls.get(0)
+ *  false
+ *  js> copy.get(0).equals(calls.get(0))
+ *  true
+ *  js> // the snapshot of one list is stale for any other list
+ *  js> CallDBSnapshot.read(Program.BASIC, input())
+ *  null
+ *  js> // as is a snapshot of different call lists
+ *  js> bytes[25] ^= 1; undefined
+ *  js> CallDBSnapshot.read(Program.PLUS, input())
+ *  null
+ * @author C. Scott Ananian
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class CallDBSnapshot {
+    private CallDBSnapshot() { /* don't allow constructor */ }
+
+    /** Format version; bump it whenever the layout changes. */
+    private static final int VERSION = 2;
+    private static final String MAGIC = "SDR call snapshot";
+    private static final String LISTS = "net/cscott/sdr/calls/lists/";
+
+    /** Return the name of the call list resource for the given program,
+     *  which is also the base name of its snapshot. */
+    private static String listName(Program program) {
+        return program.name().toLowerCase();
+    }
+    /** Return the call list resource defining the calls of the given
+     *  program. */
+    public static URL callList(Program program) {
+        return resource(LISTS+listName(program)+".calls");
+    }
+    /** Return the resource name of the snapshot of the given program's
+     *  call list. */
+    public static String snapshot(Program program) {
+        return LISTS+listName(program)+".snapshot";
+    }
+    private static URL resource(String name) {
+        return CallDBSnapshot.class.getClassLoader().getResource(name);
+    }
+    /** Parse the call list of the given program. */
+    public static List<Call> parse(Program program) {
+        return CallFileLoader.load(callList(program));
+    }
+    /** Checksum the contents of the given program's call list. */
+    static long fingerprint(Program program) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[8192];
+        InputStream in = callList(program).openStream();
+        try {
+            for (int n; (n = in.read(buf)) > 0; )
+                crc.update(buf, 0, n);
+        } finally {
+            in.close();
+        }
+        // distinguish identical lists for different programs
+        crc.update(listName(program).getBytes("utf-8"));
+        return crc.getValue();
+    }
+
+    /** Read the snapshot resource for the given program, returning null
+     *  if it is missing, stale, or unreadable. */
+    static List<Call> read(Program program) {
+        URL u = resource(snapshot(program));
+        if (u == null) return null;
+        try {
+            InputStream in = u.openStream();
+            try {
+                return read(program, in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    /** Read a snapshot of the given program's call list from the given
+     *  stream, returning null if it is stale or unreadable. */
+    public static List<Call> read(Program program, InputStream in) {
+        try {
+            DataInputStream din =
+                new DataInputStream(new BufferedInputStream(in));
+            if (!MAGIC.equals(din.readUTF()) ||
+                din.readInt() != VERSION ||
+                din.readLong() != fingerprint(program))
+                return null;
+            ObjectInputStream oin = new ObjectInputStream(din);
+            int n = oin.readInt();
+            List<Call> result = new ArrayList<Call>(n);
+            for (int i = 0; i < n; i++)
+                result.add((Call) oin.readObject());
+            return result;
+        } catch (IOException e) {
+            return null; // includes incompatible classes
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+    /** Write a snapshot of the given calls, which should be those defined
+     *  by the current call list of the given program. */
+    public static void write(Program program, List<Call> calls,
+                             OutputStream out)
+        throws IOException {
+        DataOutputStream dout =
+            new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeUTF(MAGIC);
+        dout.writeInt(VERSION);
+        dout.writeLong(fingerprint(program));
+        ObjectOutputStream oout = new ObjectOutputStream(dout) {
+            { enableReplaceObject(true); }
+            /** Write structurally-equal subtrees only once. */
+            @Override
+            protected Object replaceObject(Object obj) {
+                return (obj instanceof AstNode) ?
+                    AstNode.intern((AstNode) obj) : obj;
+            }
+        };
+        oout.writeInt(calls.size());
+        for (Call c : calls)
+            oout.writeObject(c);
+        oout.flush();
+    }
+
+    /** Parse the call lists and write a snapshot of each to the directory
+     *  named by the first argument. */
+    public static void main(String[] args) throws IOException {
+        for (Program program : Program.values()) {
+            File f = new File(args[0], listName(program)+".snapshot");
+            OutputStream out = new FileOutputStream(f);
+            try {
+                write(program, parse(program), out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
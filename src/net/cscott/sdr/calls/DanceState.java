@@ -2,14 +2,12 @@ package net.cscott.sdr.calls;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
 import java.util.Set;
 import java.util.Stack;
-import java.util.TreeMap;
 
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.jutil.Factories;
@@ -18,6 +16,7 @@ import net.cscott.sdr.calls.TaggedFormation.Tag;
 import net.cscott.sdr.calls.ast.Prim;
 import net.cscott.sdr.util.Fraction;
 import net.cscott.sdr.util.SdrToString;
+import net.cscott.sdr.util.Timeline;
 import net.cscott.sdr.util.Tools.ListMultiMap;
 import static net.cscott.sdr.util.Tools.mml;
 
@@ -29,15 +28,19 @@ import org.junit.runner.RunWith;
  * dance: the current formation and the queues of dancer actions and calls. It
  * includes a link to a {@link DanceProgram} which is the static information
  * about the dance.
+ * <p>
+ * The formations and each dancer's movements are kept in copy-on-write
+ * {@link Timeline}s, so a {@link #snapshot()} of a dance state costs time
+ * proportional to the number of dancers, not to the length of the dance.
  *
  * @author C. Scott Ananian
  */
 @RunWith(value=JDoctestRunner.class)
 public class DanceState {
     public final DanceProgram dance;
-    private final NavigableMap<Fraction, Formation> formations;
+    private Timeline<Formation> formations;
     private final ListMultiMap<Dancer, TimedAction> actions; // XXX?
-    private final Map<Dancer, NavigableMap<Fraction, DancerPath>> movements;
+    private final Map<Dancer, Timeline<DancerPath>> movements;
     // this is used to keep track of a 'designated dancer' stack
     private final Stack<Set<Dancer>> designatedStack;
     /** This is an interface into the environment of the dance engine.
@@ -48,14 +51,14 @@ public class DanceState {
     public DanceState(DanceProgram dance, Formation f,
                       Map<String,String> properties) {
         this.dance = dance;
-        this.formations = new TreeMap<Fraction,Formation>();
+        this.formations = new Timeline<Formation>();
         this.formations.put(Fraction.ZERO, f);
         this.actions = mml();
         // initialize movements
-        this.movements = new LinkedHashMap<Dancer,NavigableMap<Fraction,DancerPath>>
+        this.movements = new LinkedHashMap<Dancer,Timeline<DancerPath>>
             (f.dancers().size());
         for (Dancer d: f.dancers())
-            this.movements.put(d, new TreeMap<Fraction,DancerPath>());
+            this.movements.put(d, new Timeline<DancerPath>());
         // xxx: initialize actions?
         this.designatedStack = new Stack<Set<Dancer>>();
         this.properties = properties;
@@ -64,6 +67,22 @@ public class DanceState {
     public DanceState(DanceProgram dance, Formation f) {
         this(dance, f, Collections.<String,String>emptyMap());
     }
+    /** Copy constructor; see {@link #snapshot()}. */
+    private DanceState(DanceState ds) {
+        this.dance = ds.dance;
+        this.formations = ds.formations.share();
+        this.actions = mml();
+        for (Dancer d : ds.actions.keySet())
+            this.actions.addAll(d, ds.actions.getValues(d));
+        this.movements = new LinkedHashMap<Dancer,Timeline<DancerPath>>
+            (ds.movements.size());
+        for (Map.Entry<Dancer,Timeline<DancerPath>> me :
+                 ds.movements.entrySet())
+            this.movements.put(me.getKey(), me.getValue().share());
+        this.designatedStack = new Stack<Set<Dancer>>();
+        this.designatedStack.addAll(ds.designatedStack);
+        this.properties = ds.properties;
+    }
 
     @Override
     public String toString() {
@@ -78,11 +97,47 @@ public class DanceState {
 
     /** Return the last in the list of timed formations. */
     public Formation currentFormation() {
-        return formations.lastEntry().getValue();
+        return formations.lastValue();
     }
     /** Return the time of the last formation. */
     public Fraction currentTime() {
-        return formations.lastKey();
+        return formations.lastTime();
+    }
+
+    /**
+     * Return a copy of this dance state, which is unaffected by further
+     * changes to this state (and vice versa).  The formations and
+     * movements are shared until one of the states is changed, so this is
+     * cheap enough to keep a snapshot after every call for undo.
+     * @doc.test
+     *  js> ds = new DanceState(new DanceProgram(Program.PLUS),
+     *    >                     Formation.FOUR_SQUARE); undefined;
+     *  js> prim = net.cscott.sdr.calls.ast.AstNode.valueOf('(Prim 0, 1, none, 2)'); undefined
+     *  js> d = StandardDancer.COUPLE_1_BOY; undefined
+     *  js> ds.add(d, EvalPrim.apply(d, ds.currentFormation(), prim))
+     *  js> snap = ds.snapshot(); undefined
+     *  js> ds.add(d, EvalPrim.apply(d, ds.currentFormation(), prim))
+     *  js> ds.currentTime() + " " + snap.currentTime()
+     *  4/1 2/1
+     *  js> ds.movements(d).size() + " " + snap.movements(d).size()
+     *  2 1
+     *  js> snap.formationAt(net.cscott.sdr.util.Fraction.ZERO) ===
+     *    >   ds.formationAt(net.cscott.sdr.util.Fraction.ZERO)
+     *  true
+     */
+    public DanceState snapshot() {
+        return new DanceState(this);
+    }
+    /** Return the formation timeline, ready to be modified. */
+    private Timeline<Formation> writableFormations() {
+        return formations = formations.writable();
+    }
+    /** Return the given dancer's movement timeline, ready to be
+     *  modified. */
+    private Timeline<DancerPath> writableMovements(Dancer d) {
+        Timeline<DancerPath> dmove = movements.get(d).writable();
+        movements.put(d, dmove);
+        return dmove;
     }
 
     /**
@@ -117,6 +172,54 @@ public class DanceState {
         return nds;
     }
 
+    /**
+     * Return a new independent dance state with the same static state,
+     * formations, movements and actions as this one, but with every
+     * {@link Dancer} replaced by its image under the given map.  This lets
+     * the result of a sub-evaluation be reused for a different set of
+     * dancers standing in the same positions.
+     * @doc.test
+     *  js> const SD = StandardDancer;
+     *  js> ds = new DanceState(new DanceProgram(Program.PLUS),
+     *    >                     Formation.FOUR_SQUARE); undefined;
+     *  js> prim = net.cscott.sdr.calls.ast.AstNode.valueOf('(Prim 0, 1, none, 2)'); undefined
+     *  js> ds.add(SD.COUPLE_1_BOY, EvalPrim.apply(SD.COUPLE_1_BOY,
+     *    >                                        ds.currentFormation(), prim))
+     *  js> m = new java.util.HashMap(); undefined
+     *  js> m.put(SD.COUPLE_1_BOY, SD.COUPLE_2_BOY); m.put(SD.COUPLE_1_GIRL, SD.COUPLE_2_GIRL); undefined
+     *  js> m.put(SD.COUPLE_3_BOY, SD.COUPLE_4_BOY); m.put(SD.COUPLE_3_GIRL, SD.COUPLE_4_GIRL); undefined
+     *  js> nds = ds.map(m); nds.dancers()
+     *  [COUPLE 2 BOY, COUPLE 2 GIRL, COUPLE 4 BOY, COUPLE 4 GIRL]
+     *  js> nds.movements(SD.COUPLE_2_BOY)
+     *  [DancerPath[from=-1,-1,n,to=-1,0,n,[SWEEP_LEFT],time=2,pointOfRotation=<null>]]
+     *  js> nds.currentFormation().toStringDiagram()
+     *  4Gv  4Bv
+     *  2B^
+     *       2G^
+     *  js> nds.currentTime()
+     *  2/1
+     */
+    public DanceState map(Map<Dancer,Dancer> map) {
+        DanceState nds = new DanceState
+            (dance, formations.value(0).map(map), properties);
+        for (int i=0; i<this.formations.size(); i++)
+            nds.formations.put(this.formations.time(i),
+                               this.formations.value(i).map(map));
+        for (Dancer d : this.actions.keySet())
+            nds.actions.addAll(map.get(d), this.actions.getValues(d));
+        // dancer paths don't mention dancers, so the timelines can be shared
+        for (Map.Entry<Dancer,Timeline<DancerPath>> me :
+                this.movements.entrySet())
+            nds.movements.put(map.get(me.getKey()), me.getValue().share());
+        for (Set<Dancer> designated : this.designatedStack) {
+            Set<Dancer> nd = new LinkedHashSet<Dancer>(designated.size());
+            for (Dancer d : designated)
+                nd.add(map.containsKey(d) ? map.get(d) : d);
+            nds.pushDesignated(nd);
+        }
+        return nds;
+    }
+
     /** Add the set of designated dancers to the stack stored in the
      *  {@link DanceState}.
      * @param designated
@@ -172,21 +275,21 @@ public class DanceState {
      */
     public void add(Dancer d, DancerPath dp) {
         // add to list of dancer paths
-	NavigableMap<Fraction,DancerPath> dmove = this.movements.get(d);
-	Fraction last = dmove.isEmpty() ? Fraction.ZERO : dmove.lastKey();
+	Timeline<DancerPath> dmove = writableMovements(d);
+	Fraction last = dmove.isEmpty() ? Fraction.ZERO : dmove.lastTime();
         Fraction next = last.add(dp.time);
         dmove.put(next, dp);
         // get formation with time == next, or "just before"
-        if (!this.formations.containsKey(next)) {
+        Timeline<Formation> formations = writableFormations();
+        int i = formations.indexOf(next);
+        if (i < 0) {
             // clone the formation "just before"
-            this.formations.put(next,
-                                this.formations.floorEntry(next).getValue());
+            i = formations.put(next, formations.floor(next));
         }
         // okay, now iterate from 'next' forward, adjusting this dancer's
         // location
-        for (Map.Entry<Fraction, Formation> me:
-             this.formations.tailMap(next).entrySet()) {
-            me.setValue(me.getValue().move(d, dp.to));
+        for ( ; i < formations.size(); i++) {
+            formations.set(i, formations.value(i).move(d, dp.to));
         }
         // done!
     }
@@ -227,16 +330,16 @@ public class DanceState {
      *  [DancerPath[from=1,1,s,to=1,1,w,[ROLL_RIGHT],time=1,pointOfRotation=SINGLE_DANCER], DancerPath[from=1,1,w,[ROLL_RIGHT],to=1,1,w,[ROLL_RIGHT],time=4,pointOfRotation=<null>]]
      */
     public void syncDancers(Fraction time) {
-        for (Map.Entry<Dancer,NavigableMap<Fraction,DancerPath>> me :
-                this.movements.entrySet()) {
-            Dancer d = me.getKey();
-            NavigableMap<Fraction,DancerPath> dmove = me.getValue();
-            Fraction lastTime = dmove.isEmpty()? Fraction.ZERO: dmove.lastKey();
+        for (Dancer d : this.movements.keySet()) {
+            Timeline<DancerPath> dmove = this.movements.get(d);
+            Fraction lastTime = dmove.isEmpty()? Fraction.ZERO: dmove.lastTime();
             assert lastTime.compareTo(time) <= 0;
             if (lastTime.equals(time))
                 continue;
+            dmove = writableMovements(d);
             // try to scale last path, if it was a stand still
-            DancerPath dp = dmove.get(lastTime), nothingPath;
+            DancerPath dp = dmove.isEmpty() ? null : dmove.lastValue();
+            DancerPath nothingPath;
             if (dp == null || !dp.isStandStill()) {
                 // create new path
                 Prim nothingPrim =
@@ -248,7 +351,7 @@ public class DanceState {
                 Fraction startTime = lastTime.subtract(dp.time);
                 nothingPath =
                     dp.scaleTime(time.subtract(startTime).divide(dp.time));
-                dmove.remove(lastTime);
+                dmove.truncate(dmove.size()-1);
             }
             dmove.put(time, nothingPath);
         }
@@ -273,10 +376,11 @@ public class DanceState {
      *  2/1
      */
     public Fraction lastMovement() {
-        for (Fraction time : formations.descendingKeySet()) {
-            for (NavigableMap<Fraction,DancerPath> dmove: movements.values()) {
-                Map.Entry<Fraction,DancerPath> e = dmove.ceilingEntry(time);
-                if (e!=null && !e.getValue().isStandStill())
+        for (int i = formations.size()-1; i >= 0; i--) {
+            Fraction time = formations.time(i);
+            for (Timeline<DancerPath> dmove: movements.values()) {
+                int j = dmove.ceilingIndex(time);
+                if (j < dmove.size() && !dmove.value(j).isStandStill())
                     // found a dancer moving at this time!
                     return time;
             }
@@ -315,16 +419,16 @@ public class DanceState {
      */
     public void splitTime(Fraction time) {
         if (formations.get(time) == null) {
-            formations.put(time, formations.floorEntry(time).getValue());
+            writableFormations().put(time, formations.floor(time));
         }
         eachDancer:
         for (Dancer d : this.movements.keySet()) {
-            NavigableMap<Fraction,DancerPath> dmove = this.movements.get(d);
-            Map.Entry<Fraction,DancerPath> e = dmove.ceilingEntry(time);
-            if (e==null) continue;
-            DancerPath dp = e.getValue();
+            Timeline<DancerPath> dmove = this.movements.get(d);
+            int j = dmove.ceilingIndex(time);
+            if (j == dmove.size()) continue;
+            DancerPath dp = dmove.value(j);
             if (!dp.isStandStill()) continue;
-            Fraction endTime = e.getKey();
+            Fraction endTime = dmove.time(j);
             Fraction startTime = endTime.subtract(dp.time);
             if (time.equals(endTime) || time.equals(startTime)) continue;
             assert startTime.compareTo(time) < 0;
@@ -337,6 +441,7 @@ public class DanceState {
             DancerPath second = dp.scaleTime
                 (endTime.subtract(time).divide(dp.time));
             assert first.time.add(second.time).equals(dp.time);
+            dmove = writableMovements(d);
             dmove.put(time, first);
             dmove.put(endTime, second);
         }
@@ -366,18 +471,19 @@ public class DanceState {
      *  0,2
      */
     public void unsyncDancers() {
-        eachDancer:
-        for (NavigableMap<Fraction,DancerPath> dmove : this.movements.values()){
-            Iterator<Fraction> it= dmove.navigableKeySet().descendingIterator();
-            while (it.hasNext()) {
-                if (dmove.get(it.next()).isStandStill())
-                    it.remove();
-                else
-                    continue eachDancer;
-            }
+        for (Dancer d : this.movements.keySet()) {
+            Timeline<DancerPath> dmove = this.movements.get(d);
+            int n = dmove.size();
+            while (n > 0 && dmove.value(n-1).isStandStill())
+                n--;
+            if (n < dmove.size())
+                writableMovements(d).truncate(n);
         }
         // Remove entire TimedFormation if all dancers were standing still
-        formations.tailMap(lastMovement(), false).clear();
+        Fraction last = lastMovement();
+        int keep = formations.floorIndex(last) + 1;
+        if (keep < formations.size())
+            writableFormations().truncate(keep);
     }
 
     /**
@@ -413,13 +519,14 @@ public class DanceState {
     public List<TimedFormation> formations() {
         List<TimedFormation> result =
             new ArrayList<TimedFormation>(this.formations.size());
-        for (Map.Entry<Fraction,Formation> me: this.formations.entrySet()) {
-            result.add(new TimedFormation(me.getValue(), me.getKey(), true));
+        for (int i=0; i<this.formations.size(); i++) {
+            result.add(new TimedFormation(this.formations.value(i),
+                                          this.formations.time(i), true));
         }
         return Collections.unmodifiableList(result);
     }
     /** Return the latest formation at or preceding the given time. */
     public Formation formationAt(Fraction time) {
-        return this.formations.floorEntry(time).getValue();
+        return this.formations.floor(time);
     }
 }
@@ -0,0 +1,118 @@
+package net.cscott.sdr.calls;
+
+import net.cscott.jdoctest.JDoctestRunner;
+
+import org.junit.runner.RunWith;
+
+/**
+ * A {@link Deadline} is a cooperative cancellation token for call
+ * evaluation.  Each thread has a current deadline, which is
+ * {@link #NONE} unless the caller has {@link #enter(Deadline) entered}
+ * another; the {@link Evaluator}, the formation matcher and the
+ * {@link Breather} {@link #poll()} it at convenient points and throw a
+ * {@link DeadlineExceededException} once it has passed or been
+ * {@link #cancel() cancelled}.  Sub-evaluations run on other threads see
+ * the deadline of the thread which started them.
+ * @doc.test
+ *  js> Deadline.current() === Deadline.NONE
+ *  true
+ *  js> d = Deadline.after(60*1000*1000*1000); undefined
+ *  js> old = Deadline.enter(d); Deadline.current() === d
+ *  true
+ *  js> Deadline.poll(); d.expired()
+ *  false
+ *  js> d.remaining() > 0
+ *  true
+ *  js> d.cancel(); try { Deadline.poll(); } catch (e) { print(e.javaException); }
+ *  net.cscott.sdr.calls.DeadlineExceededException: Evaluation cancelled
+ *  js> Deadline.exit(old); Deadline.current() === Deadline.NONE
+ *  true
+ *  js> try { Deadline.after(0).check(); } catch (e) { print(e.javaException); }
+ *  net.cscott.sdr.calls.DeadlineExceededException: Evaluation deadline exceeded
+ * @doc.test Evaluation stops at the first poll after the deadline:
+ *  js> ds = new DanceState(new DanceProgram(Program.PLUS), Formation.SQUARED_SET); undefined
+ *  js> d = Deadline.unbounded(); d.cancel(); undefined
+ *  js> old = Deadline.enter(d); undefined
+ *  js> try { Evaluator.parseAndEval(ds, "heads star thru"); } catch (e) { print(e.javaException); }
+ *  net.cscott.sdr.calls.DeadlineExceededException: Evaluation cancelled
+ *  js> Deadline.exit(old)
+ *  js> Evaluator.parseAndEval(ds, "heads star thru")
+ * @author C. Scott Ananian
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class Deadline {
+    /** The deadline which never passes and can't be cancelled. */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    /** Value of {@link System#nanoTime()} at which the deadline passes. */
+    private final long expiry;
+    /** False if the deadline only passes when cancelled. */
+    private final boolean timed;
+    private volatile boolean cancelled = false;
+
+    private Deadline(long expiry, boolean timed) {
+        this.expiry = expiry;
+        this.timed = timed;
+    }
+    /** Return a new deadline which passes the given number of nanoseconds
+     *  from now. */
+    public static Deadline after(long nanos) {
+        return new Deadline(System.nanoTime() + nanos, true);
+    }
+    /** Return a new deadline which only passes when cancelled. */
+    public static Deadline unbounded() {
+        return new Deadline(0, false);
+    }
+
+    /** Make this deadline pass immediately.  May be called from any
+     *  thread. */
+    public void cancel() {
+        if (this == NONE)
+            throw new UnsupportedOperationException("can't cancel NONE");
+        this.cancelled = true;
+    }
+    /** Return true if {@link #cancel()} has been called. */
+    public boolean isCancelled() { return cancelled; }
+    /** Return the number of nanoseconds until this deadline passes
+     *  (negative if it already has), or {@link Long#MAX_VALUE} if it is not
+     *  timed.  Cancellation is not taken into account. */
+    public long remaining() {
+        return timed ? expiry - System.nanoTime() : Long.MAX_VALUE;
+    }
+    /** Return true if this deadline has passed or been cancelled. */
+    public boolean expired() {
+        return cancelled || (timed && expiry - System.nanoTime() < 0);
+    }
+    /** Throw a {@link DeadlineExceededException} if this deadline has
+     *  passed or been cancelled. */
+    public void check() throws DeadlineExceededException {
+        if (cancelled)
+            throw new DeadlineExceededException("Evaluation cancelled", this);
+        if (timed && expiry - System.nanoTime() < 0)
+            throw new DeadlineExceededException
+                ("Evaluation deadline exceeded", this);
+    }
+
+    private static final ThreadLocal<Deadline> CURRENT =
+        new ThreadLocal<Deadline>() {
+        @Override
+        protected Deadline initialValue() { return NONE; }
+    };
+    /** Return the deadline of the current thread. */
+    public static Deadline current() { return CURRENT.get(); }
+    /** Make the given deadline current for this thread, returning the
+     *  previous one, which should be restored with {@link #exit(Deadline)}
+     *  in a <code>finally</code> block. */
+    public static Deadline enter(Deadline d) {
+        assert d != null;
+        Deadline old = CURRENT.get();
+        CURRENT.set(d);
+        return old;
+    }
+    /** Restore the deadline returned by {@link #enter(Deadline)}. */
+    public static void exit(Deadline old) { CURRENT.set(old); }
+    /** Check the deadline of the current thread. */
+    public static void poll() throws DeadlineExceededException {
+        CURRENT.get().check();
+    }
+}
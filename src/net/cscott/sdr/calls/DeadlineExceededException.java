@@ -0,0 +1,20 @@
+package net.cscott.sdr.calls;
+
+import net.cscott.sdr.DevSettings;
+
+/** <code>DeadlineExceededException</code> is thrown when the current
+ * {@link Deadline} passes, or is cancelled, in the middle of an evaluation.
+ * It is deliberately <i>not</i> a {@link BadCallException}: the call isn't
+ * wrong, we've just run out of time, so the evaluator mustn't backtrack
+ * into the next alternative.  The partially-updated
+ * {@link DanceState} should be discarded.
+ * @author C. Scott Ananian
+ */
+public class DeadlineExceededException extends RuntimeException {
+    /** The deadline which passed. */
+    public final Deadline deadline;
+    public DeadlineExceededException(String s, Deadline deadline) {
+        super(s, null, false, DevSettings.BAD_CALL_STACK_TRACES);
+        this.deadline = deadline;
+    }
+}
@@ -3,6 +3,8 @@ package net.cscott.sdr.calls;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
@@ -10,8 +12,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import net.cscott.jdoctest.JDoctestRunner;
+import net.cscott.sdr.DevSettings;
 import net.cscott.sdr.calls.ExprFunc.EvaluationException;
 import net.cscott.sdr.calls.ast.Apply;
 import net.cscott.sdr.calls.ast.AstNode;
@@ -30,7 +36,6 @@ import net.cscott.sdr.calls.ast.SeqCall;
 import net.cscott.sdr.calls.transform.RemoveIn;
 import net.cscott.sdr.calls.transform.ValueVisitor;
 import net.cscott.sdr.util.Fraction;
-import net.cscott.sdr.util.ListUtils;
 
 import org.junit.runner.RunWith;
 
@@ -192,6 +197,123 @@ public abstract class Evaluator {
             e = e.evaluate(ds);
     }
 
+    /** Independent sub-evaluations involving fewer than this many dancers
+     *  in total are never run in parallel, since forking them would cost
+     *  more than it saves. */
+    public static final int PARALLEL_MIN_DANCERS = 8;
+    /** Shared pool used for parallel sub-evaluation, or null if parallel
+     *  evaluation is disabled. */
+    private static volatile ForkJoinPool parallelPool = null;
+    /**
+     * Evaluate the independent parts of {@link Opt} and {@link Par} calls
+     * concurrently, using a shared pool of {@code parallelism} threads.
+     * Values less than two turn parallel evaluation off, which is the
+     * default.  The results are identical either way.
+     * @doc.test
+     *  js> Evaluator.parallelism()
+     *  1
+     *  js> Evaluator.setParallelism(4); Evaluator.parallelism()
+     *  4
+     *  js> ds = new DanceState(new DanceProgram(Program.A1), Formation.SQUARED_SET); undefined;
+     *  js> Evaluator.parseAndEval(ds, "heads pair off; do half of a pass thru");
+     *  js> ds = ds.cloneAndClear(); undefined
+     *  js> Evaluator.parseAndEval(ds, "fan the top")
+     *  js> Evaluator.setParallelism(1); Evaluator.parallelism()
+     *  1
+     *  js> ds.currentFormation().toStringDiagram("|");
+     *  |1B^  4Gv  3G^  4Bv  2B^  1Gv  2G^  3Bv
+     */
+    public static synchronized void setParallelism(int parallelism) {
+        ForkJoinPool old = parallelPool;
+        parallelPool = (parallelism < 2) ? null :
+            new ForkJoinPool(parallelism);
+        if (old != null) old.shutdown();
+    }
+    /** Return the number of threads used for parallel sub-evaluation,
+     *  or 1 if parallel evaluation is disabled. */
+    public static int parallelism() {
+        ForkJoinPool pool = parallelPool;
+        return (pool == null) ? 1 : pool.getParallelism();
+    }
+    /**
+     * One of a number of independent sub-evaluations, which may be run in
+     * parallel with its siblings by {@link Evaluator#runAll}.  Subclasses
+     * save their results in their own fields, and the caller merges them
+     * in order afterwards.
+     */
+    private static abstract class SubEvaluation {
+        /** Position among its siblings; fixes the phantom numbering. */
+        final int index;
+        /** Number of identity queries made during {@link #run()}. */
+        long identityUses = 0;
+        private RuntimeException failure = null;
+        private Error error = null;
+        SubEvaluation(int index) { this.index = index; }
+        /** Perform the evaluation. */
+        abstract void run();
+        final void runScoped(int phantomBase, Deadline deadline) {
+            int[] oldScope = PhantomDancer.enterScope(phantomBase, index);
+            Deadline oldDeadline = Deadline.enter(deadline);
+            long uses = IdentityUse.count();
+            try {
+                run();
+            } catch (RuntimeException e) {
+                this.failure = e;
+            } catch (Error e) {
+                this.error = e;
+            } finally {
+                this.identityUses = IdentityUse.count() - uses;
+                Deadline.exit(oldDeadline);
+                PhantomDancer.exitScope(oldScope);
+            }
+        }
+        final boolean failed() { return failure != null || error != null; }
+        /** Rethrow whatever {@link #run()} threw, if anything. */
+        final void rethrow() {
+            if (failure != null) throw failure;
+            if (error != null) throw error;
+        }
+    }
+    /**
+     * Run the given sub-evaluations: in parallel if that has been enabled
+     * with {@link #setParallelism(int)} and they involve at least
+     * {@link #PARALLEL_MIN_DANCERS} dancers, otherwise one after another,
+     * stopping at the first failure.  Either way each one sees the same
+     * phantom numbering and {@link Deadline}, so the results do not depend
+     * on the mode.
+     */
+    private static void runAll(List<? extends SubEvaluation> subs,
+                               int dancers) {
+        final int phantomBase = PhantomDancer.scopeBase();
+        final Deadline deadline = Deadline.current();
+        ForkJoinPool pool = parallelPool;
+        if (pool == null || subs.size() < 2 ||
+            dancers < PARALLEL_MIN_DANCERS) {
+            for (SubEvaluation se : subs) {
+                se.runScoped(phantomBase, deadline);
+                if (se.failed()) break;
+            }
+            return;
+        }
+        final List<RecursiveAction> tasks =
+            new ArrayList<RecursiveAction>(subs.size());
+        for (final SubEvaluation se : subs)
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() { se.runScoped(phantomBase, deadline); }
+            });
+        if (ForkJoinTask.inForkJoinPool())
+            ForkJoinTask.invokeAll(tasks);
+        else
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() { invokeAll(tasks); }
+            });
+        // identity queries made on other threads count as our own
+        for (SubEvaluation se : subs)
+            IdentityUse.note(se.identityUses);
+    }
+
     /** Convenience method for easy testing. */
     public static void parseAndEval(DanceState ds, String... calls) {
         List<Apply> l = new ArrayList<Apply>(calls.length);
@@ -323,13 +445,14 @@ public abstract class Evaluator {
             /** Try all the options, keeping the first one which works. */
             @Override
             public Evaluator visit(Opt opt, DanceState ds) {
-                List<String> reasons=new ArrayList<String>(opt.children.size());
+                List<NoMatchException> reasons =
+                    new ArrayList<NoMatchException>(opt.children.size());
                 for (OptCall oc: opt.children) {
                     try {
                         return oc.accept(this, ds);
                     } catch (NoMatchException bce) {
                         /* ignore; try the next one */
-                        reasons.add(bce.reason);
+                        reasons.add(bce);
                     }
                 }
                 /* Hmm, none of the options worked. */
@@ -341,18 +464,20 @@ public abstract class Evaluator {
 		//  Something like:
 		//    couldn't evaluate from ocean waves (boys are not ends) or
 		//    from lines (not found)
-		String msg = "Invalid formation";
-		msg += " ("+ListUtils.join(reasons, ", ")+")";
-                throw new BadCallException(msg, Fraction.mONE);
+		// The failure record is only rendered if it reaches the user.
+                throw new BadCallException(new BadCallException.Failure
+                        ("Invalid formation", " ", reasons), Fraction.mONE);
             }
             /** Try all the matchers. */
             @Override
             public Evaluator visit(OptCall oc, DanceState ds) {
                 // Match from the breathed version of the formation.
-                Formation f = ds.currentFormation();
+                // The analysis is shared by every alternative of the
+                // enclosing Opt, since they all start from this formation.
+                FormationAnalysis fa = ds.currentFormation().analysis();
                 if (oc.matcher.atom!="use phantoms") // HACK
-                    f = Breather.breathe(f);
-                List<String> reasons = new ArrayList<String>();
+                    fa = fa.breathed().analysis();
+                List<Object> reasons = new ArrayList<Object>();
                 // XXX bit of a hack here: we don't want BadCallExceptions to
                 // bail out of the entire top-level OR.  Eventually we'll want
                 // to introduce some other sort of combiner for this.
@@ -372,24 +497,28 @@ public abstract class Evaluator {
                         continue;
                     }
                     try {
-                        fm = ds.tagDesignated(m.match(f));
+                        fm = ds.tagDesignated(fa.match(m));
                     } catch (NoMatchException nme) {
                         /* ignore; try the next matcher */
-                        reasons.add(nme.target+" ("+nme.reason+")");
+                        reasons.add(nme.asFailure(" "));
                         continue;
                     }
                     // we distinguish call errors from match errors:
                     try {
                         return new MetaEvaluator(fm, oc.child).evaluate(ds);
                     } catch (BadCallException bce) {
-                        reasons.add(m.toString()+" ("+bce.getMessage()+")");
+                        reasons.add(new BadCallException.Failure
+                                (m, " ", Collections.singletonList(bce)));
                         /* continue with the next matcher */
                     }
                 }
                 /* Hmm, none of the matchers matched. */
                 // this exception should only be seen internally
-                throw new NoMatchException(oc.matcher.toShortString(),
-                                           ListUtils.join(reasons, ", "));
+                final Expr target = oc.matcher;
+                throw new NoMatchException(new Object() {
+                    @Override
+                    public String toString() { return target.toShortString(); }
+                }, reasons);
             }
             /**
              * Evaluate multiple "do your parts" against particularly-tagged
@@ -515,17 +644,27 @@ public abstract class Evaluator {
         private final Map<Dancer,? extends Formation> parts;
         private final Map<Dancer,Evaluator> emap;
         private final Set<Dancer> inserted;
+        /** True if every part is evaluating the same child {@link Comp},
+         *  so that congruent parts can share a single evaluation. */
+        private final boolean sameChild;
         MetaEvaluator(Formation meta, Map<Dancer,? extends Formation> parts,
                       Set<Dancer> inserted, Map<Dancer,Evaluator> emap) {
+            this(meta, parts, inserted, emap, false);
+        }
+        MetaEvaluator(FormationMatch fm, Comp child) {
+            this(fm.meta, fm.matches, fm.inserted,
+                 _makeStandardEvaluators(fm, child), true);
+        }
+        private MetaEvaluator(Formation meta,
+                              Map<Dancer,? extends Formation> parts,
+                              Set<Dancer> inserted,
+                              Map<Dancer,Evaluator> emap, boolean sameChild) {
             this.meta = meta;
             this.parts = parts;
             this.emap = emap;
             this.inserted = inserted;
             this.metaSize = meta.dancers().size();
-        }
-        MetaEvaluator(FormationMatch fm, Comp child) {
-            this(fm.meta, fm.matches, fm.inserted,
-                 _makeStandardEvaluators(fm, child));
+            this.sameChild = sameChild;
         }
         private static Map<Dancer,Evaluator>
         _makeStandardEvaluators(FormationMatch fm, Comp child) {
@@ -544,6 +683,7 @@ public abstract class Evaluator {
         protected boolean breatheParts() { return false; }
         @Override
         public Evaluator evaluate(DanceState ds) {
+            Deadline.poll(); // give up if we're out of time
             List<Dancer> metaDancers=new ArrayList<Dancer>(this.meta.dancers());
             Map<Dancer,DanceState> substates =
                 new HashMap<Dancer,DanceState>(this.metaSize);
@@ -554,15 +694,63 @@ public abstract class Evaluator {
             // have different #s of parts (for the same call) and we
             // don't want to get them out of sync.
             //  xxx: is this really a problem?
-            Fraction endTime = Fraction.ZERO;
+            // parts which are congruent to another part can reuse its
+            // result, as long as that evaluation never looked at who the
+            // dancers were (only where they were standing).
+            boolean reuse = this.sameChild && this.metaSize > 1 &&
+                ds.designated().isEmpty();
+            List<PartEvaluation> evals =
+                new ArrayList<PartEvaluation>(metaDancers.size());
+            List<PartEvaluation> reps = new ArrayList<PartEvaluation>();
+            List<PartEvaluation> followers = new ArrayList<PartEvaluation>();
+            int dancers = 0;
             for (Dancer metaDancer : metaDancers) {
                 Formation sub = this.parts.get(metaDancer);
-                Evaluator e = emap.get(metaDancer);
-                DanceState nds = ds.cloneAndClear(sub);
-                if (e != null)
-                    e.evaluateAll(nds);
+                PartEvaluation pe = new PartEvaluation
+                    (evals.size(), metaDancer, ds.cloneAndClear(sub));
+                evals.add(pe);
+                dancers += sub.dancers().size();
+                if (reuse && emap.get(metaDancer) != null)
+                    for (PartEvaluation rep : reps) {
+                        if (emap.get(rep.metaDancer) == null) continue;
+                        pe.relabel = relabel
+                            (this.parts.get(rep.metaDancer), sub);
+                        if (pe.relabel == null) continue;
+                        pe.rep = rep;
+                        break;
+                    }
+                (pe.rep == null ? reps : followers).add(pe);
+            }
+            runAll(reps, dancers);
+            // parts after the first failure don't matter.
+            int firstFailure = evals.size();
+            for (PartEvaluation rep : reps)
+                if (rep.failed()) {
+                    firstFailure = rep.index;
+                    break;
+                }
+            List<PartEvaluation> again = new ArrayList<PartEvaluation>();
+            for (PartEvaluation pe : followers) {
+                if (pe.index > firstFailure) break;
+                if (pe.rep.identityUses == 0)
+                    pe.expected = pe.rep.ds.map(pe.relabel);
+                if (pe.expected == null || DevSettings.META_SYMMETRY_VERIFY)
+                    again.add(pe);
+                else
+                    pe.ds = pe.expected;
+            }
+            runAll(again, dancers);
+            Fraction endTime = Fraction.ZERO;
+            for (PartEvaluation pe : evals) {
+                pe.rethrow();
+                DanceState nds = pe.ds;
+                if (DevSettings.META_SYMMETRY_VERIFY && pe.expected != null &&
+                    !sameResult(pe.expected, nds))
+                    throw new AssertionError
+                        ("Symmetric evaluation mismatch: "+pe.expected+
+                         " vs "+nds);
                 endTime = Fraction.max(endTime, nds.currentTime());
-                substates.put(metaDancer, nds);
+                substates.put(pe.metaDancer, nds);
                 Fraction lastMovement = nds.lastMovement();
                 for (TimedFormation tf: nds.formations())
                     if (tf.time.compareTo(lastMovement) <= 0)
@@ -622,6 +810,89 @@ public abstract class Evaluator {
             // dancers should all be in sync at this point.
             return null;
         }
+        /** Evaluation of the child call in one part of the meta
+         *  formation. */
+        private class PartEvaluation extends SubEvaluation {
+            final Dancer metaDancer;
+            DanceState ds;
+            /** An earlier congruent part, and the map from its dancers to
+             *  ours, or null. */
+            PartEvaluation rep = null;
+            Map<Dancer,Dancer> relabel = null;
+            /** The result copied from {@link #rep}, if it can be reused. */
+            DanceState expected = null;
+            PartEvaluation(int index, Dancer metaDancer, DanceState ds) {
+                super(index);
+                this.metaDancer = metaDancer;
+                this.ds = ds;
+            }
+            @Override
+            void run() {
+                Evaluator e = emap.get(metaDancer);
+                if (e != null)
+                    e.evaluateAll(ds);
+            }
+        }
+        /**
+         * Return a map taking the dancers of {@code from} to the dancers of
+         * {@code to}, provided that (in order) each has the same position,
+         * selection status and tags.  Otherwise return {@code null}.
+         * Because the parts of a {@link FormationMatch} are given in the
+         * orientation of the matched goal (the rotation is recorded in the
+         * meta formation) parts related by rotation compare equal here.
+         * @doc.test
+         *  js> const SD = StandardDancer;
+         *  js> f1 = Formation.FOUR_SQUARE.select(SD.COUPLE_1_BOY, SD.COUPLE_1_GIRL); undefined
+         *  js> f2 = Formation.FOUR_SQUARE.map(SD.COUPLE_2_BOY, SD.COUPLE_2_GIRL,
+         *    >                             SD.COUPLE_4_GIRL, SD.COUPLE_4_BOY); undefined
+         *  js> f2.toStringDiagram()
+         *  2Bv  2Gv
+         *  
+         *  4G^  4B^
+         *  js> Evaluator.MetaEvaluator.relabel(Formation.FOUR_SQUARE, f2)
+         *  {COUPLE 1 BOY=COUPLE 4 GIRL, COUPLE 1 GIRL=COUPLE 4 BOY, COUPLE 3 BOY=COUPLE 2 GIRL, COUPLE 3 GIRL=COUPLE 2 BOY}
+         *  js> // selection must match
+         *  js> Evaluator.MetaEvaluator.relabel(f1, Formation.FOUR_SQUARE)
+         *  null
+         */
+        private static Map<Dancer,Dancer> relabel(Formation from,
+                                                  Formation to) {
+            if (from.getClass() != to.getClass()) return null;
+            Set<Dancer> fromDancers = from.dancers(), toDancers = to.dancers();
+            if (fromDancers.size() != toDancers.size()) return null;
+            Map<Dancer,Dancer> result =
+                new LinkedHashMap<Dancer,Dancer>(fromDancers.size());
+            Iterator<Dancer> it = toDancers.iterator();
+            for (Dancer fd : fromDancers) {
+                Dancer td = it.next();
+                if (!from.location(fd).equals(to.location(td)))
+                    return null;
+                if (from.isSelected(fd) != to.isSelected(td))
+                    return null;
+                if (from instanceof TaggedFormation &&
+                    !((TaggedFormation)from).tags(fd).equals
+                    (((TaggedFormation)to).tags(td)))
+                    return null;
+                result.put(fd, td);
+            }
+            return result;
+        }
+        /** Compare the results of two evaluations of congruent parts, used
+         *  by {@link DevSettings#META_SYMMETRY_VERIFY}. */
+        private static boolean sameResult(DanceState a, DanceState b) {
+            if (!a.dancers().equals(b.dancers())) return false;
+            List<TimedFormation> af = a.formations(), bf = b.formations();
+            if (af.size() != bf.size()) return false;
+            for (int i=0; i<af.size(); i++)
+                if (!af.get(i).time.equals(bf.get(i).time) ||
+                    !af.get(i).formation.equals(bf.get(i).formation))
+                    return false;
+            for (Dancer d : a.dancers())
+                if (!a.movements(d).toString().equals
+                    (b.movements(d).toString()))
+                    return false;
+            return true;
+        }
     }
     /**
      * Implements {@link Par}: evaluates several "do your part" calls, and
@@ -638,6 +909,18 @@ public abstract class Evaluator {
                 this.ds = ds;
             }
         }
+        /** Evaluation of one part of one subcall. */
+        private static class SubPartEvaluation extends SubEvaluation {
+            final SubPart part;
+            /** Continuation for the following part, or null. */
+            Evaluator next = null;
+            SubPartEvaluation(int index, SubPart part) {
+                super(index);
+                this.part = part;
+            }
+            @Override
+            void run() { this.next = part.eval.evaluate(part.ds); }
+        }
         private List<SubPart> parts = new ArrayList<SubPart>();
         void add(Set<Dancer> matched, Comp subcall, DanceState ds) {
             this.add(matched, new Standard(subcall), ds);
@@ -654,8 +937,18 @@ public abstract class Evaluator {
         public Evaluator evaluate(DanceState ds) {
             PartsCombineEvaluator pce = new PartsCombineEvaluator();
             // do one part of each subcall
+            List<SubPartEvaluation> evals =
+                new ArrayList<SubPartEvaluation>(parts.size());
+            int dancers = 0;
             for (SubPart p: parts) {
-                Evaluator ne = p.eval.evaluate(p.ds);
+                evals.add(new SubPartEvaluation(evals.size(), p));
+                dancers += p.matched.size();
+            }
+            runAll(evals, dancers);
+            for (SubPartEvaluation spe : evals) {
+                spe.rethrow();
+                SubPart p = spe.part;
+                Evaluator ne = spe.next;
                 // add only the selected dancer's actions
                 for (Dancer d: p.matched)
                     // sometimes phantoms introduced by a par can match a
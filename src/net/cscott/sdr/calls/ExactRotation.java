@@ -4,6 +4,7 @@ import org.junit.runner.RunWith;
 
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.PackedFraction;
 
 /** Rotations are represented as fractions, where '0' is facing north
  *  (away from the caller),
@@ -186,22 +187,27 @@ public class ExactRotation extends Rotation implements Comparable<ExactRotation>
      *  toX(1 3/16)=1
      */
     public Fraction toX() {
-	Fraction EIGHT = Fraction.valueOf(8,1);
-	ExactRotation r = normalize();
+        return PackedFraction.toFraction(packedX());
+    }
+    /** Allocation-free version of {@link #toX()}. */
+    long packedX() {
+	long r = normalizedAmount();
 	// 7/8 to 1/8 range from -1 to 1
 	// 1/8 to 3/8 x=1
 	// 3/8 to 5/8 range from 1 to -1
 	// 5/8 to 7/8 x=-1
-	if (r.compareTo(ONE_EIGHTH) < 0)
-	    return r.amount.multiply(EIGHT);
-	if (r.compareTo(THREE_EIGHTHS) < 0)
-	    return Fraction.ONE;
-	if (r.compareTo(FIVE_EIGHTHS) < 0)
-	    return Fraction.ONE_HALF.subtract(r.amount).multiply(EIGHT);
-	if (r.compareTo(SEVEN_EIGHTHS) < 0)
-	    return Fraction.ONE.negate();
+	if (PackedFraction.compare(r, P_ONE_EIGHTH) < 0)
+	    return PackedFraction.multiply(r, P_EIGHT);
+	if (PackedFraction.compare(r, P_THREE_EIGHTHS) < 0)
+	    return PackedFraction.ONE;
+	if (PackedFraction.compare(r, P_FIVE_EIGHTHS) < 0)
+	    return PackedFraction.multiply
+		(PackedFraction.subtract(P_ONE_HALF, r), P_EIGHT);
+	if (PackedFraction.compare(r, P_SEVEN_EIGHTHS) < 0)
+	    return P_MINUS_ONE;
 	else
-	    return r.amount.subtract(Fraction.ONE).multiply(EIGHT);
+	    return PackedFraction.multiply
+		(PackedFraction.subtract(r, PackedFraction.ONE), P_EIGHT);
     }
     /** Return the Y offset of a one-unit step in the rotation direction.
      *  Zero indicates north (towards positive y).  Use a 'squared off'
@@ -244,23 +250,38 @@ public class ExactRotation extends Rotation implements Comparable<ExactRotation>
      *  toY(1 3/16)=1/2
      */
     public Fraction toY() {
-	Fraction EIGHT = Fraction.valueOf(8,1);
-	ExactRotation r = normalize();
+        return PackedFraction.toFraction(packedY());
+    }
+    /** Allocation-free version of {@link #toY()}. */
+    long packedY() {
+	long r = normalizedAmount();
 	// 7/8 to 1/8 y=1
 	// 1/8 to 3/8 range from 1 to -1
 	// 3/8 to 5/8 y=-1
 	// 5/8 to 7/8 range from -1 to 1
-	if (r.compareTo(ONE_EIGHTH) < 0)
-	    return Fraction.ONE;
-	if (r.compareTo(THREE_EIGHTHS) < 0)
-	    return Fraction.ONE_QUARTER.subtract(r.amount).multiply(EIGHT);
-	if (r.compareTo(FIVE_EIGHTHS) < 0)
-	    return Fraction.ONE.negate();
-	if (r.compareTo(SEVEN_EIGHTHS) < 0)
-	    return r.amount.subtract(Fraction.THREE_QUARTERS).multiply(EIGHT);
+	if (PackedFraction.compare(r, P_ONE_EIGHTH) < 0)
+	    return PackedFraction.ONE;
+	if (PackedFraction.compare(r, P_THREE_EIGHTHS) < 0)
+	    return PackedFraction.multiply
+		(PackedFraction.subtract(P_ONE_QUARTER, r), P_EIGHT);
+	if (PackedFraction.compare(r, P_FIVE_EIGHTHS) < 0)
+	    return P_MINUS_ONE;
+	if (PackedFraction.compare(r, P_SEVEN_EIGHTHS) < 0)
+	    return PackedFraction.multiply
+		(PackedFraction.subtract(r, P_THREE_QUARTERS), P_EIGHT);
 	else
-	    return Fraction.ONE;
+	    return PackedFraction.ONE;
     }
+    // packed constants used by packedX() and packedY()
+    private static final long P_EIGHT = PackedFraction.valueOf(8);
+    private static final long P_MINUS_ONE = PackedFraction.valueOf(-1);
+    private static final long P_ONE_EIGHTH = PackedFraction.valueOf(1, 8);
+    private static final long P_ONE_QUARTER = PackedFraction.valueOf(1, 4);
+    private static final long P_THREE_EIGHTHS = PackedFraction.valueOf(3, 8);
+    private static final long P_ONE_HALF = PackedFraction.valueOf(1, 2);
+    private static final long P_FIVE_EIGHTHS = PackedFraction.valueOf(5, 8);
+    private static final long P_THREE_QUARTERS = PackedFraction.valueOf(3, 4);
+    private static final long P_SEVEN_EIGHTHS = PackedFraction.valueOf(7, 8);
     /** Convert an x/y displacement to a rotation, using our 'squared off'
      * circle.  Roughly equivalent to atan2().
      */
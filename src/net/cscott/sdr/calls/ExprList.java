@@ -11,6 +11,7 @@ import org.junit.runner.RunWith;
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.sdr.calls.ExprFunc.EvaluationException;
 import net.cscott.sdr.calls.ast.Apply;
+import net.cscott.sdr.calls.ast.AstNode;
 import net.cscott.sdr.calls.ast.Comp;
 import net.cscott.sdr.calls.ast.Expr;
 import net.cscott.sdr.calls.ast.Seq;
@@ -35,6 +36,17 @@ public class ExprList {
     private final static Map<String, ExprFunc<String>> exprStringFuncs =
         new LinkedHashMap<String,ExprFunc<String>>();
 
+    /** Return the version of the definition of the given function.  The
+     *  function an atom resolves to can only change when call definitions
+     *  are reloaded, so this is the {@link CallDB#version(Program)} of the
+     *  program defining a {@link Call}, and zero for any other function.
+     *  {@link Expr} nodes cache the result of {@link #lookup} until it
+     *  changes. */
+    public static long version(ExprFunc<?> func) {
+        if (!(func instanceof Call)) return 0;
+        return CallDB.INSTANCE.version(((Call) func).getProgram());
+    }
+
     /** This method evaluates {@link Expr} nodes. */
     public static <T> T evaluate(String atom, Class<T> type,
                                  DanceState ds, List<Expr> args)
@@ -50,9 +62,13 @@ public class ExprList {
             throw new RuntimeException(e);
         }
     }
+    /** Resolve the given atom to the {@link ExprFunc} which evaluates it at
+     *  the given type.  The result only changes when the {@link #version}
+     *  of the function does, so {@link Expr} nodes link to it once and
+     *  reuse it. */
     // namespace mechanism.
     @SuppressWarnings("unchecked") // dispatch mechanism needs crazy casts
-    private static final <T> ExprFunc<? extends T> lookup(String atom,
+    public static final <T> ExprFunc<? extends T> lookup(String atom,
                                                           Class<T> type)
         throws EvaluationException {
         final String atomP = atom.toLowerCase();
@@ -183,8 +199,10 @@ public class ExprList {
             for (Expr cArg : curry.args.subList(1, curry.args.size())) {
                 nArgs.add(subst(cArg, ds, rest));
             }
-            // create new expr with new substituted args
-            final Expr result = new Expr(func, nArgs);
+            // create new expr with new substituted args.  Interning it
+            // lets repeated applications share its links and folded
+            // constants.
+            final Expr result = AstNode.intern(new Expr(func, nArgs));
             if (type.isAssignableFrom(Evaluator.class)) {
                 // expose the simple expansion, for PartsVisitor, etc.
                 return new Evaluator() {
@@ -243,7 +261,7 @@ public class ExprList {
         @Override
         public boolean isConstant(Class<? super Fraction> type,List<Expr> args){
             for (Expr e : args)
-                if (!ExprList.isConstant(e.atom, Fraction.class, e.args))
+                if (!e.isConstant(Fraction.class))
                     return false;
             return true;
         }
@@ -623,6 +641,7 @@ public class ExprList {
         new SubsetPatternFunc("_couple num pattern") {
         @Override
         protected String dancerToString(TaggedFormation tf, Dancer d) {
+            IdentityUse.note();
             if (!(d instanceof StandardDancer))
                 return " ";
             return ""+((StandardDancer)d).coupleNumber();
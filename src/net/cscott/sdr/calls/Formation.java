@@ -9,16 +9,20 @@ import static net.cscott.sdr.calls.StandardDancer.COUPLE_3_GIRL;
 import static net.cscott.sdr.calls.StandardDancer.COUPLE_4_BOY;
 import static net.cscott.sdr.calls.StandardDancer.COUPLE_4_GIRL;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
@@ -41,15 +45,82 @@ import org.junit.runner.RunWith;
  */
 @RunWith(value=JDoctestRunner.class)
 public class Formation {
-    protected final Map<Dancer,Position> location;
-    protected final Set<Dancer> selected;
+    /** The dancers which may appear in this formation, shared among all
+     *  the formations derived from it by {@link #select(Collection)},
+     *  {@link #onlySelected()}, {@link #move(Dancer, Position)}, etc. */
+    private final DancerIndex index;
+    /** Positions of the dancers, indexed like {@link DancerIndex#dancers};
+     *  entries for dancers not in this formation are ignored. */
+    private final Position[] positions;
+    /** Bit <i>i</i> is set if dancer <i>i</i> of the index is in this
+     *  formation; bit <i>i</i> of <code>selectedBits</code> is set if it
+     *  is also selected. */
+    private final long dancerBits, selectedBits;
+    // views and indices, created on demand.
+    private transient Set<Dancer> dancers, selected;
+    private transient Map<Dancer,Position> location;
+    private transient SpatialIndex spatial;
+    private transient FormationAnalysis analysis;
+
+    private Formation(DancerIndex index, Position[] positions,
+                      long dancerBits, long selectedBits) {
+        assert (selectedBits & ~dancerBits) == 0;
+        this.index = index;
+        this.positions = positions;
+        this.dancerBits = dancerBits;
+        this.selectedBits = selectedBits;
+    }
+    /** Create a formation with the same dancers in the same places as
+     *  <code>f</code>, sharing its spatial index. */
+    private Formation(Formation f, long dancerBits, long selectedBits) {
+        this(f.index, f.positions, dancerBits, selectedBits);
+        if (dancerBits == f.dancerBits)
+            this.spatial = f.spatial;
+    }
+    /** Create a formation which shares the dancers, positions, and
+     *  selection of the given formation. */
+    protected Formation(Formation f) {
+        this(f, f.dancerBits, f.selectedBits);
+    }
+    /** Create a formation which shares the dancers of the given formation,
+     *  but has the given positions and selected dancers.
+     *  @see #derive(Position[], long) */
+    protected Formation(Formation f, Position[] positions, long selectedBits) {
+        this(f.index, positions, f.dancerBits, selectedBits);
+        if (positions == f.positions)
+            this.spatial = f.spatial;
+    }
+    /** Create a formation from a map of dancer locations, and a set
+     *  of selected dancers which must be a subset of the keys of that map.
+     *  The dancers keep the iteration order of the map. */
     protected Formation(Map<Dancer,Position> location, Set<Dancer> selected) {
-        this.location = location;
-        this.selected = selected;
+        Dancer[] d = new Dancer[location.size()];
+        Position[] p = new Position[d.length];
+        int i=0;
+        for (Map.Entry<Dancer,Position> me : location.entrySet()) {
+            d[i] = me.getKey();
+            p[i] = me.getValue();
+            i++;
+        }
+        this.index = new DancerIndex(d);
+        this.positions = p;
+        this.dancerBits = allBits(d.length);
+        this.selectedBits = (selected == location.keySet()) ? dancerBits :
+            index.bits(selected, dancerBits);
     }
     public Formation(Map<Dancer,Position> location) {
-        this.location = Collections.unmodifiableMap(new LinkedHashMap<Dancer,Position>(location));
-        this.selected = this.location.keySet();
+        this(location, location.keySet());
+    }
+    /** Return a formation of the same class as this one, with the same
+     *  dancers but the given positions and selected dancers.  Subclasses
+     *  override this so that {@link #select(Collection)} and
+     *  {@link #move(Dancer, Position)} preserve any extra information they
+     *  carry. */
+    protected Formation derive(Position[] positions, long selectedBits) {
+        return new Formation(this, positions, selectedBits);
+    }
+    private static long allBits(int n) {
+        return (n == 64) ? -1L : ((1L << n) - 1);
     }
 
     /** Create a new formation containing only the selected dancers from this
@@ -71,10 +142,7 @@ public class Formation {
      *  4G>            2B<
      */
     public Formation onlySelected() {
-	Map<Dancer,Position> nloc = new LinkedHashMap<Dancer,Position>
-	    (this.location);
-	nloc.keySet().retainAll(this.selected);
-	return new Formation(nloc);
+        return new Formation(this, selectedBits, selectedBits);
     }
     /** Return true iff the given dancer is selected.
      * @doc.test
@@ -97,16 +165,103 @@ public class Formation {
      *  false,false,false,false
      */
     public boolean isSelected(Dancer d) {
-	return selected.contains(d);
+        int i = index.indexOf(d);
+        return i >= 0 && (selectedBits & (1L << i)) != 0;
     }
     public Set<Dancer> selectedDancers() {
-	return selected;
+        if (selected == null)
+            selected = (selectedBits == dancerBits) ? dancers() :
+                new DancerSet(selectedBits);
+        return selected;
     }
     public Set<Dancer> dancers() {
-	return location.keySet();
+        if (dancers == null)
+            dancers = new DancerSet(dancerBits);
+        return dancers;
     }
     public Position location(Dancer d) {
-	return location.get(d);
+        int i = index.indexOf(d);
+        return (i < 0 || (dancerBits & (1L << i)) == 0) ? null : positions[i];
+    }
+    /** Return a map view of the locations of the dancers in this
+     *  formation. */
+    private Map<Dancer,Position> locationMap() {
+        if (location == null)
+            location = new LocationMap();
+        return location;
+    }
+    /** Return the spatial index for this formation, building it if
+     *  necessary. */
+    private SpatialIndex spatial() {
+        if (spatial == null)
+            spatial = new SpatialIndex(this);
+        return spatial;
+    }
+    /** Return the {@link FormationAnalysis} which memoizes breathing and
+     *  matching this formation, creating it if necessary. */
+    public FormationAnalysis analysis() {
+        if (analysis == null)
+            analysis = new FormationAnalysis(this);
+        return analysis;
+    }
+    /** Return the dancer at the given point, or <code>null</code> if there
+     *  is none.  If more than one dancer is at that point, return the first
+     *  of them in {@link #dancers()} order.
+     * @doc.test
+     *  js> f = Formation.SQUARED_SET ; undefined
+     *  js> f.dancerAt(f.location(StandardDancer.COUPLE_1_BOY).toPoint())
+     *  COUPLE 1 BOY
+     *  js> f.dancerAt(net.cscott.sdr.util.Point.ZERO)
+     *  null
+     */
+    public Dancer dancerAt(Point p) {
+        Integer i = spatial().at.get(p);
+        return (i == null) ? null : index.dancers[i];
+    }
+    /** Return the dancers whose y coordinate is the given value, in
+     *  {@link #dancers()} order.
+     * @doc.test
+     *  js> Formation.SQUARED_SET.dancersInRow(net.cscott.sdr.util.Fraction.ONE)
+     *  [COUPLE 2 GIRL, COUPLE 4 BOY]
+     *  js> Formation.SQUARED_SET.dancersInRow(net.cscott.sdr.util.Fraction.ZERO)
+     *  []
+     */
+    public Set<Dancer> dancersInRow(Fraction y) {
+        return dancerSet(spatial().rows.get(y));
+    }
+    /** Return the dancers whose x coordinate is the given value, in
+     *  {@link #dancers()} order.
+     * @doc.test
+     *  js> Formation.SQUARED_SET.dancersInColumn(net.cscott.sdr.util.Fraction.valueOf(-3))
+     *  [COUPLE 4 BOY, COUPLE 4 GIRL]
+     */
+    public Set<Dancer> dancersInColumn(Fraction x) {
+        return dancerSet(spatial().columns.get(x));
+    }
+    /** Return the dancers of this formation grouped by their distance from
+     *  the origin, nearest group first.  Each group lists its dancers in
+     *  {@link #dancers()} order.
+     * @doc.test
+     *  js> importPackage(net.cscott.sdr.util)
+     *  js> f = FormationList.RH_QUARTER_TAG.mapStd([]); f.toStringDiagram()
+     *       1Bv  1Gv
+     *  
+     *  2B^  2Gv  4G^  4Bv
+     *  
+     *       3G^  3B^
+     *  js> f.dancersByDistance()
+     *  [[COUPLE 2 GIRL, COUPLE 4 GIRL], [COUPLE 1 BOY, COUPLE 1 GIRL, COUPLE 3 GIRL, COUPLE 3 BOY], [COUPLE 2 BOY, COUPLE 4 BOY]]
+     */
+    public List<Set<Dancer>> dancersByDistance() {
+        long[] groups = spatial().distance;
+        List<Set<Dancer>> result = new ArrayList<Set<Dancer>>(groups.length);
+        for (long bits : groups)
+            result.add(new DancerSet(bits));
+        return Collections.unmodifiableList(result);
+    }
+    private Set<Dancer> dancerSet(Long bits) {
+        return (bits == null) ? Collections.<Dancer>emptySet() :
+            new DancerSet(bits);
     }
     /** Return the bounds of this formation, which is the bounding
      * box around all the dancers' bounding boxes.  This means that
@@ -121,7 +276,8 @@ public class Formation {
      */
     public Box bounds() {
         Fraction minx=null,miny=null,maxx=null,maxy=null;
-        for (Position p : location.values()) {
+        for (long bits = dancerBits; bits != 0; bits &= bits - 1) {
+            Position p = positions[Long.numberOfTrailingZeros(bits)];
             if (minx==null || minx.compareTo(p.x) > 0) minx = p.x;
             if (maxx==null || maxx.compareTo(p.x) < 0) maxx = p.x;
             if (miny==null || miny.compareTo(p.y) > 0) miny = p.y;
@@ -160,11 +316,20 @@ public class Formation {
      *    location={COUPLE 3 GIRL=-1,3,s, COUPLE 3 BOY=1,3,s, COUPLE 4 BOY=-3,1,e, COUPLE 2 GIRL=3,1,w, COUPLE 4 GIRL=-3,-1,e, COUPLE 2 BOY=3,-1,w, COUPLE 1 BOY=-1,-3,n, COUPLE 1 GIRL=1,-3,n}
      *    selected=[COUPLE 3 GIRL, COUPLE 3 BOY, COUPLE 1 BOY, COUPLE 1 GIRL]
      *  ]
+     *  js> f3 = f2.onlySelected(); f3.dancers()
+     *  [COUPLE 1 BOY, COUPLE 1 GIRL, COUPLE 3 BOY, COUPLE 3 GIRL]
+     *  js> // dancers not in the formation can't be selected
+     *  js> f3.select(f.dancers()).selectedDancers().size()
+     *  4
+     *  js> f3.select(StandardDancer.COUPLE_2_BOY).selectedDancers()
+     *  []
+     *  js> m = new LinkedHashMap(); for each (d in heads) {
+     *    >   m.put(d, f.location(d)) }; undefined
+     *  js> f3.equals(new Formation(m))
+     *  true
      */
     public Formation select(Collection<Dancer> d) {
-        Set<Dancer> nSel = new LinkedHashSet<Dancer>(dancers());
-        nSel.retainAll(d);
-        return new Formation(location, Collections.unmodifiableSet(nSel));
+        return derive(positions, index.bits(d, dancerBits));
     }
     /** Convenience method for {@link #select(Collection)}. */
     public Formation select(Dancer... d) {
@@ -213,13 +378,13 @@ public class Formation {
         Fraction oy = bounds.ll.y.add(bounds.ur.y).divide(Fraction.TWO);
         if (ox.equals(Fraction.ZERO) && oy.equals(Fraction.ZERO))
             return this; // efficiency
-        Map<Dancer,Position> m = new LinkedHashMap<Dancer,Position>(location.size());
-        for (Map.Entry<Dancer,Position> me : location.entrySet()) {
-            Dancer d = me.getKey();
-            Position p = me.getValue();
-            m.put(d, p.relocate(p.x.subtract(ox), p.y.subtract(oy), p.facing));
+        Position[] np = new Position[positions.length];
+        for (long bits = dancerBits; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            Position p = positions[i];
+            np[i] = p.relocate(p.x.subtract(ox), p.y.subtract(oy), p.facing);
         }
-        return new Formation(Collections.unmodifiableMap(m), selected);
+        return new Formation(index, np, dancerBits, selectedBits);
     }
     /**
      * Build a new formation, like this one except rotated around 0,0.
@@ -248,10 +413,12 @@ public class Formation {
      *       1G7       2B`
      */
     public Formation rotate(ExactRotation rotation) {
-        Map<Dancer,Position> m = new LinkedHashMap<Dancer,Position>(location.size());
-        for (Map.Entry<Dancer,Position> me : location.entrySet())
-            m.put(me.getKey(), me.getValue().rotateAroundOrigin(rotation));
-        return new Formation(Collections.unmodifiableMap(m), selected);
+        Position[] np = new Position[positions.length];
+        for (long bits = dancerBits; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            np[i] = positions[i].rotateAroundOrigin(rotation);
+        }
+        return new Formation(index, np, dancerBits, selectedBits);
     }
     /**
      * Return true if the given formation is centered at the origin.
@@ -278,6 +445,7 @@ public class Formation {
                 int c = p1.compareTo(p2);
                 if (c!=0) return c;
                 // break dancer ties.
+                IdentityUse.note();
                 if (d1 instanceof StandardDancer && d2 instanceof StandardDancer) {
                     return ((StandardDancer)d1).ordinal() - ((StandardDancer)d2).ordinal();
                 }
@@ -298,15 +466,18 @@ public class Formation {
     public boolean equals(Object o) {
 	if (!(o instanceof Formation)) return false;
 	Formation f = (Formation) o;
+	if (f.index == this.index && f.positions == this.positions)
+	    return f.dancerBits == this.dancerBits &&
+	        f.selectedBits == this.selectedBits;
 	return new EqualsBuilder()
-	    .append(location, f.location)
-	    .append(selected, f.selected)
+	    .append(locationMap(), f.locationMap())
+	    .append(selectedDancers(), f.selectedDancers())
 	    .isEquals();
     }
     @Override
     public int hashCode() {
 	return new HashCodeBuilder()
-	    .append(location).append(selected)
+	    .append(locationMap()).append(selectedDancers())
 	    .toHashCode();
     }
     @Override
@@ -315,8 +486,8 @@ public class Formation {
 	// consistent
 	SortedMap<Dancer,Position> location =
 	    new TreeMap<Dancer,Position>(this.dancerComparator());
-	location.putAll(this.location);
-	List<Dancer> selected = new ArrayList<Dancer>(this.selected);
+	location.putAll(this.locationMap());
+	List<Dancer> selected = new ArrayList<Dancer>(this.selectedDancers());
 	Collections.sort(selected, this.dancerComparator());
 	// build the result string
 	return new ToStringBuilder(this, SdrToString.STYLE)
@@ -557,14 +728,21 @@ public class Formation {
         );
 
     protected Formation(Formation f, Map<Dancer,Dancer> map) {
+        this(mapLocations(f, map), mapSelected(f, map));
+    }
+    private static Map<Dancer,Position> mapLocations(Formation f,
+                                                     Map<Dancer,Dancer> map) {
         Map<Dancer,Position> m = new LinkedHashMap<Dancer,Position>();
-        Set<Dancer> s = new LinkedHashSet<Dancer>();
-        for (Map.Entry<Dancer,Position> me : f.location.entrySet())
-            m.put(map.get(me.getKey()), me.getValue());
-        for (Dancer d : f.selected)
+        for (Dancer d : f.dancers())
+            m.put(map.get(d), f.location(d));
+        return m;
+    }
+    private static Set<Dancer> mapSelected(Formation f,
+                                           Map<Dancer,Dancer> map) {
+        Set<Dancer> s = new HashSet<Dancer>();
+        for (Dancer d : f.selectedDancers())
             s.add(map.get(d));
-        this.location = Collections.unmodifiableMap(m);
-        this.selected = Collections.unmodifiableSet(s);
+        return s;
     }
     public Formation map(Map<Dancer,Dancer> map) {
         return new Formation(this, map);
@@ -606,15 +784,20 @@ public class Formation {
     }
     
     Formation(DancerInfo... dis) {
+        this(dancerInfoLocations(dis), dancerInfoSelected(dis));
+    }
+    private static Map<Dancer,Position> dancerInfoLocations(DancerInfo[] dis) {
 	Map<Dancer,Position> m = new LinkedHashMap<Dancer,Position>();
-	Set<Dancer> s = new LinkedHashSet<Dancer>();
-	for (DancerInfo di : dis) {
+	for (DancerInfo di : dis)
 	    m.put(di.dancer, di.position);
+	return m;
+    }
+    private static Set<Dancer> dancerInfoSelected(DancerInfo[] dis) {
+	Set<Dancer> s = new HashSet<Dancer>();
+	for (DancerInfo di : dis)
             if (di.isSelected)
 		s.add(di.dancer);
-	}
-	this.location = Collections.unmodifiableMap(m);
-	this.selected = Collections.unmodifiableSet(s);
+	return s;
     }
     static class DancerInfo {
 	final Dancer dancer;
@@ -648,11 +831,11 @@ public class Formation {
      *  |          1G^
      */
     public Formation move(Dancer d, Position p) {
-	assert this.location.containsKey(d);
-	Map<Dancer,Position> nmap = new LinkedHashMap<Dancer,Position>
-	    (this.location);
-	nmap.put(d, p);
-	return new Formation(nmap, this.selected);
+	int i = index.indexOf(d);
+	assert i >= 0 && (dancerBits & (1L << i)) != 0;
+	Position[] np = positions.clone();
+	np[i] = p;
+	return derive(np, selectedBits);
     }
     /** Return a formation like this one, except with all positions mirrored.
      * @doc.test
@@ -686,10 +869,170 @@ public class Formation {
      *  1,-3,n,[PASS_LEFT]
      */
     public Formation mirror(boolean mirrorShoulderPass) {
-        Map<Dancer,Position> nmap = new LinkedHashMap<Dancer,Position>();
-        for (Map.Entry<Dancer, Position> me: this.location.entrySet()) {
-            nmap.put(me.getKey(), me.getValue().mirror(mirrorShoulderPass));
+        Position[] np = new Position[positions.length];
+        for (long bits = dancerBits; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            np[i] = positions[i].mirror(mirrorShoulderPass);
+        }
+        return new Formation(index, np, dancerBits, selectedBits);
+    }
+
+    /**
+     * Assigns dense indices to the dancers of a formation, so that the
+     * positions of the dancers can be kept in an array and sets of dancers
+     * can be represented as <code>long</code> bitmasks.  There can be at
+     * most 64 dancers in a formation.
+     */
+    private static final class DancerIndex {
+        /** Beyond this many dancers, use a hash table to find indices. */
+        private static final int LINEAR_LIMIT = 16;
+        final Dancer[] dancers;
+        private final Map<Dancer,Integer> lookup;
+        DancerIndex(Dancer[] dancers) {
+            if (dancers.length > 64)
+                throw new IllegalArgumentException
+                    ("too many dancers in formation: "+dancers.length);
+            this.dancers = dancers;
+            if (dancers.length <= LINEAR_LIMIT)
+                this.lookup = null;
+            else {
+                this.lookup = new HashMap<Dancer,Integer>(dancers.length*2);
+                for (int i=0; i<dancers.length; i++)
+                    this.lookup.put(dancers[i], i);
+            }
+        }
+        /** Return the index of the given dancer, or -1 if it is not
+         *  present. */
+        int indexOf(Object d) {
+            if (lookup != null) {
+                Integer i = lookup.get(d);
+                return (i == null) ? -1 : i;
+            }
+            for (int i=0; i<dancers.length; i++)
+                if (dancers[i] == d) return i;
+            if (d != null)
+                for (int i=0; i<dancers.length; i++)
+                    if (d.equals(dancers[i])) return i;
+            return -1;
+        }
+        /** Return the bitmask of the dancers in <code>mask</code> which
+         *  are members of the given collection. */
+        long bits(Collection<?> c, long mask) {
+            long result = 0;
+            for (long bits = mask; bits != 0; bits &= bits - 1) {
+                int i = Long.numberOfTrailingZeros(bits);
+                if (c.contains(dancers[i]))
+                    result |= 1L << i;
+            }
+            return result;
+        }
+    }
+    /**
+     * Finds dancers by location: maps points to dancers, and groups the
+     * dancers by row, by column, and by distance from the origin.  The
+     * groups are bitmasks over the formation's {@link DancerIndex}.  A
+     * spatial index is shared by formations which differ only in which
+     * dancers are selected.
+     */
+    private static final class SpatialIndex {
+        /** Index of the (first) dancer at each point. */
+        final Map<Point,Integer> at;
+        final Map<Fraction,Long> rows, columns;
+        /** Dancers at the same distance from the origin, nearest first. */
+        final long[] distance;
+        SpatialIndex(Formation f) {
+            int n = Long.bitCount(f.dancerBits);
+            this.at = new HashMap<Point,Integer>(n*2);
+            this.rows = new HashMap<Fraction,Long>();
+            this.columns = new HashMap<Fraction,Long>();
+            SortedMap<Fraction,Long> dist = new TreeMap<Fraction,Long>();
+            for (long bits = f.dancerBits; bits != 0; bits &= bits - 1) {
+                int i = Long.numberOfTrailingZeros(bits);
+                Point p = f.positions[i].toPoint();
+                if (!at.containsKey(p))
+                    at.put(p, i);
+                add(rows, p.y, i);
+                add(columns, p.x, i);
+                add(dist, p.dist2(Point.ZERO), i);
+            }
+            this.distance = new long[dist.size()];
+            int j = 0;
+            for (long bits : dist.values())
+                this.distance[j++] = bits;
+        }
+        private static void add(Map<Fraction,Long> m, Fraction key, int i) {
+            Long bits = m.get(key);
+            m.put(key, (bits == null ? 0 : bits) | (1L << i));
+        }
+    }
+    /** An unmodifiable view of a subset of the indexed dancers. */
+    private class DancerSet extends AbstractSet<Dancer> {
+        private final long mask;
+        DancerSet(long mask) { this.mask = mask; }
+        @Override
+        public int size() { return Long.bitCount(mask); }
+        @Override
+        public boolean contains(Object o) {
+            int i = index.indexOf(o);
+            return i >= 0 && (mask & (1L << i)) != 0;
+        }
+        @Override
+        public Iterator<Dancer> iterator() {
+            return new BitIterator<Dancer>(mask) {
+                @Override
+                Dancer get(int i) { return index.dancers[i]; }
+            };
+        }
+    }
+    /** An unmodifiable view of the dancer locations in this formation. */
+    private class LocationMap extends AbstractMap<Dancer,Position> {
+        private Set<Map.Entry<Dancer,Position>> entrySet;
+        @Override
+        public int size() { return Long.bitCount(dancerBits); }
+        @Override
+        public boolean containsKey(Object o) { return dancers().contains(o); }
+        @Override
+        public Position get(Object o) {
+            int i = index.indexOf(o);
+            return (i < 0 || (dancerBits & (1L << i)) == 0) ? null :
+                positions[i];
+        }
+        @Override
+        public Set<Dancer> keySet() { return dancers(); }
+        @Override
+        public Set<Map.Entry<Dancer,Position>> entrySet() {
+            if (entrySet == null)
+                entrySet = new AbstractSet<Map.Entry<Dancer,Position>>() {
+                    @Override
+                    public int size() { return Long.bitCount(dancerBits); }
+                    @Override
+                    public Iterator<Map.Entry<Dancer,Position>> iterator() {
+                        return new BitIterator<Map.Entry<Dancer,Position>>
+                            (dancerBits) {
+                            @Override
+                            Map.Entry<Dancer,Position> get(int i) {
+                                return new AbstractMap.SimpleImmutableEntry
+                                    <Dancer,Position>
+                                    (index.dancers[i], positions[i]);
+                            }
+                        };
+                    }
+                };
+            return entrySet;
+        }
+    }
+    /** Iterate over the set bits of a mask, lowest first. */
+    private static abstract class BitIterator<T> implements Iterator<T> {
+        private long bits;
+        BitIterator(long bits) { this.bits = bits; }
+        abstract T get(int i);
+        public boolean hasNext() { return bits != 0; }
+        public T next() {
+            if (bits == 0) throw new NoSuchElementException();
+            int i = Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            return get(i);
         }
-        return new Formation(nmap, this.selected);
+        public void remove() { throw new UnsupportedOperationException(); }
     }
 }
@@ -0,0 +1,98 @@
+package net.cscott.sdr.calls;
+
+import net.cscott.jdoctest.JDoctestRunner;
+import net.cscott.sdr.util.LRUCache;
+
+import org.junit.runner.RunWith;
+
+/**
+ * A {@link FormationAnalysis} memoizes the derived facts the
+ * {@link Evaluator} repeatedly asks of a single {@link Formation}: its
+ * breathed form, and the result (or failure) of each {@link Matcher} tried
+ * against it.  Every alternative of an {@link net.cscott.sdr.calls.ast.Opt}
+ * starts from the same {@link DanceState#currentFormation()}, so hanging
+ * the analysis off that formation lets the alternatives share the work
+ * until a movement produces a new formation.
+ * <p>
+ * Cached results are replayed with the {@link IdentityUse} count of the
+ * original computation, so callers which watch that counter see the same
+ * values whether or not the result came from the cache.
+ * @doc.test
+ *  js> f = FormationList.RH_OCEAN_WAVE; undefined
+ *  js> fa = f.analysis(); undefined
+ *  js> fa === f.analysis()
+ *  true
+ *  js> fa.breathed() === fa.breathed()
+ *  true
+ *  js> m = MatcherList.MINIWAVE; undefined
+ *  js> fa.match(m) === fa.match(m)
+ *  true
+ *  js> try { fa.match(MatcherList.COUPLE); } catch (e) { print(e.javaException); }
+ *  net.cscott.sdr.calls.NoMatchException: No match for COUPLE: no matches
+ *  js> try { fa.match(MatcherList.COUPLE); } catch (e) { print(e.javaException); }
+ *  net.cscott.sdr.calls.NoMatchException: No match for COUPLE: no matches
+ * @author C. Scott Ananian
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class FormationAnalysis {
+    /** Number of distinct {@link Matcher}s remembered per formation.
+     *  Parameterized matchers are built afresh on each evaluation, so this
+     *  bounds the memo of long-lived formations such as
+     *  {@link Formation#SQUARED_SET}. */
+    public static final int MATCH_MEMO_SIZE = 16;
+
+    private final Formation formation;
+    private final LRUCache<Matcher,Outcome> matches =
+        new LRUCache<Matcher,Outcome>(MATCH_MEMO_SIZE);
+    private volatile Outcome breathed;
+
+    FormationAnalysis(Formation formation) {
+        this.formation = formation;
+    }
+
+    /** Return {@link Breather#breathe(Formation)} of the analyzed
+     *  formation. */
+    public Formation breathed() {
+        Outcome o = breathed;
+        if (o == null) {
+            long uses = IdentityUse.count();
+            Formation f = Breather.breathe(formation);
+            breathed = o = new Outcome(f, IdentityUse.count() - uses);
+        } else
+            IdentityUse.note(o.identityUses);
+        return (Formation) o.result;
+    }
+
+    /** Return <code>m.match(f)</code> for the analyzed formation
+     *  <code>f</code>, rethrowing a remembered {@link NoMatchException}
+     *  if the match failed before. */
+    public FormationMatch match(Matcher m) throws NoMatchException {
+        Outcome o = matches.get(m);
+        if (o == null) {
+            long uses = IdentityUse.count();
+            Object result;
+            try {
+                result = m.match(formation);
+            } catch (NoMatchException nme) {
+                result = nme;
+            }
+            o = new Outcome(result, IdentityUse.count() - uses);
+            matches.put(m, o);
+        } else
+            IdentityUse.note(o.identityUses);
+        if (o.result instanceof NoMatchException)
+            throw (NoMatchException) o.result; // stackless, so reusable
+        return (FormationMatch) o.result;
+    }
+
+    /** A computed value, or the exception which stood in for it, along with
+     *  the number of identity queries made while computing it. */
+    private static class Outcome {
+        final Object result;
+        final long identityUses;
+        Outcome(Object result, long identityUses) {
+            this.result = result;
+            this.identityUses = identityUses;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import static net.cscott.sdr.util.Tools.p;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -30,6 +31,7 @@ import net.cscott.sdr.calls.Position.Transform;
 import net.cscott.sdr.calls.TaggedFormation.Tag;
 import net.cscott.sdr.calls.TaggedFormation.TaggedDancerInfo;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.LRUCache;
 import net.cscott.sdr.util.Point;
 import net.cscott.sdr.util.SdrToString;
 
@@ -55,11 +57,19 @@ public class GeneralFormationMatcher {
         String name = targetName(goals);
         return makeMatcher(name, goals);
     }
-    public static Matcher makeMatcher(final String name, final List<TaggedFormation> goals) {
+    public static Matcher makeMatcher(String name, List<TaggedFormation> goals) {
+        return makeMatcher(name, goals, true);
+    }
+    /** Make a {@link Matcher} for the given goal formations, specifying
+     *  whether its results should be looked up in (and added to) the
+     *  {@link #matchCache()}. */
+    public static Matcher makeMatcher(final String name,
+                                      final List<TaggedFormation> goals,
+                                      final boolean useCache) {
         return new Matcher() {
             @Override
             public FormationMatch match(Formation f) throws NoMatchException {
-                return doMatch(f, goals, false, false);
+                return doMatch(f, goals, false, false, useCache);
             }
             @Override
             public String getName() { return name; }
@@ -386,14 +396,137 @@ public class GeneralFormationMatcher {
                 boolean allowUnmatchedDancers,
                 boolean usePhantoms)
         throws NoMatchException {
+        return doMatch(input, goals, allowUnmatchedDancers, usePhantoms, true);
+    }
+    /**
+     * Allow multiple simultaneous goal formations, specifying whether the
+     * {@link #matchCache()} should be used.  The cache is keyed on the
+     * positions and selection of the input dancers (in iteration order)
+     * and the goal formations; a cached result is re-labelled onto the
+     * dancers of the given input formation.  Failed matches are cached as
+     * well.  Matches using phantoms are never cached.
+     * @doc.test Cached matches are re-labelled onto the actual dancers:
+     *  js> f = FormationList.PARALLEL_RH_WAVES.mapStd([]); f.toStringDiagram()
+     *  1B^  1Gv  2B^  2Gv
+     *  
+     *  4G^  4Bv  3G^  3Bv
+     *  js> goals = java.util.Collections.singletonList(FormationList.RH_BOX); undefined
+     *  js> fm = GeneralFormationMatcher.doMatch(f, goals, false, false, true); undefined
+     *  js> SD = StandardDancer; undefined
+     *  js> f2 = f.map([SD.COUPLE_2_BOY, SD.COUPLE_2_GIRL,
+     *    >             SD.COUPLE_3_BOY, SD.COUPLE_3_GIRL,
+     *    >             SD.COUPLE_4_BOY, SD.COUPLE_4_GIRL,
+     *    >             SD.COUPLE_1_BOY, SD.COUPLE_1_GIRL]); f2.toStringDiagram()
+     *  2B^  2Gv  3B^  3Gv
+     *  
+     *  4B^  4Gv  1B^  1Gv
+     *  js> GeneralFormationMatcher.doMatch(f2, goals, false, false, true)
+     *  AA^  BBv
+     *  AA:
+     *     2B^  2Gv
+     *     
+     *     4B^  4Gv
+     *   [2B: BEAU,LEADER; 2G: BEAU,TRAILER; 4B: BEAU,TRAILER; 4G: BEAU,LEADER]
+     *  BB:
+     *     1G^  1Bv
+     *     
+     *     3G^  3Bv
+     *   [1G: BEAU,LEADER; 1B: BEAU,TRAILER; 3G: BEAU,TRAILER; 3B: BEAU,LEADER]
+     *  js> GeneralFormationMatcher.doMatch(f2, goals, false, false, false)
+     *  AA^  BBv
+     *  AA:
+     *     2B^  2Gv
+     *     
+     *     4B^  4Gv
+     *   [2B: BEAU,LEADER; 2G: BEAU,TRAILER; 4B: BEAU,TRAILER; 4G: BEAU,LEADER]
+     *  BB:
+     *     1G^  1Bv
+     *     
+     *     3G^  3Bv
+     *   [1G: BEAU,LEADER; 1B: BEAU,TRAILER; 3G: BEAU,TRAILER; 3B: BEAU,LEADER]
+     * @doc.test Failed matches are cached, too:
+     *  js> goals = java.util.Collections.singletonList(FormationList.RH_MINIWAVE); undefined
+     *  js> hits = GeneralFormationMatcher.matchCache().hits(); undefined
+     *  js> for (i=0; i<2; i++) {
+     *    >   try {
+     *    >     GeneralFormationMatcher.doMatch(Formation.FOUR_SQUARE, goals,
+     *    >                                     false, false, true);
+     *    >   } catch (e) { print(e.javaException.getMessage()); }
+     *    > }
+     *  No match for RH MINIWAVE: no matches
+     *  No match for RH MINIWAVE: no matches
+     *  js> GeneralFormationMatcher.matchCache().hits() - hits
+     *  1
+     * @doc.test The bitboard search finds the same matches as the general one:
+     *  js> FL = FormationList; undefined
+     *  js> inputs = [Formation.SQUARED_SET, FL.PARALLEL_RH_WAVES,
+     *    >           FL.RH_TWIN_DIAMONDS, FL.RH_COLUMN, FL.RH_QUARTER_TAG,
+     *    >           FL.RH_GALAXY]; undefined
+     *  js> goals = [FL.COUPLE, FL.FACING_COUPLES, FL.RH_MINIWAVE, FL.RH_BOX,
+     *    >          FL.GENERAL_DIAMOND, FL.GENERAL_LINE, FL.TANDEM]; undefined
+     *  js> function m(f, g, bitboard) {
+     *    >   try {
+     *    >     return GeneralFormationMatcher.doGeneralMatch(
+     *    >       f, java.util.Arrays.asList(g), true, bitboard).toString();
+     *    >   } catch (e) { return e.javaException.getMessage(); }
+     *    > }
+     *  js> same = 0; for each (f in inputs) {
+     *    >   for each (g in goals) {
+     *    >     if (m(f, [g], false) == m(f, [g], true)) same++;
+     *    >   }
+     *    > }; same == inputs.length * goals.length
+     *  true
+     *  js> m(FL.RH_TWIN_DIAMONDS.mapStd([]), [FL.RH_DIAMOND], true)
+     *  AAv  BB^
+     *  AA:
+     *       3G>
+     *     
+     *     2G^  2Bv
+     *     
+     *       1B<
+     *   [3G: POINT; 2G: BEAU,CENTER; 2B: BEAU,CENTER; 1B: POINT]
+     *  BB:
+     *       1G>
+     *     
+     *     4G^  4Bv
+     *     
+     *       3B<
+     *   [1G: POINT; 4G: BEAU,CENTER; 4B: BEAU,CENTER; 3B: POINT]
+     */
+    public static FormationMatch doMatch(
+                final Formation input,
+                final List<TaggedFormation> goals,
+                boolean allowUnmatchedDancers,
+                boolean usePhantoms,
+                boolean useCache)
+        throws NoMatchException {
         if (usePhantoms) {
             assert !allowUnmatchedDancers :
                 "can't combine unmatched dancers and phantoms";
             return doPhantomMatch(input, goals, true/*align centers*/);
         }
-        // get an appropriate formation name
-        String target = targetName(goals);
-
+        if (!useCache)
+            return doGeneralMatch(input, goals, allowUnmatchedDancers, true);
+        MatchKey key = new MatchKey(input, goals, allowUnmatchedDancers);
+        CachedMatch cm = MATCH_CACHE.get(key);
+        if (cm != null)
+            return cm.relabel(input);
+        FormationMatch fm;
+        try {
+            fm = doGeneralMatch(input, goals, allowUnmatchedDancers, true);
+        } catch (NoMatchException nme) {
+            MATCH_CACHE.put(key, new CachedMatch(nme));
+            throw nme;
+        }
+        MATCH_CACHE.put(key, new CachedMatch(input, fm));
+        return fm;
+    }
+    private static FormationMatch doGeneralMatch(
+                final Formation input,
+                final List<TaggedFormation> goals,
+                boolean allowUnmatchedDancers,
+                boolean useBitboard)
+        throws NoMatchException {
         // okay, try to perform match by trying to use each dancer in turn
         // as dancer #1 in the goal formation.  We then validate the match:
         // make sure that there is a dancer in each position, that no dancer
@@ -417,7 +550,7 @@ public class GeneralFormationMatcher {
             minGoalDancers = Math.min(minGoalDancers, goal.dancers().size());
         }
         if (minGoalDancers > input.selectedDancers().size())
-            throw new NoMatchException(target, "goal is too large");
+            throw new NoMatchException(targetName(goals), "goal is too large");
 
         // sort the input dancers the same as the goal dancers: real dancers
         // before phantoms.
@@ -456,10 +589,15 @@ public class GeneralFormationMatcher {
                 return o1.goal2input.rotate.compareTo(o2.goal2input.rotate);
             }
         }); 
-        // Do the match
-        tryOne(mi, 0, initialAssignment, inputEmpty, allowUnmatchedDancers);
+        // Do the match, using the bitboard search if the input allows it.
+        Bitboard bb = useBitboard ?
+            Bitboard.make(mi, initialAssignment, allowUnmatchedDancers) : null;
+        if (bb != null)
+            bb.search(0, null, 0);
+        else
+            tryOne(mi, 0, initialAssignment, inputEmpty, allowUnmatchedDancers);
         if (mi.matches.isEmpty())
-            throw new NoMatchException(target, "no matches");
+            throw new NoMatchException(targetName(goals), "no matches");
         
         // Filter out the max
         int max = 0;
@@ -471,7 +609,7 @@ public class GeneralFormationMatcher {
         for (PersistentSet<OneMatch> match: mi.matches)
             if (match.size()==max)
                 if (found) // ambiguous match.
-                    throw new NoMatchException(target, "ambiguous");
+                    throw new NoMatchException(targetName(goals), "ambiguous");
                 else {
                     bestMatch = match;
                     found = true;
@@ -492,7 +630,7 @@ public class GeneralFormationMatcher {
                 Position goP = om.gi.goal.location(goD);
                 // transform to find which input dancer corresponds to this one
                 Position inP = goal2input.apply(goP);
-                Dancer inD = mi.inputPositionMap.get(inP.toPoint());
+                Dancer inD = mi.selectedInput.dancerAt(inP.toPoint());
                 // xform back to get an exact rotation for this version of goal
                 Position goPr = goal2input.unapply(input.location(inD));
                 // to avoid distortion for 1/8 off formations, take only the
@@ -543,6 +681,109 @@ public class GeneralFormationMatcher {
                                   unmatchedMetaDancers,
                                   Collections.<Dancer>emptySet());
     }
+
+    // ---- match cache
+
+    /** Maximum number of entries in the {@link #matchCache()}. */
+    public static final int MATCH_CACHE_SIZE = 4096;
+    private static final LRUCache<MatchKey,CachedMatch> MATCH_CACHE =
+        new LRUCache<MatchKey,CachedMatch>(MATCH_CACHE_SIZE);
+    /** Return the cache of formation match results, so that its hit and
+     *  miss counts can be monitored. */
+    public static LRUCache<?,?> matchCache() { return MATCH_CACHE; }
+
+    /** Key for the {@link #matchCache()}.  Dancer identities are not part
+     *  of the key: the input formation is described by the positions and
+     *  selection of its dancers, in iteration order.  The goal formations
+     *  are compared by identity, since they are almost always the
+     *  constants from {@link FormationList}. */
+    private static class MatchKey {
+        final List<TaggedFormation> goals;
+        final boolean allowUnmatchedDancers;
+        final List<Position> positions;
+        final BitSet selected;
+        final int hashCode;
+        MatchKey(Formation input, List<TaggedFormation> goals,
+                 boolean allowUnmatchedDancers) {
+            this.goals = new ArrayList<TaggedFormation>(goals);
+            this.allowUnmatchedDancers = allowUnmatchedDancers;
+            this.positions = new ArrayList<Position>(input.dancers().size());
+            this.selected = new BitSet(input.dancers().size());
+            int hash = allowUnmatchedDancers ? 1 : 0;
+            for (TaggedFormation goal : goals)
+                hash = 31*hash + System.identityHashCode(goal);
+            for (Dancer d : input.dancers()) {
+                if (input.isSelected(d))
+                    this.selected.set(this.positions.size());
+                Position p = input.location(d);
+                this.positions.add(p);
+                hash = 31*hash + p.hashCode();
+            }
+            this.hashCode = hash + 7*selected.hashCode();
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof MatchKey)) return false;
+            MatchKey mk = (MatchKey) o;
+            if (this.hashCode != mk.hashCode ||
+                this.allowUnmatchedDancers != mk.allowUnmatchedDancers ||
+                this.goals.size() != mk.goals.size())
+                return false;
+            for (int i=0; i<this.goals.size(); i++)
+                if (this.goals.get(i) != mk.goals.get(i))
+                    return false;
+            return this.positions.equals(mk.positions) &&
+                this.selected.equals(mk.selected);
+        }
+        @Override
+        public int hashCode() { return hashCode; }
+    }
+    /** A cached match result (or failure), along with the input dancers
+     *  it was computed for. */
+    private static class CachedMatch {
+        final List<Dancer> inputDancers;
+        final FormationMatch match;
+        final NoMatchException failure;
+        CachedMatch(Formation input, FormationMatch match) {
+            this.inputDancers = new ArrayList<Dancer>(input.dancers());
+            this.match = match;
+            this.failure = null;
+        }
+        CachedMatch(NoMatchException nme) {
+            this.inputDancers = null;
+            this.match = null;
+            this.failure = nme;
+        }
+        /** Re-label the cached result onto the dancers of the given input
+         *  formation, which must have the same {@link MatchKey} as the
+         *  formation used to create the cached result.  Fresh phantoms are
+         *  created for the meta formation. */
+        FormationMatch relabel(Formation input) throws NoMatchException {
+            if (match == null)
+                throw failure; // stackless, so it can be rethrown
+            Map<Dancer,Dancer> inputMap =
+                new HashMap<Dancer,Dancer>(inputDancers.size());
+            int i=0;
+            for (Dancer d : input.dancers())
+                inputMap.put(inputDancers.get(i++), d);
+            Map<Dancer,Dancer> metaMap = new HashMap<Dancer,Dancer>();
+            Map<Dancer,TaggedFormation> canonical =
+                new LinkedHashMap<Dancer,TaggedFormation>();
+            Set<Dancer> unmatched = new LinkedHashSet<Dancer>();
+            // create phantoms in the same order as doGeneralMatch did
+            for (Map.Entry<Dancer,TaggedFormation> me :
+                     match.matches.entrySet()) {
+                Dancer dd = new PhantomDancer();
+                metaMap.put(me.getKey(), dd);
+                canonical.put(dd, me.getValue().map(inputMap));
+                if (match.unmatched.contains(me.getKey()))
+                    unmatched.add(dd);
+            }
+            return new FormationMatch(match.meta.map(metaMap), canonical,
+                                      unmatched, match.inserted);
+        }
+    }
+
     private static class OneMatch {
         /** Which goal formation. */
         public final GoalInfo gi;
@@ -621,7 +862,8 @@ public class GeneralFormationMatcher {
     private static class MatchInfo {
         final List<PersistentSet<OneMatch>> matches = new ArrayList<PersistentSet<OneMatch>>();
         final Indexer<Dancer> inputIndex;
-        final Map<Point,Dancer> inputPositionMap = new HashMap<Point,Dancer>();
+        /** The selected input dancers, for finding dancers by position. */
+        final Formation selectedInput;
         final List<Position> inputPositions = new ArrayList<Position>();
         final List<GoalInfo> goals;
         final int minGoalDancers;
@@ -632,17 +874,19 @@ public class GeneralFormationMatcher {
         PersistentSet<Dancer> inFormation;
         /** Size of the current best match. */
         int bestMatchSize = 0;
+        /** Checked as the search proceeds. */
+        final Deadline deadline = Deadline.current();
         MatchInfo(Formation f, List<GoalInfo> goals, int minGoalDancers,
                   List<Dancer> inputDancers, Indexer<Dancer> inputIndex,
                   PersistentSet<Dancer> inputEmpty) {
             for (Dancer d : inputDancers) {
                 Position p = f.location(d);
                 this.inputPositions.add(p);
-                this.inputPositionMap.put(p.toPoint(), d);
             }
             this.numInput = inputDancers.size();
             this.inputIndex = inputIndex;
-            this.sel = f.selected;
+            this.sel = f.selectedDancers();
+            this.selectedInput = f.onlySelected();
             this.inFormation = inputEmpty;
             this.goals = goals;
             this.minGoalDancers = minGoalDancers;
@@ -668,10 +912,10 @@ public class GeneralFormationMatcher {
             // compute warped position.
             gp = goal2input.apply(gp);
             Point key = gp.toPoint();
-            if (!mi.inputPositionMap.containsKey(key))
+            Dancer iDan = mi.selectedInput.dancerAt(key);
+            if (iDan == null)
                 return false; // no input dancer at this goal position.
             // okay, there is an input dancer:
-            Dancer iDan = mi.inputPositionMap.get(key);
             int iNum = mi.inputIndex.getID(iDan);
             // if this dancer selected?
             if (!mi.sel.contains(iDan))
@@ -706,6 +950,7 @@ public class GeneralFormationMatcher {
             PersistentSet<OneMatch> currentAssignment,
             PersistentSet<Dancer> inFormation,
             boolean allowUnmatchedDancers) {
+        mi.deadline.check();
         if (dancerNum >= mi.numInput) {
             if (inFormation.size() != mi.numInput)
                 if (!allowUnmatchedDancers)
@@ -759,6 +1004,207 @@ public class GeneralFormationMatcher {
                allowUnmatchedDancers);
     }
 
+    /**
+     * A faster equivalent of {@link #tryOne}, for inputs with at most 64
+     * selected dancers whose positions all lie on a common grid.  Each
+     * input dancer is a bit in a <code>long</code>, and every placement of
+     * every goal formation is computed once, up front, as the mask of input
+     * dancers it covers; the search then only needs bit operations.  The
+     * placements are tried in the same order as {@link #tryOne} tries them,
+     * so the two find exactly the same matches.
+     */
+    private static class Bitboard {
+        /** Largest grid denominator we are willing to quantize to. */
+        private static final int MAX_DENOM = 64;
+        /** Largest grid coordinate (in grid units) we are willing to use. */
+        private static final long MAX_COORD = 1L << 30;
+        final MatchInfo mi;
+        final PersistentSet<OneMatch> emptyAssignment;
+        final boolean allowUnmatchedDancers;
+        final long allDancers;
+        /** Grid keys of the input dancers, sorted, and the matching
+         *  input dancer numbers. */
+        final long[] gridKeys;
+        final int[] gridDancers;
+        final int denom;
+        /** Valid placements for which each input dancer is goal dancer #0,
+         *  indexed by input dancer number. */
+        final List<List<Placement>> placements;
+
+        private static class Placement {
+            final OneMatch om;
+            final long mask;
+            Placement(OneMatch om, long mask) { this.om = om; this.mask = mask; }
+        }
+        /** A persistent list of the placements in the current assignment. */
+        private static class Chain {
+            final Placement head;
+            final Chain tail;
+            final int size;
+            Chain(Placement head, Chain tail) {
+                this.head = head; this.tail = tail;
+                this.size = (tail==null) ? 1 : tail.size+1;
+            }
+        }
+
+        /** Returns null if the input is not suitable for a bitboard search. */
+        static Bitboard make(MatchInfo mi,
+                             PersistentSet<OneMatch> emptyAssignment,
+                             boolean allowUnmatchedDancers) {
+            if (mi.numInput > 64) return null;
+            // find a common denominator for the input positions
+            int denom = 1;
+            for (Position p : mi.inputPositions) {
+                denom = lcm(denom, p.x.getDenominator());
+                denom = lcm(denom, p.y.getDenominator());
+                if (denom > MAX_DENOM) return null;
+            }
+            // build the (sorted) grid index
+            long[] keys = new long[mi.numInput];
+            long[] sorted = new long[mi.numInput];
+            for (int i=0; i<mi.numInput; i++) {
+                Position p = mi.inputPositions.get(i);
+                keys[i] = sorted[i] = gridKey(p.x, p.y, denom);
+                if (keys[i] == NO_KEY) return null;
+            }
+            Arrays.sort(sorted);
+            int[] dancers = new int[mi.numInput];
+            for (int i=0; i<mi.numInput; i++) {
+                int j = Arrays.binarySearch(sorted, keys[i]);
+                if (j>0 && sorted[j-1]==keys[i]) return null; // collision
+                if (j+1<sorted.length && sorted[j+1]==keys[i]) return null;
+                dancers[j] = i;
+            }
+            return new Bitboard(mi, emptyAssignment, allowUnmatchedDancers,
+                                sorted, dancers, denom);
+        }
+        private Bitboard(MatchInfo mi, PersistentSet<OneMatch> emptyAssignment,
+                         boolean allowUnmatchedDancers,
+                         long[] gridKeys, int[] gridDancers, int denom) {
+            this.mi = mi;
+            this.emptyAssignment = emptyAssignment;
+            this.allowUnmatchedDancers = allowUnmatchedDancers;
+            this.allDancers = (mi.numInput==64) ? -1L : (1L<<mi.numInput)-1;
+            this.gridKeys = gridKeys;
+            this.gridDancers = gridDancers;
+            this.denom = denom;
+            this.placements = new ArrayList<List<Placement>>(mi.numInput);
+            for (int i=0; i<mi.numInput; i++)
+                this.placements.add(computePlacements(i));
+        }
+        /** Enumerate placements exactly as {@link #tryOne} does, keeping
+         *  those which {@link #validate} would accept given an empty
+         *  <code>inFormation</code> set. */
+        private List<Placement> computePlacements(int dancerNum) {
+            List<Placement> result = new ArrayList<Placement>();
+            Dancer thisDancer = mi.inputIndex.getByID(dancerNum);
+            for (GoalInfo gi : mi.goals) {
+                Set<Transform> tried = new HashSet<Transform>(8);
+                for (Position pIn : makeAllExact(mi.inputPositions.get(dancerNum))) {
+                    for (Position pGoal : makeAllExact(gi.goalPositions.get(0))) {
+                        Transform goal2input = new Transform(pGoal, pIn);
+                        if (!tried.add(goal2input)) continue;
+                        long mask = placementMask(gi, dancerNum, goal2input);
+                        if (mask != 0)
+                            result.add(new Placement
+                                       (new OneMatch(gi, thisDancer, goal2input),
+                                        mask));
+                    }
+                }
+            }
+            return result;
+        }
+        /** Returns the input dancers covered by the given placement, or 0 if
+         *  the placement is invalid.  Parallels {@link #validate}. */
+        private long placementMask(GoalInfo goal, int dancerNum,
+                                   Transform goal2input) {
+            long mask = 0;
+            int gNum = 0;
+            for (Position gp : goal.goalPositions) {
+                gp = goal2input.apply(gp);
+                int iNum = lookup(gp);
+                if (iNum < 0)
+                    return 0; // no input dancer at this goal position.
+                long bit = 1L << iNum;
+                if ((mask & bit) != 0)
+                    return 0; // already in this placement
+                if (!mi.sel.contains(mi.inputIndex.getByID(iNum)))
+                    return 0; // this dancer isn't selected.
+                if (!gp.facing.consistent(mi.inputPositions.get(iNum).facing))
+                    return 0; // rotations aren't consistent
+                if (iNum < dancerNum &&
+                    goal.eq0.contains(goal.goalDancers.get(gNum)))
+                    return 0; // redundant due to symmetry
+                mask |= bit;
+                gNum++;
+            }
+            return mask;
+        }
+        private int lookup(Position p) {
+            long key = gridKey(p.x, p.y, denom);
+            if (key == NO_KEY) return -1;
+            int j = Arrays.binarySearch(gridKeys, key);
+            return (j < 0) ? -1 : gridDancers[j];
+        }
+
+        /** Bitboard version of {@link #tryOne}. */
+        void search(int dancerNum, Chain current, long inFormation) {
+            mi.deadline.check();
+            int size = (current==null) ? 0 : current.size;
+            if (dancerNum >= mi.numInput) {
+                if (inFormation != allDancers)
+                    if (!allowUnmatchedDancers)
+                        return; // not a good assignment
+                // we've got a complete assignment; save it.
+                if (size > 0 && size >= mi.bestMatchSize) {
+                    mi.bestMatchSize = size;
+                    mi.matches.add(toAssignment(current));
+                }
+                return;
+            }
+            // is there any way we can still match the bestMatchSize?
+            if (size + (mi.numInput - dancerNum) < mi.bestMatchSize)
+                return;
+            int dancersLeftToAssign = mi.numInput - Long.bitCount(inFormation);
+            int goalsLeftToAssign = mi.bestMatchSize - size;
+            if (mi.minGoalDancers*goalsLeftToAssign > dancersLeftToAssign)
+                return;
+            // is this dancer available to be assigned?
+            if ((inFormation & (1L << dancerNum)) == 0)
+                for (Placement p : placements.get(dancerNum))
+                    if ((p.mask & inFormation) == 0)
+                        search(dancerNum+1, new Chain(p, current),
+                               inFormation | p.mask);
+            // try NOT assigning this dancer
+            search(dancerNum+1, current, inFormation);
+        }
+        private PersistentSet<OneMatch> toAssignment(Chain c) {
+            PersistentSet<OneMatch> result = emptyAssignment;
+            for ( ; c != null; c = c.tail)
+                result = result.add(c.head.om);
+            return result;
+        }
+
+        private static final long NO_KEY = Long.MIN_VALUE;
+        /** Pack a point into a single long, or return {@link #NO_KEY} if
+         *  it isn't on the grid. */
+        private static long gridKey(Fraction x, Fraction y, int denom) {
+            if (denom % x.getDenominator() != 0 ||
+                denom % y.getDenominator() != 0)
+                return NO_KEY;
+            long gx = ((long)x.getNumerator()) * (denom / x.getDenominator());
+            long gy = ((long)y.getNumerator()) * (denom / y.getDenominator());
+            if (Math.abs(gx) >= MAX_COORD || Math.abs(gy) >= MAX_COORD)
+                return NO_KEY;
+            return (gx << 32) | (gy & 0xFFFFFFFFL);
+        }
+        private static int lcm(int a, int b) {
+            int x = a, y = b;
+            while (y != 0) { int t = x % y; x = y; y = t; }
+            return (a / x) * b;
+        }
+    }
+
     /**
      * Match with phantoms.  In some ways this is a reversed match of
      * the goal(s) against the input.  All input dancers must have
@@ -951,7 +1397,7 @@ public class GeneralFormationMatcher {
             tags.addAll(id, goal.tags(gd));
         }
         TaggedFormation tf =
-            new TaggedFormation(locations,locations.keySet(),tags);
+            new TaggedFormation(new Formation(locations), tags);
         return new FormationMatch(meta, m(p(metaDancer, tf)),
                                   Collections.<Dancer>emptySet(), inserted);
     }
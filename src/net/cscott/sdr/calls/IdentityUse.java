@@ -0,0 +1,39 @@
+package net.cscott.sdr.calls;
+
+import net.cscott.jdoctest.JDoctestRunner;
+
+import org.junit.runner.RunWith;
+
+/**
+ * {@link IdentityUse} counts, per thread, the number of times the
+ * <i>identity</i> of a {@link Dancer} has been consulted: whether they are a
+ * boy or a girl, a head or a side, their couple number, or any other
+ * primitive tag.  Code which only looks at dancer positions never touches
+ * this counter, which lets the {@link Evaluator} tell whether the evaluation
+ * of a subcall would have come out the same had it been done by a different
+ * set of dancers standing in the same places.
+ * @doc.test
+ *  js> before = IdentityUse.count(); undefined
+ *  js> StandardDancer.COUPLE_1_BOY.isBoy()
+ *  true
+ *  js> StandardDancer.COUPLE_1_BOY.matchesTag(TaggedFormation.Tag.ALL)
+ *  true
+ *  js> IdentityUse.count() - before
+ *  1
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class IdentityUse {
+    private IdentityUse() { /* don't allow constructor */ }
+
+    private static final ThreadLocal<long[]> COUNT =
+        new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() { return new long[1]; }
+    };
+    /** Record that the identity of some dancer was consulted. */
+    public static void note() { COUNT.get()[0]++; }
+    /** Record identity queries made on this thread's behalf by another. */
+    static void note(long n) { COUNT.get()[0] += n; }
+    /** Return the number of identity queries made by this thread so far. */
+    public static long count() { return COUNT.get()[0]; }
+}
@@ -5,7 +5,6 @@ import static net.cscott.sdr.util.Tools.p;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -14,15 +13,12 @@ import java.util.Map;
 import java.util.Set;
 
 import net.cscott.jdoctest.JDoctestRunner;
-import net.cscott.jutil.Factories;
 import net.cscott.jutil.GenericMultiMap;
 import net.cscott.jutil.MultiMap;
 import net.cscott.sdr.calls.TaggedFormation.Tag;
 import net.cscott.sdr.calls.ast.Expr;
 import net.cscott.sdr.util.Box;
 import net.cscott.sdr.util.Fraction;
-import net.cscott.sdr.util.ListUtils;
-import net.cscott.sdr.util.Point;
 import net.cscott.sdr.util.Tools;
 
 import org.junit.runner.RunWith;
@@ -713,22 +709,8 @@ public class MatcherList {
             // (ie, in an hourglass, the box points might be nearer than the
             //  diamond points, but we can't take them all w/o going over
             //  half the dancers)
-            MultiMap<Fraction,Dancer> mm = new GenericMultiMap<Fraction,Dancer>
-                (Factories.<Fraction,Collection<Dancer>>treeMapFactory(),
-                 Factories.<Dancer>linkedHashSetFactory());
-            for (Dancer d: f.dancers()) {
-                Position p = f.location(d);
-                Fraction dist2 = p.toPoint().dist2(Point.ZERO);
-                mm.add(dist2, d);
-            }
-            Set<Dancer> centerDancers = new LinkedHashSet<Dancer>();
-            for (Fraction dist2 : mm.keySet()) {
-                Collection<Dancer> group = mm.getValues(dist2);
-                if (centerDancers.size()+group.size() > n)
-                    continue; // skip this group
-                centerDancers.addAll(group);
-            }
-            if (centerDancers.size() != n)
+            Set<Dancer> centerDancers = centerDancers(f.dancersByDistance(), n);
+            if (centerDancers == null)
                 throw new NoMatchException(getName(),
                                            "Can't find "+n+" center dancers");
             // ok, apply the tags
@@ -742,6 +724,20 @@ public class MatcherList {
                  Tools.m(Tools.p(meta.dancers().iterator().next(), tf)),
                  Collections.<Dancer>emptySet(), Collections.<Dancer>emptySet());
         }
+        /** Return the <code>n</code> dancers nearest the center, given the
+         *  dancers of a formation grouped by distance from the center
+         *  (as by {@link Formation#dancersByDistance()}), or
+         *  <code>null</code> if there is no such set of dancers. */
+        static Set<Dancer> centerDancers(List<Set<Dancer>> byDistance,
+                                         int n) {
+            Set<Dancer> centerDancers = new LinkedHashSet<Dancer>();
+            for (Set<Dancer> group : byDistance) {
+                if (centerDancers.size()+group.size() > n)
+                    continue; // skip this group
+                centerDancers.addAll(group);
+            }
+            return (centerDancers.size() == n) ? centerDancers : null;
+        }
         @Override
         public String getName() {
             if (half) return "CENTER HALF";
@@ -874,17 +870,18 @@ public class MatcherList {
         return new Matcher() {
             @Override
             public FormationMatch match(Formation f) throws NoMatchException {
-                List<String> reasons = new ArrayList<String>(3);
+                List<BadCallException.Failure> reasons =
+                    new ArrayList<BadCallException.Failure>(3);
                 for (Matcher s : alternatives) {
                     try {
                         return s.match(f);
                     } catch (NoMatchException e) {
                         /* try next matcher */
-                        reasons.add(e.target+"("+e.reason+")");
+                        reasons.add(e.asFailure(""));
                     }
                 }
                 // no matches in any matcher
-                throw new NoMatchException(name, ListUtils.join(reasons, ", "));
+                throw new NoMatchException(name, reasons);
             }
             @Override
             public String getName() { return name; }
@@ -1,15 +1,58 @@
 package net.cscott.sdr.calls;
 
+import java.util.Collections;
+import java.util.List;
+
+import net.cscott.sdr.util.Fraction;
+
 /** <code>NoMatchException</code> is thrown when a necessary formation
- * can't be found in the given setup.
+ * can't be found in the given setup.  The target and reason may be
+ * given as objects which are only rendered to text if the message is
+ * actually needed; while backtracking through alternatives, it usually
+ * isn't.
  * @author C. Scott Ananian
  * @version $Id: NoMatchException.java,v 1.2 2006-10-17 20:03:41 cananian Exp $
  */
 public class NoMatchException extends BadCallException {
-    public final String target, reason;
+    /** The name of the target formation, rendered with toString(). */
+    private final Object target;
+    /** A string, or a list of failures to be joined with commas. */
+    private final Object reason;
+    private String renderedReason;
     public NoMatchException(String target, String reason) {
-        super("No match for "+target+(reason.length()==0 ? "" : (": "+reason)));
+        super(Fraction.ZERO);
         this.target=target;
         this.reason=reason;
     }
+    /** Create an exception for the given target, whose reason is the
+     *  comma-separated list of the given reasons.  Neither is rendered
+     *  until needed. */
+    public NoMatchException(Object target, List<?> reasons) {
+        super(Fraction.ZERO);
+        this.target=target;
+        this.reason=reasons;
+    }
+    /** Return the name of the formation which couldn't be matched. */
+    public String target() { return target.toString(); }
+    /** Return the reason the formation couldn't be matched. */
+    public String reason() {
+        if (renderedReason == null)
+            renderedReason = (reason instanceof List) ?
+                Failure.join((List<?>) reason) : reason.toString();
+        return renderedReason;
+    }
+    /** Describe this exception as a failure of its target, with the
+     *  reason in parentheses after the given separator. */
+    public Failure asFailure(String sep) {
+        return new Failure(target, sep, Collections.singletonList(this));
+    }
+    @Override
+    protected String formatMessage() {
+        String r = reason();
+        return "No match for "+target()+(r.length()==0 ? "" : (": "+r));
+    }
+    /** When nested, a {@link NoMatchException} is explained by its
+     *  reason. */
+    @Override
+    public String explanation() { return reason(); }
 }
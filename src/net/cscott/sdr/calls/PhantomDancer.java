@@ -2,12 +2,16 @@ package net.cscott.sdr.calls;
 
 import java.util.EnumSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.cscott.sdr.calls.TaggedFormation.Tag;
 
 /** An object representing a phantom dancer. */
 public class PhantomDancer implements Dancer {
-    private static int counter = 0;
+    private static final AtomicInteger counter = new AtomicInteger();
+    /** If set, phantoms created by this thread take their ids from here
+     *  instead of from the global {@link #counter}. */
+    private static final ThreadLocal<int[]> scope = new ThreadLocal<int[]>();
     private final int id;
     private final EnumSet<Tag> primitiveTags;
     /** You can create as many phantom dancers as you need. */
@@ -16,20 +20,22 @@ public class PhantomDancer implements Dancer {
      *  dancer tags. */
     public PhantomDancer(Set<Tag> tags) {
         assert !tags.contains(Tag.NONE);
-        this.id = counter++;
+        this.id = nextId();
         this.primitiveTags = tags.isEmpty() ? NO_TAGS : EnumSet.copyOf(tags);
     }
     /** Phantoms are (usually) not heads. */
-    public boolean isHead() { return primitiveTags.contains(Tag.HEAD); }
+    public boolean isHead() { IdentityUse.note(); return primitiveTags.contains(Tag.HEAD); }
     /** Phantoms are (usually) not sides. */
-    public boolean isSide() { return primitiveTags.contains(Tag.SIDE); }
+    public boolean isSide() { IdentityUse.note(); return primitiveTags.contains(Tag.SIDE); }
     /** Phantoms are (usually) not boys. */
-    public boolean isBoy() { return primitiveTags.contains(Tag.BOY); }
+    public boolean isBoy() { IdentityUse.note(); return primitiveTags.contains(Tag.BOY); }
     /** Phantoms are (usually) not girls. */
-    public boolean isGirl() { return primitiveTags.contains(Tag.GIRL); }
+    public boolean isGirl() { IdentityUse.note(); return primitiveTags.contains(Tag.GIRL); }
     /** Phantoms aren't couple 1, dancer 2, boy/girl etc. */
     public boolean matchesTag(Tag tag) {
-        return tag==Tag.ALL || primitiveTags.contains(tag);
+        if (tag==Tag.ALL) return true;
+        IdentityUse.note();
+        return primitiveTags.contains(tag);
     }
     /** Phantoms can't be primitively-selected. */
     public Tag primitiveTag() { return null; }
@@ -37,11 +43,41 @@ public class PhantomDancer implements Dancer {
     /** Human-readable representation. */
     public String toString() { return "<phantom@"+Integer.toHexString(hashCode())+">"; }
     /** Repeatable hashcode: return the id field of this phantom, which
-     * is incremented by one for each dancer. */
+     * is incremented by one for each dancer (see {@link #enterScope(int,int)}).
+     */
     @Override
     public int hashCode() { return 123+id; }
     @Override
     public boolean equals(Object o) { return this==o; }
+    private static int nextId() {
+        int[] local = scope.get();
+        return (local==null) ? counter.getAndIncrement() : local[0]++;
+    }
+    /** Return the id the next phantom created by this thread would get;
+     *  used as the {@code base} argument of {@link #enterScope(int,int)}. */
+    static int scopeBase() {
+        int[] local = scope.get();
+        return (local==null) ? counter.get() : local[0];
+    }
+    /**
+     * Number the phantoms subsequently created by this thread from a
+     * sequence determined only by {@code base} and {@code index}, until
+     * {@link #exitScope(int[])} is called.  This makes phantom ids (and thus
+     * hash codes) inside an independent sub-evaluation repeatable no matter
+     * which thread runs it or what its siblings have done.  Ids only need
+     * to be repeatable, not unique, since phantoms compare by identity.
+     * @return the previous scope, to pass to {@link #exitScope(int[])}
+     */
+    static int[] enterScope(int base, int index) {
+        int[] old = scope.get();
+        scope.set(new int[] { 31*base + 0x10000*(index+1) });
+        return old;
+    }
+    /** Restore the phantom numbering in effect before the matching call
+     *  to {@link #enterScope(int,int)}. */
+    static void exitScope(int[] old) {
+        scope.set(old);
+    }
     /** Shared empty set of tags. */
     private final static EnumSet<Tag> NO_TAGS = EnumSet.noneOf(Tag.class);
 }
@@ -11,6 +11,7 @@ import java.util.Set;
 
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.PackedFraction;
 import net.cscott.sdr.util.Point;
 import org.apache.commons.lang.builder.*;
 import org.junit.runner.RunWith;
@@ -467,10 +468,16 @@ public class Position implements Comparable<Position> {
         // x' =  x*cos(rot) + y*sin(rot)
         // y' = -x*sin(rot) + y*cos(rot)
         // where sin(rot) = rot.toX() and cos(rot) = rot.toY()
-        Fraction cos = rot.toY(), sin = rot.toX();
-        Fraction nx = this.x.multiply(cos).add(this.y.multiply(sin));
-        Fraction ny = this.y.multiply(cos).subtract(this.x.multiply(sin));
-        return new Position(nx, ny, facing.add(rot.amount), this._flags);
+        long cos = rot.packedY(), sin = rot.packedX();
+        long x = PackedFraction.valueOf(this.x);
+        long y = PackedFraction.valueOf(this.y);
+        long nx = PackedFraction.add(PackedFraction.multiply(x, cos),
+                                     PackedFraction.multiply(y, sin));
+        long ny = PackedFraction.subtract(PackedFraction.multiply(y, cos),
+                                          PackedFraction.multiply(x, sin));
+        return new Position(PackedFraction.toFraction(nx),
+                            PackedFraction.toFraction(ny),
+                            facing.add(rot.amount), this._flags);
     }
 
     /**
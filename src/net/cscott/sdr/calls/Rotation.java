@@ -1,5 +1,6 @@
 package net.cscott.sdr.calls;
 
+import java.io.Serializable;
 import java.util.AbstractCollection;
 import java.util.Collection;
 import java.util.Iterator;
@@ -11,6 +12,7 @@ import org.junit.runner.RunWith;
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.jutil.UnmodifiableIterator;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.PackedFraction;
 import static net.cscott.sdr.util.Tools.l;
 
 /** Rotations are represented as fractions, where '0' is facing north
@@ -21,16 +23,29 @@ import static net.cscott.sdr.util.Tools.l;
  *  A rotation modulo 0 matches any direction.  A rotation modulo 1
  *  indicates an 'exact' rotation; the modulus can not exceed 1. */
 @RunWith(value=JDoctestRunner.class)
-public class Rotation {
+public class Rotation implements Serializable {
     /** The amount of the rotation. */
     public final Fraction amount;
     /** The 'modulus' of the rotation: indicates the amount of uncertainty
      * in the direction.  The modulus cannot exceed 1. */
     public final Fraction modulus;
-    
+    /** The set of headings included in this rotation, as a bitmask: bit
+     *  <i>k</i> (for <i>k</i> &lt; 8) is set if the heading <i>k</i>/8 is
+     *  included, and bit 8 stands for all the headings which are not
+     *  multiples of 1/8.  Zero if this rotation can't be represented this
+     *  way (for example, a modulus of 1/3).  Almost all the rotations we
+     *  see have a modulus of 0, 1/8, 1/4, 1/2 or 1 and an amount which
+     *  is a multiple of 1/8, so this lets {@link #includes(Rotation)} and
+     *  friends skip the fraction arithmetic. */
+    private final int eighths;
+    /** The {@link #eighths} mask of the rotation which includes
+     *  everything. */
+    private static final int ALL_EIGHTHS = 0x1FF;
+
     /** Private constructor from a <code>Fraction</code> object. */
     protected Rotation(Fraction amount, Fraction modulo) {
 	this.amount = amount;  this.modulus = modulo;
+        this.eighths = eighthsMask(amount, modulo);
 	assert this.modulus.compareTo(Fraction.ONE)==0 ?
             this instanceof ExactRotation : true;
         assert this.modulus.compareTo(Fraction.ONE) <= 0;
@@ -39,6 +54,16 @@ public class Rotation {
         assert this.modulus.compareTo(Fraction.ZERO)==0 ?
                 this.amount.compareTo(Fraction.ZERO)==0 : true;
     }
+    /** Create a rotation of the given amount and modulus.  Common
+     *  rotations are shared.
+     * @doc.test
+     *  js> importPackage(net.cscott.sdr.util) // for Fraction
+     *  js> Rotation.create(Fraction.ONE_QUARTER, Fraction.ONE_HALF) ===
+     *    > Rotation.fromAbsoluteString('-')
+     *  true
+     *  js> Rotation.create(Fraction.valueOf(5,4), Fraction.ONE_HALF)
+     *  1 1/4 mod 1/2
+     */
     public static final Rotation create(Fraction amount, Fraction modulo) {
         // Effective modulus is always 1/N for some N -- reduce fraction to
         // lowest terms, then use denom.  For example, a modulus of 2/3 is
@@ -84,9 +109,52 @@ public class Rotation {
             }
             return new ExactRotation(amount);
         } else {
-            return new Rotation(amount, modulo);
+            Rotation r = interned(amount, modulo);
+            return (r != null) ? r : new Rotation(amount, modulo);
         }
     }
+    /** Compute the {@link #eighths} mask for the given amount and
+     *  (reduced) modulus. */
+    private static int eighthsMask(Fraction amount, Fraction modulo) {
+        if (modulo.getNumerator() == 0)
+            return ALL_EIGHTHS;
+        int md = modulo.getDenominator(), ad = amount.getDenominator();
+        if (8 % md != 0 || 8 % ad != 0)
+            return 0; // not a multiple of 1/8
+        int step = 8 / md;
+        long start = ((long) amount.getNumerator()) * (8 / ad) % step;
+        if (start < 0) start += step;
+        int mask = 0;
+        for (int k = (int) start; k < 8; k += step)
+            mask |= 1 << k;
+        return mask;
+    }
+    /** Shared instances of the inexact rotations with a modulus of 0, 1/8,
+     *  1/4, or 1/2 and an already-normalized amount which is a multiple of
+     *  1/8, indexed by the denominator of the modulus and then by the
+     *  amount in eighths. */
+    private static final Rotation[][] INTERNED = new Rotation[9][];
+    private static final Rotation ALL = new Rotation(Fraction.ZERO,
+                                                     Fraction.ZERO);
+    static {
+        for (int md : new int[] { 2, 4, 8 }) {
+            INTERNED[md] = new Rotation[8 / md];
+            for (int a8 = 0; a8 < 8 / md; a8++)
+                INTERNED[md][a8] = new Rotation(Fraction.valueOf(a8, 8),
+                                                Fraction.valueOf(1, md));
+        }
+    }
+    /** Return the shared instance equal to
+     *  <code>new Rotation(amount, modulo)</code>, or null if there isn't
+     *  one. */
+    private static Rotation interned(Fraction amount, Fraction modulo) {
+        if (modulo.getNumerator() == 0) return ALL;
+        int md = modulo.getDenominator(), ad = amount.getDenominator();
+        if (md > 8 || INTERNED[md] == null || 8 % ad != 0) return null;
+        int a8 = amount.getNumerator() * (8 / ad);
+        if (a8 < 0 || a8 >= 8 / md) return null; // not normalized
+        return INTERNED[md][a8];
+    }
     /** Return true iff this rotation is exact (that is, if the modulus is
      *  one). */
     public boolean isExact() {
@@ -113,23 +181,32 @@ public class Rotation {
             assert false : "we shouldn't create other zeros";
             return create(Fraction.ZERO, Fraction.ZERO);
         }
+        long f = normalizedAmount();
+        if (f == PackedFraction.valueOf(this.amount)) return this; // quick out
+        return create(PackedFraction.toFraction(f), this.modulus);
+    }
+    /** Return the amount of the normalized rotation as a
+     *  {@link PackedFraction}, without allocating anything.  The modulus
+     *  must be nonzero. */
+    long normalizedAmount() {
+        long m = PackedFraction.valueOf(this.modulus);
         // make rotation positive.
-        Fraction abs = this.amount;
-        if (abs.compareTo(Fraction.ZERO) < 0)
-	    abs = abs.subtract(Fraction.valueOf(abs.floor()));
-        assert abs.compareTo(Fraction.ZERO) >= 0;
+        long f = PackedFraction.valueOf(this.amount);
+        if (PackedFraction.signum(f) < 0)
+            f = PackedFraction.subtract
+                (f, PackedFraction.valueOf(PackedFraction.floor(f)));
+        assert PackedFraction.signum(f) >= 0;
         // quick out
-        Fraction f = abs;
-        if (f.compareTo(this.modulus) >= 0) {
+        if (PackedFraction.compare(f, m) >= 0) {
             // reduce by modulus.
-            f = abs.divide(this.modulus);
+            f = PackedFraction.divide(f, m);
             // just want the fractional part.
-            f = f.subtract(Fraction.valueOf(f.floor()))
-                 .multiply(this.modulus);
+            f = PackedFraction.multiply(PackedFraction.subtract
+                (f, PackedFraction.valueOf(PackedFraction.floor(f))), m);
         }
-        assert f.compareTo(Fraction.ZERO) >= 0 && f.compareTo(this.modulus) < 0;
-        if (f==this.amount) return this; // quick out
-        return create(f, this.modulus);
+        assert PackedFraction.signum(f) >= 0 &&
+            PackedFraction.compare(f, m) < 0;
+        return f;
     }
     /** Rotations are equal iff their normalized rotation amount and
      * modulus are exactly equal. */
@@ -138,6 +215,8 @@ public class Rotation {
         if (this==o) return true; // common case.
 	if (!(o instanceof Rotation)) return false;
         Rotation r = (Rotation) o;
+        if (this.eighths != 0 && r.eighths != 0)
+            return this.eighths == r.eighths;
         if (!this.modulus.equals(r.modulus)) return false;
         return this.normalize().amount.equals(r.normalize().amount);
     }
@@ -171,6 +250,8 @@ public class Rotation {
      *  true
      */
     public boolean includes(Rotation r) {
+        if (this.eighths != 0 && r.eighths != 0)
+            return (r.eighths & ~this.eighths) == 0;
         Rotation r1 = this.normalize(), r2 = r.normalize();
         // check for an exact match.
         if (r1.equals(r2)) return true; // exact match.
@@ -212,6 +293,8 @@ public class Rotation {
      *  true
      */
     public boolean consistent(Rotation r) {
+        if (this.eighths != 0 && r.eighths != 0)
+            return (this.eighths & r.eighths) != 0;
         return this.intersect(r) != null;
     }
     /**
@@ -287,11 +370,23 @@ public class Rotation {
      *  js> Rotation.create(Fraction.ONE_EIGHTH, Fraction.ONE_QUARTER).union(
      *    >                 ExactRotation.SOUTH)
      *  0 mod 1/8
+     * @doc.test When the argument includes this rotation, it is the union:
+     *  js> ExactRotation.EAST.union(Rotation.fromAbsoluteString('-'))
+     *  1/4 mod 1/2
+     *  js> ExactRotation.fromAbsoluteString('nw').union(
+     *    > Rotation.fromAbsoluteString('x'))
+     *  1/8 mod 1/4
+     *  js> ExactRotation.NORTH.union(Rotation.fromAbsoluteString('o'))
+     *  0 mod 0
      */
     public Rotation union(Rotation r) {
         // easy case!
         if (this.includes(r))
             return this;
+        if (r.includes(this))
+            return r;
+        if (this.eighths != 0 && r.eighths != 0)
+            return smallestIncluding(this.eighths | r.eighths);
         // sort the first two ExactRotations in each Rotation
         Rotation a = this.normalize(), b = r.normalize();
         TreeSet<Fraction> rots =
@@ -303,6 +398,20 @@ public class Rotation {
                  third = rots.higher(second);
         return create(first, third.subtract(second)).normalize();
     }
+    /** Return the smallest rotation whose {@link #eighths} mask includes
+     *  the given mask. */
+    private static Rotation smallestIncluding(int mask) {
+        if ((mask & ~0xFF) != 0) return ALL;
+        if (Integer.bitCount(mask) == 1)
+            return create(Fraction.valueOf
+                          (Integer.numberOfTrailingZeros(mask), 8),
+                          Fraction.ONE);
+        for (int md = 2; md <= 8; md *= 2)
+            for (Rotation r : INTERNED[md])
+                if ((mask & ~r.eighths) == 0)
+                    return r;
+        throw new AssertionError("0 mod 1/8 includes everything");
+    }
     public static Rotation union(List<Rotation> rots) {
         Rotation r = null;
         for (Rotation rr : rots) {
@@ -354,6 +463,9 @@ public class Rotation {
     public Rotation intersect(Rotation r) {
         if (this.includes(r)) return r;
         if (r.includes(this)) return this;
+        // the subgroups of the eighths form a chain, so two of their
+        // cosets are either nested (handled above) or disjoint.
+        if (this.eighths != 0 && r.eighths != 0) return null;
         if (this.isExact() || r.isExact()) return null; // fast case
         // hm, this could be tricky
         Rotation result = null;
@@ -92,12 +92,13 @@ public enum StandardDancer implements Dancer {
 	COUPLE_3_BOY, COUPLE_3_GIRL, COUPLE_4_BOY, COUPLE_4_GIRL;
     
     /** Returns a couple number, from 1-4. */
-    public int coupleNumber() { return 1+(ordinal()/2); }
+    public int coupleNumber() { IdentityUse.note(); return 1+(ordinal()/2); }
     public boolean isHead() { return 1==(coupleNumber()%2); }
     public boolean isSide() { return 0==(coupleNumber()%2); }
-    public boolean isBoy() { return 0==(ordinal()%2); }
-    public boolean isGirl() { return 1==(ordinal()%2); }
+    public boolean isBoy() { IdentityUse.note(); return 0==(ordinal()%2); }
+    public boolean isGirl() { IdentityUse.note(); return 1==(ordinal()%2); }
     public boolean matchesTag(Tag tag) {
+        if (tag!=Tag.ALL && tag!=Tag.NONE) IdentityUse.note();
         switch (tag) {
         case BOY: return isBoy();
         case GIRL: return isGirl();
@@ -123,6 +124,7 @@ public enum StandardDancer implements Dancer {
         }
     }
     public Tag primitiveTag() {
+        IdentityUse.note();
         return Tag.values()[ordinal()+Tag.DANCER_1.ordinal()];
     }
     @Override
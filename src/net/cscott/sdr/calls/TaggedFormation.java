@@ -3,7 +3,6 @@ package net.cscott.sdr.calls;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -59,9 +58,13 @@ public class TaggedFormation extends Formation {
         }
     };
     private final MultiMap<Dancer,Tag> tags;
-    protected TaggedFormation(Map<Dancer,Position> location,
-            Set<Dancer> selected, MultiMap<Dancer,Tag> tags) {
-        super(location,selected);
+    protected TaggedFormation(TaggedFormation tf, Position[] positions,
+                              long selectedBits) {
+        super(tf, positions, selectedBits);
+        this.tags = tf.tags;
+    }
+    private TaggedFormation(TaggedFormation tf, MultiMap<Dancer,Tag> tags) {
+        super(tf);
         this.tags = tags;
     }
 
@@ -110,19 +113,18 @@ public class TaggedFormation extends Formation {
         return copy;
     }
     @Override
+    protected TaggedFormation derive(Position[] positions, long selectedBits) {
+        return new TaggedFormation(this, positions, selectedBits);
+    }
+    @Override
     public TaggedFormation select(Collection<Dancer> d) {
-        Set<Dancer> nSel = new LinkedHashSet<Dancer>(dancers());
-        nSel.retainAll(d);
-        return new TaggedFormation
-        (location, Collections.unmodifiableSet(nSel), tags);
+        // the superclass definition is in terms of this.derive
+        return (TaggedFormation) super.select(d);
     }
     @Override
     public TaggedFormation move(Dancer d, Position p) {
-	assert this.location.containsKey(d);
-	Map<Dancer,Position> nmap = new LinkedHashMap<Dancer,Position>
-	    (this.location);
-	nmap.put(d, p);
-	return new TaggedFormation(nmap, this.selected, this.tags);
+        // the superclass definition is in terms of this.derive
+        return (TaggedFormation) super.move(d, p);
     }
     /** Add additional tags to the given formation. */
     public TaggedFormation addTags(MultiMap<Dancer,Tag> newTags) {
@@ -130,7 +132,7 @@ public class TaggedFormation extends Formation {
             (Factories.enumSetFactory(Tag.class));
         nmap.addAll(this.tags);
         nmap.addAll(newTags);
-        return new TaggedFormation(this.location, this.selected, nmap);
+        return new TaggedFormation(this, nmap);
     }
 
     // utility functions.
@@ -239,7 +241,7 @@ public class TaggedFormation extends Formation {
     }
 
     public TaggedFormation(Formation f, MultiMap<Dancer,Tag> tags) {
-        super(f.location,f.selected);
+        super(f);
         this.tags = UnmodifiableMultiMap.proxy(tags);//tags can be changed
     }
     public static TaggedFormation coerce(Formation f) {
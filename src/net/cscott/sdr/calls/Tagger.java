@@ -3,12 +3,16 @@ package net.cscott.sdr.calls;
 import static net.cscott.sdr.util.Tools.m;
 import static net.cscott.sdr.util.Tools.p;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.jutil.Default;
 import net.cscott.jutil.Factories;
 import net.cscott.jutil.GenericMultiMap;
@@ -18,10 +22,14 @@ import net.cscott.jutil.PersistentSet;
 import net.cscott.sdr.calls.TaggedFormation.Tag;
 import net.cscott.sdr.util.Fraction;
 import net.cscott.sdr.util.LL;
+import net.cscott.sdr.util.LRUCache;
 import net.cscott.sdr.util.Point;
 
+import org.junit.runner.RunWith;
+
 /** Helper class to add common {@link TaggedFormation.Tag}s automatically to
  *  {@link TaggedFormation}s. */
+@RunWith(value=JDoctestRunner.class)
 public abstract class Tagger {
     private Tagger() { /* no instances */ }
     
@@ -30,14 +38,15 @@ public abstract class Tagger {
     //     multiple 4-person formations, like the very centers in
     //     point-to-point diamonds.
     public static void addAutomatic(Formation f, MultiMap<Dancer, Tag> tags) {
+        // all the center/outside tags come from the same grouping of the
+        // dancers by distance from the center.
+        List<Set<Dancer>> byDistance = f.dancersByDistance();
         switch(f.dancers().size()) {
         case 16:
-            tagCenters(f, new MatcherList.CenterMatcher(8),
-                       Tag.CENTER, Tag.OUTSIDE_8, tags);
+            tagCenters(f, byDistance, 8, Tag.CENTER, Tag.OUTSIDE_8, tags);
             break;
         case 12:
-            tagCenters(f, new MatcherList.CenterMatcher(4),
-                       Tag.CENTER, Tag.OUTSIDE_8, tags);
+            tagCenters(f, byDistance, 4, Tag.CENTER, Tag.OUTSIDE_8, tags);
             break;
         case 8:
             boolean centersOnEachSide = false;
@@ -52,13 +61,10 @@ public abstract class Tagger {
                     tags.getValues(d).remove(Tag.CENTER);
                     tags.getValues(d).remove(Tag.END);
                 }
-                tagCenters(f, new MatcherList.CenterMatcher(4),
-                           Tag.CENTER, Tag.END, tags);
+                tagCenters(f, byDistance, 4, Tag.CENTER, Tag.END, tags);
             }
-            tagCenters(f, new MatcherList.CenterMatcher(2),
-                       Tag.VERY_CENTER, Tag.OUTSIDE_6, tags);
-            tagCenters(f, new MatcherList.CenterMatcher(6),
-                       Tag.CENTER_6, Tag.OUTSIDE_2, tags);
+            tagCenters(f, byDistance, 2, Tag.VERY_CENTER, Tag.OUTSIDE_6, tags);
+            tagCenters(f, byDistance, 6, Tag.CENTER_6, Tag.OUTSIDE_2, tags);
             tag2(f, tags);
             break;
         case 4:
@@ -142,53 +148,132 @@ public abstract class Tagger {
         tagN(4, f, tags);
     }
 
-    /** Apply center/end tags using the CENTER_x Matchers. */
-    private static void tagCenters(Formation input, Matcher m,
-                                      Tag centerTag, Tag outsideTag,
-                                      MultiMap<Dancer,Tag> tags) {
-        try {
-            FormationMatch fm = m.match(input);
-            for (Dancer md : fm.meta.dancers()) {
-                TaggedFormation tf = fm.matches.get(md);
-                for (Dancer d : tf.dancers())
-                    if (tf.isTagged(d, Tag.CENTER)) {
-                        if (centerTag != null)
-                            tags.add(d, centerTag);
-                    } else {
-                        if (outsideTag != null)
-                            tags.add(d, outsideTag);
-                    }
+    /** Tag the {@code n} center dancers of the input formation with
+     *  {@code centerTag} and the rest with {@code outsideTag}, choosing the
+     *  centers the same way {@link MatcherList.CenterMatcher} does.  If
+     *  there isn't a well-defined set of {@code n} center dancers, no tags
+     *  are added. */
+    private static void tagCenters(Formation input,
+                                   List<Set<Dancer>> byDistance, int n,
+                                   Tag centerTag, Tag outsideTag,
+                                   MultiMap<Dancer,Tag> tags) {
+        Set<Dancer> centers =
+            MatcherList.CenterMatcher.centerDancers(byDistance, n);
+        if (centers == null)
+            return; /* no tags added */
+        for (Dancer d : input.dancers())
+            tags.add(d, centers.contains(d) ? centerTag : outsideTag);
+    }
+
+    /**
+     * Add the 1x2 or 1x4 tags for the given formation.  The tags depend
+     * only on the shape of the formation, so they are cached: the dancers
+     * are numbered in {@link Formation#dancers()} order, and the cache
+     * maps the shape to the sequence of (dancer number, tag) pairs which
+     * {@link #findTags} added, which is replayed onto the actual dancers.
+     */
+    private static void tagN(int n, Formation f, MultiMap<Dancer,Tag> tags) {
+        List<Dancer> dancers = new ArrayList<Dancer>(f.dancers());
+        TagKey key = new TagKey(n, f, dancers);
+        int[] found = TAG_CACHE.get(key);
+        if (found == null) {
+            // if the tags depended on which dancers are where, we can't
+            // cache them.
+            long identityUse = IdentityUse.count();
+            found = findTags(n, f, dancers);
+            if (IdentityUse.count() == identityUse)
+                TAG_CACHE.put(key, found);
+        }
+        for (int pair : found)
+            tags.add(dancers.get(pair >>> 8), TAGS[pair & 0xFF]);
+    }
+    private static final Tag[] TAGS = Tag.values();
+    /** Default maximum number of entries in the {@link #tagCache()}. */
+    public static final int TAG_CACHE_SIZE = 1024;
+    private static final LRUCache<TagKey,int[]> TAG_CACHE =
+        new LRUCache<TagKey,int[]>(TAG_CACHE_SIZE);
+    /** Return the cache of 1x2 and 1x4 tags used by {@link #tag2} and
+     *  {@link #tag4}, so that its hit and miss counts can be monitored and
+     *  its capacity adjusted.
+     * @doc.test Tagging the same shape with different dancers hits the
+     *  cache:
+     *  js> importPackage(net.cscott.jutil)
+     *  js> SD = StandardDancer; undefined
+     *  js> tags = new GenericMultiMap(); undefined
+     *  js> Tagger.tag2(FormationList.RH_MINIWAVE.mapStd([]), tags)
+     *  js> [tags.getValues(d) for each (d in [SD.COUPLE_1_BOY, SD.COUPLE_1_GIRL])]
+     *  [BEAU],[BEAU]
+     *  js> hits = Tagger.tagCache().hits(); undefined
+     *  js> tags = new GenericMultiMap(); undefined
+     *  js> Tagger.tag2(FormationList.RH_MINIWAVE.mapStd([SD.COUPLE_2_GIRL]),
+     *    >             tags)
+     *  js> [tags.getValues(d) for each (d in [SD.COUPLE_2_GIRL, SD.COUPLE_4_GIRL])]
+     *  [BEAU],[BEAU]
+     *  js> Tagger.tagCache().hits() - hits
+     *  1
+     */
+    public static LRUCache<?,?> tagCache() { return TAG_CACHE; }
+
+    /** Key for the {@link #tagCache()}: the template size and the location
+     *  and facing direction of each dancer, in {@link Formation#dancers()}
+     *  order. */
+    private static class TagKey {
+        final int n;
+        final List<Object> shape;
+        final int hashCode;
+        TagKey(int n, Formation f, List<Dancer> dancers) {
+            this.n = n;
+            this.shape = new ArrayList<Object>(2*dancers.size());
+            for (Dancer d : dancers) {
+                Position p = f.location(d);
+                shape.add(p.toPoint());
+                shape.add(p.facing);
             }
-        } catch (NoMatchException nme) {
-            /* no tags added */
+            this.hashCode = 31*shape.hashCode() + n;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TagKey)) return false;
+            TagKey tk = (TagKey) o;
+            return this.hashCode == tk.hashCode && this.n == tk.n &&
+                this.shape.equals(tk.shape);
         }
+        @Override
+        public int hashCode() { return hashCode; }
     }
 
-    private static void tagN(int n, Formation f, MultiMap<Dancer,Tag> tags) {
+    /** Match the given formation against the 2- or 4-dancer template,
+     *  returning the tags found as (dancer number, tag) pairs, where the
+     *  dancer number is the index in <code>dancers</code>. */
+    private static int[] findTags(int n, Formation f, List<Dancer> dancers) {
         assert n==2 || n==4;
         Formation template = (n==2) ? template2 : (n==4) ? template4 : null;
         int toff = (n==2) ? 0 : (n==4) ? 2 : -1;
         // match against our beau/belle pattern.
         LL<Dancer> allDancers = LL.create(f.sortedDancers());
-        Map<Point,Dancer> where = new HashMap<Point,Dancer>();
-        for (Dancer d: allDancers)
-            where.put(f.location(d).toPoint(), d);
         Match noMatch = new Match(allDancers);
+        List<Integer> found = new ArrayList<Integer>();
         for (int i=0; i<4; i+=2)  { //change to +=1 to support 45-off formations
             try {
                 // rotate the template formation and attempt a match.
                 Fraction extraRot = Fraction.valueOf(i, 8);
                 Formation t = template.rotate(new ExactRotation(extraRot));
-                Match m = match(f, where, n, toff,
+                Match m = match(f, n, toff,
                                 t.location(dancer[toff+1]).toPoint(),
                                 extraRot.negate(), allDancers, noMatch);
                 // add tags from this match
-                tags.addAll(m.tags);
+                for (Map.Entry<Dancer,Tag> me : m.tags.entrySet())
+                    found.add((dancers.indexOf(me.getKey()) << 8) +
+                              me.getValue().ordinal());
             } catch (NoMatchException nme) {
                 // hm, don't tag: the tag assignment is ambiguous.
                 continue;
             }
         }
+        int[] result = new int[found.size()];
+        for (int i=0; i<result.length; i++)
+            result[i] = found.get(i);
+        return result;
     }
 
     /** Compare {@link Dancer}s by their order in the supplied list. */
@@ -240,7 +325,6 @@ public abstract class Tagger {
     /** Attempt to extend the given partialMatch by examining the next dancer
      *  in the 'remaining' list. */
     private static Match match(Formation f,
-                               Map<Point, Dancer> where,
                                int templateSize, int templateOffset,
                                Point offset, Fraction extraRot,
                                LL<Dancer> remaining,
@@ -259,8 +343,8 @@ public abstract class Tagger {
             Point p1 = p0;
             for (int i=1; i<templateSize; i++) {
                 p1 = p1.add(offset);
-                if ((!where.containsKey(p1)) ||
-                    partialMatch.assigned.contains(where.get(p1))) {
+                Dancer d1 = f.dancerAt(p1);
+                if (d1 == null || partialMatch.assigned.contains(d1)) {
                     possible = false;
                     break;
                 }
@@ -270,14 +354,14 @@ public abstract class Tagger {
                 Match m = partialMatch;
                 p1 = p0;
                 for (int i=0; i<templateSize; i++) {
-                    Dancer d1 = where.get(p1);
+                    Dancer d1 = f.dancerAt(p1);
                     Rotation r1 = f.location(d1).facing.add(extraRot);
                     Tag t1 = dancerTags.get(dancer[i+templateOffset]).get(r1);
                     m = m.add(d1, t1);
                     p1 = p1.add(offset);
                 }
                 // recurse after adding these dancers/tags to the partialMatch
-                nBest1 = match(f, where, templateSize, templateOffset,
+                nBest1 = match(f, templateSize, templateOffset,
                                offset, extraRot, remaining.tail, m);
                 // quit early if there's no way to beat the nBest1 match
                 // without assigning dancer d0.
@@ -286,7 +370,7 @@ public abstract class Tagger {
             }
         }
         // okay, try to finish the match, skipping dancer d0
-        Match nBest0 = match(f, where, templateSize, templateOffset,
+        Match nBest0 = match(f, templateSize, templateOffset,
                              offset, extraRot, remaining.tail, partialMatch);
 
         // return the better match among nBest0 and nBest1
@@ -12,6 +12,9 @@ import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
 import net.cscott.sdr.util.Fraction;
 
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
 import org.junit.runner.RunWith;
 
 /**
@@ -79,6 +82,18 @@ public class Apply extends SeqCall {
         return call.toString();
     }
 
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        Apply n = (Apply) other;
+        return new EqualsBuilder()
+            .append(call, n.call)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(call).toHashCode();
+    }
+
     public Evaluator evaluator(DanceState ds)
         throws BadCallException {
         try {
@@ -100,7 +115,7 @@ public class Apply extends SeqCall {
 
     /** Factory: creates new Apply only if it would differ from this. */
     public Apply build(Expr call) {
-        if (this.call.equals(call))
+        if (this.call==call)
             return this;
         return new Apply(call);
     }
@@ -1,5 +1,11 @@
 package net.cscott.sdr.calls.ast;
 
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import org.junit.runner.RunWith;
 
 import net.cscott.jdoctest.JDoctestRunner;
@@ -10,12 +16,32 @@ import net.cscott.sdr.calls.transform.ValueVisitor;
 /**
  * {@link AstNode} is the abstract base class for abstract syntax
  * tree nodes representing parsed call definitions and components.
+ * Nodes are immutable, and compare equal when they have the same
+ * structure; their hash codes are computed once.  Structurally equal
+ * nodes can be shared with {@link #intern(AstNode)}.  Nodes are
+ * {@link Serializable} so that parsed call definitions can be saved in a
+ * {@link net.cscott.sdr.calls.CallDBSnapshot}.
+ * @doc.test
+ *  js> s1 = AstNode.valueOf("(Seq (Apply 'roll) (Apply 'roll))"); undefined
+ *  js> s2 = AstNode.valueOf("(Seq (Apply 'roll) (Apply 'roll))"); undefined
+ *  js> s1 === s2
+ *  false
+ *  js> s1.equals(s2) && s1.hashCode() == s2.hashCode()
+ *  true
+ *  js> s1.equals(AstNode.valueOf("(Seq (Apply 'roll))"))
+ *  false
+ *  js> AstNode.intern(s1) === AstNode.intern(s2)
+ *  true
  * @author C. Scott Ananian
  */
 @RunWith(value=JDoctestRunner.class)
-public abstract class AstNode {
+public abstract class AstNode implements Serializable {
     private final String name;
     public final int type;
+    private transient int hashCode = 0;
+    /** Weak table of canonical nodes; see {@link #intern(AstNode)}. */
+    private static final Map<AstNode,WeakReference<AstNode>> internTable =
+        new WeakHashMap<AstNode,WeakReference<AstNode>>();
     protected AstNode(int type) {
         this(type, null);
     }
@@ -46,6 +72,56 @@ public abstract class AstNode {
     public abstract <RESULT,CLOSURE>
     RESULT accept (ValueVisitor<RESULT,CLOSURE> v, CLOSURE cl);
 
+    /** Two nodes are equal if they are of the same class and have equal
+     *  fields and children. */
+    @Override
+    public final boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || o.getClass() != this.getClass()) return false;
+        AstNode n = (AstNode) o;
+        return this.hashCode() == n.hashCode() && structurallyEqual(n);
+    }
+    /** The hash code is computed from the structure of the node the first
+     *  time it is needed. */
+    @Override
+    public final int hashCode() {
+        int h = hashCode;
+        if (h == 0)
+            hashCode = h = structuralHash();
+        return h;
+    }
+    /** Compare the fields and children of this node with those of the given
+     *  node, which is of the same class as this one. */
+    protected abstract boolean structurallyEqual(AstNode other);
+    /** Compute a hash code from the fields and children of this node. */
+    protected abstract int structuralHash();
+    /** Shallow comparison used by the <code>build</code> factories: true
+     *  if the lists hold the very same nodes.  (A deep comparison would
+     *  hash every freshly-built subtree.) */
+    protected static boolean sameNodes(List<? extends AstNode> a,
+                                       List<? extends AstNode> b) {
+        if (a.size() != b.size()) return false;
+        for (int i=0; i<a.size(); i++)
+            if (a.get(i) != b.get(i))
+                return false;
+        return true;
+    }
+    /** Return the canonical node structurally equal to the given one: the
+     *  first such node interned which is still reachable.  Interning a tree
+     *  which is built over and over (by argument substitution, say) lets
+     *  the copies share the attributes cached in the canonical tree. */
+    @SuppressWarnings("unchecked") // equal nodes are of the same class
+    public static <N extends AstNode> N intern(N node) {
+        synchronized (internTable) {
+            WeakReference<AstNode> ref = internTable.get(node);
+            AstNode canonical = (ref == null) ? null : ref.get();
+            if (canonical != null)
+                return (N) canonical;
+            internTable.put(node, new WeakReference<AstNode>(node));
+            return node;
+        }
+    }
+
     /** Output AST tree in lisp-like notation. */
     @Override
     public String toString() { return ("("+name+" "+argsToString()+")").replaceAll(" \\)",")"); }
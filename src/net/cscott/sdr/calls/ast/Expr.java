@@ -10,6 +10,8 @@ import java.util.List;
 
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.sdr.calls.DanceState;
+import net.cscott.sdr.calls.Evaluator;
+import net.cscott.sdr.calls.ExprFunc;
 import net.cscott.sdr.calls.ExprList;
 import net.cscott.sdr.calls.ExprFunc.EvaluationException;
 import net.cscott.sdr.calls.transform.TransformVisitor;
@@ -17,6 +19,9 @@ import net.cscott.sdr.calls.transform.ValueVisitor;
 import net.cscott.sdr.util.Fraction;
 import net.cscott.sdr.util.Tools.F;
 
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
 import org.junit.runner.RunWith;
 
 /** {@link Expr} represents an expression to be computed at evaluation time.
@@ -28,6 +33,9 @@ import org.junit.runner.RunWith;
 public class Expr extends AstNode {
     public final String atom;
     public final List<Expr> args;
+    /** The function this node's atom was last resolved to; see
+     *  {@link #link(Class)}. */
+    private transient Link link;
     public Expr(String atom, List<Expr> args) {
         super(EXPR);
         this.atom = atom.intern();
@@ -36,6 +44,11 @@ public class Expr extends AstNode {
     public Expr(String atom, Expr... args) {
         this(atom, Arrays.asList(args));
     }
+    /** The evaluator compares atoms by identity, so deserialized nodes
+     *  must be rebuilt with interned atoms. */
+    private Object readResolve() {
+        return new Expr(atom, args);
+    }
 
     /** Special constructor to make an expression representing a constant
      *  string.  The literal "function" interprets its argument as a
@@ -98,10 +111,69 @@ public class Expr extends AstNode {
      *  true
      *  js> e.evaluate(fclass, null).toProperString()
      *  3
+     * @doc.test Constant expressions are only evaluated once:
+     *  js> mclass = java.lang.Class.forName("net.cscott.sdr.calls.Matcher")
+     *  class net.cscott.sdr.calls.Matcher
+     *  js> e = new Expr("or", Expr.literal("COUPLE"), Expr.literal("TANDEM"))
+     *  (Expr or 'COUPLE 'TANDEM)
+     *  js> m = e.evaluate(mclass, null)
+     *  or(COUPLE, TANDEM)
+     *  js> e.evaluate(mclass, null) === m
+     *  true
      */
+    @SuppressWarnings("unchecked") // links are checked against the type
     public final <T> T evaluate(Class<T> type, DanceState ds)
         throws EvaluationException {
-        return ExprList.evaluate(this.atom, type, ds, args);
+        Link l = link(type);
+        if (l.constant && l.value != null)
+            return (T) l.value;
+        ExprFunc<? extends T> func = (ExprFunc<? extends T>) l.func;
+        T result = func.evaluate(type, ds, args);
+        if (l.constant)
+            l.value = result;
+        return result;
+    }
+
+    /** Resolve this node's atom to the {@link ExprFunc} which evaluates it
+     *  at the given type, reusing the previous resolution if it was for
+     *  the same type and the definition it resolved to has not been
+     *  reloaded since.
+     *  Resolutions which fail are not remembered. */
+    private Link link(Class<?> type) throws EvaluationException {
+        Link l = this.link;
+        if (l == null || l.type != type ||
+            l.version != ExprList.version(l.func)) {
+            ExprFunc<?> func = ExprList.lookup(this.atom, type);
+            this.link = l = new Link(type, ExprList.version(func), func,
+                                     foldable(type) &&
+                                     isConstant(func, type, args));
+        }
+        return l;
+    }
+    /** Evaluators are stateful, so even constant ones are never folded. */
+    private static boolean foldable(Class<?> type) {
+        return !type.isAssignableFrom(Evaluator.class);
+    }
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static boolean isConstant(ExprFunc func, Class type,
+                                      List<Expr> args) {
+        return func.isConstant(type, args);
+    }
+    /** An atom resolved at a particular type.  If the resolved expression
+     *  is constant, its value is remembered after its first evaluation. */
+    private static class Link {
+        final Class<?> type;
+        final long version;
+        final ExprFunc<?> func;
+        final boolean constant;
+        volatile Object value;
+        Link(Class<?> type, long version, ExprFunc<?> func,
+             boolean constant) {
+            this.type = type;
+            this.version = version;
+            this.func = func;
+            this.constant = constant;
+        }
     }
 
     /** Returns true iff the value of this {@link Expr} is independent of the
@@ -122,7 +194,12 @@ public class Expr extends AstNode {
      *  false
      */
     public final boolean isConstant(Class<?> type) {
-        return ExprList.isConstant(this.atom, type, args);
+        try {
+            return isConstant(link(type).func, type, args);
+        } catch (EvaluationException e) {
+            assert false : "should never happen";
+            throw new RuntimeException(e);
+        }
     }
 
     /** Accept a visitor pattern. */
@@ -185,6 +262,19 @@ public class Expr extends AstNode {
         sb.append(")");
         return sb;
     }
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        Expr n = (Expr) other;
+        return new EqualsBuilder()
+            .append(atom, n.atom)
+            .append(args, n.args)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(atom).append(args).toHashCode();
+    }
+
     /** Factory: creates new Expr only if it would differ from this.
      * @doc.test
      *  js> importPackage(net.cscott.sdr.util)
@@ -215,7 +305,7 @@ public class Expr extends AstNode {
      *  false
      */
     public Expr build(String atom, List<Expr> args) {
-        if (this.atom.equals(atom) && this.args.equals(args))
+        if (this.atom.equals(atom) && sameNodes(this.args, args))
             return this;
         return new Expr(atom, args);
     }
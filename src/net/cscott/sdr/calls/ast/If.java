@@ -9,6 +9,9 @@ import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
 import net.cscott.sdr.util.Fraction;
 
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
 /** {@link If} rejects its child as suitable for execution from
  * the current formation unless its condition evaluates true.
  * @author C. Scott Ananian
@@ -69,6 +72,22 @@ public class If extends Comp {
         return v.visit(this, cl);
     }
     /** Factory: creates new If only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        If n = (If) other;
+        return new EqualsBuilder()
+            .append(when, n.when)
+            .append(condition, n.condition)
+            .append(child, n.child)
+            .append(message, n.message)
+            .append(priority, n.priority)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(when).append(condition).append(child).append(message).append(priority).toHashCode();
+    }
+
     public If build(Expr condition, Comp child) {
         if (this.condition==condition && this.child==child)
             return this;
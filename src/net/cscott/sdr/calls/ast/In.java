@@ -4,6 +4,8 @@ import static net.cscott.sdr.calls.parser.AstTokenTypes.IN;
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
 import net.cscott.sdr.util.Fraction;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 
 /** {@link In} alters the timing of its child such that it
  * executes its {@link In#child} in exactly {@link In#count} beats.
@@ -36,8 +38,21 @@ public class In extends Comp {
         return count.toString()+" "+child.toString();
     }
     /** Factory: creates new In only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        In n = (In) other;
+        return new EqualsBuilder()
+            .append(count, n.count)
+            .append(child, n.child)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(count).append(child).toHashCode();
+    }
+
     public In build(Expr count, Comp child) {
-        if (this.count.equals(count) && this.child==child)
+        if (this.count==count && this.child==child)
             return this;
         return new In(count, child);
     }
@@ -8,6 +8,9 @@ import java.util.List;
 
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 /**
  * {@link Opt} is a list of call options.  Each option has
  * an associated formation.  This first option whose formation is matchable
@@ -36,8 +39,20 @@ public class Opt extends Comp {
         return v.visit(this, cl);
     }
     /** Factory: creates new Opt only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        Opt n = (Opt) other;
+        return new EqualsBuilder()
+            .append(children, n.children)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(children).toHashCode();
+    }
+
     public Opt build(List<OptCall> children) {
-        if (this.children.equals(children)) return this;
+        if (sameNodes(this.children, children)) return this;
         return new Opt(children.toArray(new OptCall[children.size()]));
     }
     @Override
@@ -3,6 +3,8 @@ package net.cscott.sdr.calls.ast;
 import static net.cscott.sdr.calls.parser.CallFileLexer.FROM;
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 
 /** {@link OptCall} bundles a formation condition with a
  * {@link Comp}.
@@ -28,8 +30,21 @@ public class OptCall extends AstNode {
     }
     
     /** Factory: creates new OptCall only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        OptCall n = (OptCall) other;
+        return new EqualsBuilder()
+            .append(matcher, n.matcher)
+            .append(child, n.child)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(matcher).append(child).toHashCode();
+    }
+
     public OptCall build(Expr matcher, Comp child) {
-        if (this.matcher.equals(matcher) && this.child==child)
+        if (this.matcher==matcher && this.child==child)
             return this;
         return new OptCall(matcher, child);
     }
@@ -8,6 +8,9 @@ import java.util.List;
 
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 /**
  * {@link Par} is a list of call pieces.  Each piece has
  * an associated selector.  Every member of the formation must match
@@ -35,8 +38,20 @@ public class Par extends Comp {
         return v.visit(this, cl);
     }
     /** Factory: creates new Par only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        Par n = (Par) other;
+        return new EqualsBuilder()
+            .append(children, n.children)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(children).toHashCode();
+    }
+
     public Par build(List<ParCall> children) {
-        if (this.children.equals(children)) return this;
+        if (sameNodes(this.children, children)) return this;
         return new Par(children.toArray(new ParCall[children.size()]));
     }
     @Override
@@ -7,6 +7,8 @@ import net.cscott.sdr.calls.Selector;
 import net.cscott.sdr.calls.ExprFunc.EvaluationException;
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 
 /** {@link ParCall} bundles a selector with a
  * {@link Comp}.  A {@link ParCall} applies
@@ -42,6 +44,19 @@ public class ParCall extends AstNode {
         return v.visit(this, cl);
     }
     /** Factory: creates new ParCall only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        ParCall n = (ParCall) other;
+        return new EqualsBuilder()
+            .append(selector, n.selector)
+            .append(child, n.child)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(selector).append(child).toHashCode();
+    }
+
     public ParCall build(Expr selector, Comp child) {
         if (selector==this.selector && this.child==child)
             return this;
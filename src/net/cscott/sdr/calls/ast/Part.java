@@ -4,6 +4,8 @@ import static net.cscott.sdr.calls.parser.AstTokenTypes.PART;
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
 import net.cscott.sdr.util.Fraction;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 /**
  * {@link Part} denotes an fractional part of a call.  The {@link Part} also denotes
  * timing: each part executes in the same amount of time (unless modified by
@@ -76,6 +78,20 @@ public class Part extends SeqCall {
         return v.visit(this, cl);
     }
     /** Factory: creates new Part only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        Part n = (Part) other;
+        return new EqualsBuilder()
+            .append(divisibility, n.divisibility)
+            .append(howMany, n.howMany)
+            .append(child, n.child)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(divisibility).append(howMany).append(child).toHashCode();
+    }
+
     public Part build(Divisibility divisibility, Expr howMany, Comp child) {
         if (divisibility==this.divisibility &&
             howMany==this.howMany &&
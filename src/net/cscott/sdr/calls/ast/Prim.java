@@ -197,9 +197,8 @@ public class Prim extends SeqCall {
 	return sb.toString();
     }
     @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof Prim)) return false;
-        Prim p = (Prim) o;
+    protected boolean structurallyEqual(AstNode other) {
+        Prim p = (Prim) other;
         return new EqualsBuilder()
             .append(dirX, p.dirX)
             .append(x, p.x)
@@ -212,16 +211,13 @@ public class Prim extends SeqCall {
             .isEquals();
     }
     @Override
-    public int hashCode() {
-        if (hashCode==0)
-            hashCode = new HashCodeBuilder()
+    protected int structuralHash() {
+        return new HashCodeBuilder()
             .append(x).append(y).append(rot).append(time)
             .append(dirX).append(dirY).append(dirRot)
 	    .append(flags)
             .toHashCode();
-        return hashCode;
     }
-    private transient int hashCode = 0;
     
     // Factory methods
     /** Create a new Prim, identical to this one except that the time
@@ -8,6 +8,9 @@ import java.util.List;
 
 import net.cscott.sdr.calls.transform.TransformVisitor;
 import net.cscott.sdr.calls.transform.ValueVisitor;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
 /**
  * {@link Seq} is the serial composition of primitive call pieces.
  * @author C. Scott Ananian
@@ -33,8 +36,20 @@ public class Seq extends Comp {
         return v.visit(this, cl);
     }
     /** Factory: creates new Seq only if it would differ from this. */
+    @Override
+    protected boolean structurallyEqual(AstNode other) {
+        Seq n = (Seq) other;
+        return new EqualsBuilder()
+            .append(children, n.children)
+            .isEquals();
+    }
+    @Override
+    protected int structuralHash() {
+        return new HashCodeBuilder().append(children).toHashCode();
+    }
+
     public Seq build(List<SeqCall> children) {
-        if (this.children.equals(children)) return this;
+        if (sameNodes(this.children, children)) return this;
         return new Seq(children);
     }
     @Override
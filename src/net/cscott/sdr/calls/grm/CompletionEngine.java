@@ -3,9 +3,11 @@ package net.cscott.sdr.calls.grm;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.junit.runner.RunWith;
 
@@ -17,7 +19,6 @@ import net.cscott.sdr.calls.grm.Grm.Concat;
 import net.cscott.sdr.calls.grm.Grm.Mult;
 import net.cscott.sdr.calls.grm.Grm.Nonterminal;
 import net.cscott.sdr.calls.grm.Grm.Terminal;
-import net.cscott.sdr.util.LL;
 import net.cscott.sdr.util.Tools;
 
 /**
@@ -27,6 +28,11 @@ import net.cscott.sdr.util.Tools;
  * We are careful about expanding "+" and "*" to avoid generating an
  * infinite list of options.  We only expand once past the end of the
  * given input.
+ * <p>
+ * The input is tokenized once, and the ways each nonterminal can match
+ * from each input position are computed lazily and shared, so that
+ * producing the next completion extends the work done for the previous
+ * ones instead of walking the grammar again from the start.
  *
  * @doc.test Get completions for partial phrases, based on the grammar:
  *  js> importPackage(net.cscott.sdr.calls);
@@ -231,47 +237,28 @@ public class CompletionEngine {
                 }});
         return result;
     }
+    /** Enumerates the completions lazily, in the order in which a
+     *  depth-first walk of the grammar would find them. */
     static class CompletionIterator extends UnmodifiableIterator<String>{
-        final Program program;
-        final List<Token> input;
-        List<Integer> lastState;
-        String next;
-        boolean needNext, hasNext;
+        final Matches matches;
+        int index = 0;
         public CompletionIterator(Program program, String partial) {
-            this.program = program;
-            this.input = CompletionTokenizer.tokenize(partial);
-            this.lastState = Collections.emptyList();
-            this.needNext = true;
+            Map<String,Grm> rules = Grm.grammar(program);
+            Chart chart = new Chart
+                (rules, CompletionTokenizer.tokenize(partial));
+            this.matches = chart.matches(rules.get("start"), 0, false);
         }
-        /** This method does the real work, invoking a CompleteVisitor on the
-         *  nextState from last time. */
         @Override
         public boolean hasNext() {
-            if (needNext) {
-                this.needNext = false;
-                CompleteVisitor cv = new CompleteVisitor
-                    (Grm.grammar(program), new CompleteState
-                        (LL.create(input), LL.create(lastState),
-                         LL.<Integer>NULL(), LL.<String>NULL(), false));
-                Grm g = cv.rules.get("start");
-                this.hasNext = g.accept(cv);
-                StringBuilder sb = new StringBuilder();
-                for (Iterator<String> it=cv.cs.completion.reverse().iterator();
-                     it.hasNext(); ) {
-                    sb.append(it.next());
-                    if (it.hasNext()) sb.append(' ');
-                }
-                this.next = sb.toString();
-                this.lastState = cv.cs.nextState.toList();
-            }
-            return this.hasNext;
+            return matches.get(index) != null;
         }
-        /** This just returns the results of the call to {@link #hasNext()}. */
         @Override
         public String next() {
-            if (this.needNext) hasNext();
-            this.needNext = true;
-            return this.next;
+            Match m = matches.get(index++);
+            if (m == null) throw new NoSuchElementException();
+            StringBuilder sb = new StringBuilder();
+            m.appendTo(sb);
+            return sb.toString();
         }
     }
 
@@ -300,194 +287,278 @@ public class CompletionEngine {
         }
     }
 
-    /** Tracks the state of the grammar match. */
-    private static class CompleteState implements Cloneable {
-        LL<Token> partialInput;
-        LL<Integer> lastState;
-        LL<Integer> nextState;
-        LL<String> completion;
-        boolean matchedTerminal;
-        CompleteState(LL<Token> partialInput,
-                      LL<Integer> lastState, LL<Integer> nextState,
-                      LL<String> completion, boolean matchedTerminal) {
-            this.partialInput = partialInput;
-            this.lastState = lastState;
-            this.nextState = nextState;
-            this.completion = completion;
-            this.matchedTerminal = matchedTerminal;
-        }
-        public CompleteState clone() {
-            return new CompleteState(partialInput, lastState, nextState,
-                                     completion, matchedTerminal);
+    /** One way of matching a piece of the grammar against the input: the
+     *  words it adds to the completion, and the position in the input
+     *  after it.  Once a terminal past the end of the input has been
+     *  matched, nonterminals are no longer expanded.  The words are kept
+     *  as a tree, so that matches can be joined in constant time. */
+    private static final class Match {
+        final int pos;
+        final boolean matchedTerminal;
+        /** The single word matched, or null. */
+        final String word;
+        /** The matches joined to make this one, or null. */
+        final Match first, second;
+        Match(String word, int pos, boolean matchedTerminal) {
+            this(word, null, null, pos, matchedTerminal);
         }
-        void popInput() {
-            if (!partialInput.isEmpty())
-                partialInput = partialInput.pop();
+        private Match(String word, Match first, Match second,
+                      int pos, boolean matchedTerminal) {
+            this.word = word;
+            this.first = first;
+            this.second = second;
+            this.pos = pos;
+            this.matchedTerminal = matchedTerminal;
         }
-        int popState() {
-            if (lastState.isEmpty()) return 0;
-            int v = lastState.head;
-            lastState = lastState.pop();
-            // increment the state by one if this is the last state, that
-            // ensures that our invocation returns the 'next' completion, not
-            // the same completion as last time.
-            return (lastState.isEmpty()) ? (v+1) : v;
+        /** Return the match of this followed by the given match. */
+        Match then(Match m) {
+            return new Match(null, this, m, m.pos, m.matchedTerminal);
         }
-        void pushState(int v) {
-            this.nextState = this.nextState.push(v);
+        /** Append the words matched, separated by spaces. */
+        void appendTo(StringBuilder sb) {
+            if (word != null) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(word);
+            }
+            if (first != null) first.appendTo(sb);
+            if (second != null) second.appendTo(sb);
         }
-        void pushCompletion(String s) {
-            this.completion = this.completion.push(s);
+    }
+    /** A lazily-computed sequence of {@link Match}es, in depth-first order.
+     *  Matches are remembered once computed, so the sequence can be
+     *  traversed many times. */
+    private static abstract class Matches {
+        private final List<Match> found = new ArrayList<Match>();
+        private boolean done = false, busy = false;
+        /** Return the i'th match, or null if there are fewer. */
+        final Match get(int i) {
+            while (found.size() <= i && !done) {
+                assert !busy : "left-recursive grammar";
+                busy = true;
+                Match m = computeNext();
+                busy = false;
+                if (m == null) done = true;
+                else found.add(m);
+            }
+            return (i < found.size()) ? found.get(i) : null;
         }
+        /** Compute the next match, or return null if there are no more. */
+        abstract Match computeNext();
     }
-    /** Attempt to match the partial input against the call grammar. */
-    static final class CompleteVisitor extends GrmVisitor<Boolean> {
+    /** A sequence of (at most) one match. */
+    private static Matches single(final Match m) {
+        return new Matches() {
+            boolean first = true;
+            @Override
+            Match computeNext() {
+                if (!first) return null;
+                first = false;
+                return m;
+            }
+        };
+    }
+
+    /**
+     * Matches the grammar against a tokenized partial input.  The ways
+     * each nonterminal can match from each point in the input are computed
+     * lazily, the first time they are needed, and then shared by every
+     * completion which uses them; each completion is found by extending
+     * the previous one, rather than by walking the grammar again from the
+     * start.
+     */
+    static final class Chart {
         final Map<String,Grm> rules;
-        CompleteState cs;
-        CompleteVisitor(Map<String,Grm> rules, CompleteState cs) {
+        final List<Token> input;
+        /** Expansions of nonterminals, indexed by input position and
+         *  {@link Match#matchedTerminal}. */
+        private final List<Map<String,Matches>> memo;
+        Chart(Map<String,Grm> rules, List<Token> input) {
             this.rules = rules;
-            this.cs = cs;
+            this.input = input;
+            int n = 2*(input.size()+1);
+            this.memo = new ArrayList<Map<String,Matches>>(n);
+            for (int i=0; i < n; i++)
+                memo.add(null); // created when needed
         }
-
-        @Override
-        public Boolean visit(Alt alt) {
-            // try choices in order
-            int i=cs.popState();
-            CompleteState saved = this.cs.clone();
-            saved.lastState = LL.NULL(); // if we fail, don't try to use the
-                                         // rest of the saved state.
-            for ( ; i<alt.alternates.size(); i++) {
-                Grm g = alt.alternates.get(i);
-                if (g.accept(this)) {
-                    cs.pushState(i); // record where we were
-                    return true; // got one!
+        /** Return the ways the given grammar can match, starting from the
+         *  given input position. */
+        Matches matches(Grm g, int pos, boolean matchedTerminal) {
+            return g.accept(new MatchVisitor(pos, matchedTerminal));
+        }
+        /** Return the ways the given nonterminal's rule can match, starting
+         *  from the given input position. */
+        private Matches expand(final Nonterminal nonterm, final int pos,
+                               final boolean matchedTerminal) {
+            int index = 2*pos + (matchedTerminal?1:0);
+            Map<String,Matches> m = memo.get(index);
+            if (m == null)
+                memo.set(index, m = new HashMap<String,Matches>());
+            Matches result = m.get(nonterm.ruleName);
+            if (result == null) {
+                final Grm g = rules.get(nonterm.ruleName);
+                if (g==null) {
+                    assert false : "missing rule: "+nonterm.ruleName;
+                    return none();
                 }
-                this.cs = saved.clone();
+                // lazily, in case the rule never needs to be expanded.
+                result = new Matches() {
+                    Matches expansion = null;
+                    int i = 0;
+                    @Override
+                    Match computeNext() {
+                        if (expansion == null)
+                            expansion = matches(g, pos, matchedTerminal);
+                        return expansion.get(i++);
+                    }
+                };
+                m.put(nonterm.ruleName, result);
             }
-            // none matched.
-            return false;
+            return result;
         }
-        @Override
-        public Boolean visit(Concat concat) {
-            CompleteState saved = this.cs.clone();
-            List<Integer> n = new ArrayList<Integer>();
-            assert this.cs.nextState.isEmpty();
-            // no choices here, either we match or we don't.
-            AGAIN: while (true) {
-                for (Grm g : concat.sequence) {
-                    if (g.accept(this)) {
-                        // add nextState to n; clear n for next g
-                        transferNextTo(n);
-                    } else {
-                        this.cs = saved.clone();
-                        this.cs.lastState = LL.create(n);
-                        n.clear();
-                        if (!this.cs.lastState.isEmpty())
-                            // retry a different alternative
-                            continue AGAIN;
-                        // no chance this will work
-                        return false;
+        private static Matches none() { return single(null); }
+
+        /** Builds the {@link Matches} for a piece of the grammar. */
+        private final class MatchVisitor extends GrmVisitor<Matches> {
+            final int pos;
+            final boolean matchedTerminal;
+            MatchVisitor(int pos, boolean matchedTerminal) {
+                this.pos = pos;
+                this.matchedTerminal = matchedTerminal;
+            }
+            private boolean atEnd() { return pos == input.size(); }
+
+            @Override
+            public Matches visit(final Alt alt) {
+                // try choices in order
+                return new Matches() {
+                    int k = 0, i = 0;
+                    Matches choice = null;
+                    @Override
+                    Match computeNext() {
+                        while (k < alt.alternates.size()) {
+                            if (choice == null)
+                                choice = matches(alt.alternates.get(k),
+                                                 pos, matchedTerminal);
+                            Match m = choice.get(i++);
+                            if (m != null) return m;
+                            // this choice is exhausted; try the next.
+                            choice = null;
+                            k++; i = 0;
+                        }
+                        return null;
                     }
-                }
-                // well, i guess this worked!
-                this.cs.nextState = LL.create(n);
-                return true;
+                };
             }
-        }
-        @Override
-        public Boolean visit(Mult mult) {
-	    // desugar '+' into Concat(x, Mult(x, STAR))
-	    if (mult.type == Mult.Type.PLUS)
-	        return new Concat(Tools.l
-	                (mult.operand, new Mult(mult.operand, Mult.Type.STAR)))
-	                .accept(this);
-	    // desugar '?' into Alt(<NULL>, x)
-	    // also, make * into ? if partialInput.isEmpty()
-	    if (mult.type == Mult.Type.QUESTION || cs.partialInput.isEmpty())
-	        return new Alt(Tools.l(new Nonterminal("<NULL>", -1),
-	                               mult.operand)).accept(this);
-	    // otherwise, '*' desugars to Alt(<NULL>, Mult(x, PLUS))
-	    return new Alt(Tools.l(new Nonterminal("<NULL>", -1),
-	                           new Mult(mult.operand, Mult.Type.PLUS)))
-	                .accept(this);
-        }
-        @Override
-        public Boolean visit(Nonterminal nonterm) {
-            // for <NUMBER> look also for <digit> (<digit> / <digit>)?
-	    // note that we don't try to match <number> or <fraction> or
-	    // <digit_greater_than_two> here; <NUMBER> is the only thing
-	    // which can match a TokenType.FRACTION
-	    if ((!cs.partialInput.isEmpty()) &&
-                cs.partialInput.head.type==Token.TokenType.FRACTION &&
-		nonterm.ruleName.equals("NUMBER")) {
-		matchterm(cs.partialInput.head.text);
-		return true;
+            @Override
+            public Matches visit(Concat concat) {
+                // each element continues each match of the ones before it
+                Matches prefix = word(null);
+                for (Grm g : concat.sequence)
+                    prefix = then(prefix, g);
+                return prefix;
             }
-            // special match for <digit>, <EOF> (others?)
-	    // these are 'pseudo-terminals'
-            if (nonterm.ruleName.equals("EOF"))
-                // <EOF> matches iff we've grabbed all the partial input.
-                return cs.partialInput.isEmpty();
-            if (nonterm.ruleName.equals("VOID"))
-                return false; // trivial match
-            if (nonterm.ruleName.equals("<NULL>"))
-                return true; // trivial match
-            if (nonterm.ruleName.equals("NUMBER"))
-		// we would have matched it against FRACTION token above.
-                return false;
-            // if "no terminals past partialInput yet" then we'll grab the
-            // nt from the GrmDB and recurse; otherwise we'll return
-            // "<"+nonterm.prettyname+">" in the completion string & true.
-            // prettyName==null means "never show this nonterminal to the user
-            // in a completion"
-            boolean expandNT = true;
-            // don't expand non terminal if we can make progress without it
-            if (cs.matchedTerminal) expandNT = false;
-            // don't expand non terminal if it's a number
-            if (cs.partialInput.isEmpty()) {
-                if (nonterm.ruleName.equals("number") ||
-                    nonterm.ruleName.equals("times") ||
-                    nonterm.ruleName.equals("digit_greater_than_two"))
-                    expandNT = false;
+            private Matches then(final Matches prefix, final Grm g) {
+                return new Matches() {
+                    int j = 0, i = 0;
+                    Match first = null;
+                    Matches rest = null;
+                    @Override
+                    Match computeNext() {
+                        while (true) {
+                            if (rest == null) {
+                                first = prefix.get(j);
+                                if (first == null) return null;
+                                rest = matches(g, first.pos,
+                                               first.matchedTerminal);
+                            }
+                            Match m = rest.get(i++);
+                            if (m != null) return first.then(m);
+                            rest = null;
+                            j++; i = 0;
+                        }
+                    }
+                };
             }
-            // always expand non terminal if the pretty name is null
-            if (nonterm.prettyName==null) expandNT = true;
-            // okay, what's the verdict?
-            if (!expandNT) {
-                cs.pushCompletion("<"+nonterm.prettyName+">");
-                return true;
+            @Override
+            public Matches visit(Mult mult) {
+                // desugar '+' into Concat(x, Mult(x, STAR))
+                if (mult.type == Mult.Type.PLUS)
+                    return new Concat(Tools.l
+                        (mult.operand, new Mult(mult.operand, Mult.Type.STAR)))
+                        .accept(this);
+                // desugar '?' into Alt(<NULL>, x)
+                // also, make * into ? if we're at the end of the input
+                if (mult.type == Mult.Type.QUESTION || atEnd())
+                    return new Alt(Tools.l(new Nonterminal("<NULL>", -1),
+                                           mult.operand)).accept(this);
+                // otherwise, '*' desugars to Alt(<NULL>, Mult(x, PLUS))
+                return new Alt(Tools.l(new Nonterminal("<NULL>", -1),
+                                       new Mult(mult.operand, Mult.Type.PLUS)))
+                    .accept(this);
             }
-            Grm g = rules.get(nonterm.ruleName);
-            if (g==null) {
-                assert false : "missing rule: "+nonterm.ruleName;
-                return false;
+            @Override
+            public Matches visit(Nonterminal nonterm) {
+                // for <NUMBER> look also for <digit> (<digit> / <digit>)?
+                // note that we don't try to match <number> or <fraction> or
+                // <digit_greater_than_two> here; <NUMBER> is the only thing
+                // which can match a TokenType.FRACTION
+                if (!atEnd() &&
+                    input.get(pos).type==Token.TokenType.FRACTION &&
+                    nonterm.ruleName.equals("NUMBER"))
+                    return matchterm(input.get(pos).text);
+                // special match for <digit>, <EOF> (others?)
+                // these are 'pseudo-terminals'
+                if (nonterm.ruleName.equals("EOF"))
+                    // <EOF> matches iff we've grabbed all the partial input.
+                    return atEnd() ? word(null) : none();
+                if (nonterm.ruleName.equals("VOID"))
+                    return none(); // trivial match
+                if (nonterm.ruleName.equals("<NULL>"))
+                    return word(null); // trivial match
+                if (nonterm.ruleName.equals("NUMBER"))
+                    // we would have matched it against FRACTION token above.
+                    return none();
+                // if "no terminals past partialInput yet" then we'll expand
+                // the nt from the grammar; otherwise we'll return
+                // "<"+nonterm.prettyname+">" in the completion string.
+                // prettyName==null means "never show this nonterminal to
+                // the user in a completion"
+                boolean expandNT = true;
+                // don't expand non terminal if we can make progress without
+                if (matchedTerminal) expandNT = false;
+                // don't expand non terminal if it's a number
+                if (atEnd()) {
+                    if (nonterm.ruleName.equals("number") ||
+                        nonterm.ruleName.equals("times") ||
+                        nonterm.ruleName.equals("digit_greater_than_two"))
+                        expandNT = false;
+                }
+                // always expand non terminal if the pretty name is null
+                if (nonterm.prettyName==null) expandNT = true;
+                // okay, what's the verdict?
+                if (!expandNT)
+                    return word("<"+nonterm.prettyName+">");
+                return expand(nonterm, pos, matchedTerminal);
             }
-            return g.accept(this);
-        }
-        @Override
-        public Boolean visit(Terminal term) {
-            // do we match the nonterminal, or not?
-            if (cs.partialInput.isEmpty() ||
-                cs.partialInput.head.matches(term.literal)) {
-                // okay, we match.
-                matchterm(term.literal);
-                return true;
+            @Override
+            public Matches visit(Terminal term) {
+                // do we match the terminal, or not?
+                if (atEnd() || input.get(pos).matches(term.literal))
+                    return matchterm(term.literal);
+                // not a match
+                return none();
+            }
+            /** Match the given word without consuming any input. */
+            private Matches word(String s) {
+                return single(new Match(s, pos, matchedTerminal));
+            }
+            /** Match the given word against the next token of input (or the
+             *  end of the input) for Terminal/Nonterminal matches. */
+            private Matches matchterm(String s) {
+                if (atEnd())
+                    return single(new Match(s, pos, true));
+                return single(new Match(s, pos+1, matchedTerminal));
             }
-            // not a match
-            return false;
-        }
-        // helper function for Concat (and for Mult, where + and * turns
-        // into Concat)
-        private void transferNextTo(List<Integer> n) {
-            for (Integer i: this.cs.nextState)
-                n.add(i);
-            this.cs.nextState = LL.NULL();
-        }
-        // helper function for Terminal/Nonterminal matches
-        private void matchterm(String s) {
-            if (cs.partialInput.isEmpty()) cs.matchedTerminal=true;
-            cs.popInput(); // safe even if cs.partialInput.isEmpty()
-            cs.pushCompletion(s);
         }
     }
 }
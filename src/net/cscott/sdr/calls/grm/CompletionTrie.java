@@ -0,0 +1,346 @@
+package net.cscott.sdr.calls.grm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.cscott.jdoctest.JDoctestRunner;
+import net.cscott.sdr.calls.Program;
+import net.cscott.sdr.calls.grm.Grm.Alt;
+import net.cscott.sdr.calls.grm.Grm.Concat;
+import net.cscott.sdr.calls.grm.Grm.Mult;
+import net.cscott.sdr.calls.grm.Grm.Nonterminal;
+import net.cscott.sdr.calls.grm.Grm.Terminal;
+import net.cscott.sdr.util.LL;
+
+import org.junit.runner.RunWith;
+
+/**
+ * A {@link CompletionTrie} holds the completion phrases of a
+ * {@link Program}'s grammar in a compressed trie, so that typeahead
+ * queries can be answered in time proportional to the length of the
+ * prefix and the number of results, without walking the grammar.
+ * <p>
+ * The phrases are those the {@link CompletionEngine} offers for an empty
+ * input: the words of a call, with the nonterminals after its first word
+ * kept as placeholders like <code>&lt;number&gt;</code> or
+ * <code>&lt;anything&gt;</code>.  Repetitions are expanded at most once,
+ * and recursive expansions of hidden nonterminals are cut off.  Inputs
+ * which go past a placeholder (like "square thru 3") aren't in the trie;
+ * {@link #suggest(Program,String,int)} hands them to the
+ * {@link CompletionEngine}.
+ * @doc.test Phrases come back in the same order as the sorted results of
+ *  {@link CompletionEngine#complete(Program,String,int)}, placeholders
+ *  last:
+ *  js> importPackage(net.cscott.sdr.calls);
+ *  js> t = CompletionTrie.forProgram(Program.PLUS); undefined
+ *  js> t.complete("trade ", 100)
+ *  [trade and roll, trade and spread, trade and sweep <fraction>, trade by, trade by and roll, trade by and spread, trade by and sweep <fraction>, trade by <times>, trade the wave, trade the wave and roll, trade the wave and spread, trade the wave and sweep <fraction>, trade the wave <times>, trade <times>]
+ *  js> t.complete("Square  Thru", 3)
+ *  [square thru, square thru and roll, square thru and spread]
+ *  js> t.complete("heads", 3)
+ *  [heads back out, heads back out and roll, heads back out and spread]
+ * @doc.test Input past a placeholder is completed by the
+ *  {@link CompletionEngine}:
+ *  js> importPackage(net.cscott.sdr.calls);
+ *  js> t = CompletionTrie.forProgram(Program.PLUS); undefined
+ *  js> t.complete("square thru 3 ", 3)
+ *  []
+ *  js> CompletionTrie.suggest(Program.PLUS, "square thru 3 ", 3)
+ *  [square thru 3 times, square thru 3 times <times>, square thru 3 times and roll]
+ * @doc.test The trie is built once per program:
+ *  js> importPackage(net.cscott.sdr.calls);
+ *  js> t = CompletionTrie.forProgram(Program.PLUS); undefined
+ *  js> CompletionTrie.forProgram(Program.PLUS) === t
+ *  true
+ *  js> t.size() > 1000
+ *  true
+ * @author C. Scott Ananian
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class CompletionTrie {
+    /** The root of the trie; its label is empty. */
+    private final Node root;
+    /** The number of phrases in the trie. */
+    private final int size;
+
+    private CompletionTrie(List<String> phrases) {
+        String[] sorted = phrases.toArray(new String[phrases.size()]);
+        Arrays.sort(sorted, PHRASE_ORDER);
+        this.root = build(sorted, 0, sorted.length, 0, "",
+                          new HashMap<Node,Node>());
+        this.size = sorted.length;
+    }
+
+    private static final Map<Program,CompletionTrie> tries =
+        new EnumMap<Program,CompletionTrie>(Program.class);
+    /** Return the (shared) completion trie for the given program, building
+     *  it the first time it is requested. */
+    public static CompletionTrie forProgram(Program program) {
+        synchronized (tries) {
+            CompletionTrie t = tries.get(program);
+            if (t == null) {
+                PhraseCollector pc =
+                    new PhraseCollector(Grm.grammar(program));
+                pc.walk(LL.<Object>create(pc.rules.get("start")),
+                        LL.<String>NULL(), false, LL.<String>NULL());
+                t = new CompletionTrie(new ArrayList<String>(pc.phrases));
+                tries.put(program, t);
+            }
+            return t;
+        }
+    }
+    /** Return up to <code>limit</code> completions for the given input,
+     *  from the program's trie if it has any and otherwise from the
+     *  {@link CompletionEngine}. */
+    public static List<String> suggest(Program program, String input,
+                                       int limit) {
+        List<String> result = forProgram(program).complete(input, limit);
+        if (result.isEmpty())
+            result = CompletionEngine.complete(program, input, limit);
+        return result;
+    }
+
+    /** Return the number of phrases in the trie. */
+    public int size() { return size; }
+
+    /** Return up to <code>limit</code> phrases starting with the given
+     *  prefix, in order.  Case, hyphens, and extra spaces in the prefix are
+     *  ignored. */
+    public List<String> complete(String prefix, int limit) {
+        String p = normalize(prefix);
+        // find the node for the prefix, and how much of its label the
+        // prefix covers
+        Node n = root;
+        int i = 0, k = 0;
+        while (i < p.length()) {
+            n = n.child(p.charAt(i));
+            if (n == null) return Collections.emptyList();
+            for (k=0; k < n.label.length() && i < p.length(); k++, i++)
+                if (n.label.charAt(k) != p.charAt(i))
+                    return Collections.emptyList();
+        }
+        // every phrase below it matches.
+        List<String> result = new ArrayList<String>(Math.min(limit, 16));
+        if (limit > 0) {
+            StringBuilder text = new StringBuilder(p);
+            text.append(n.label, k, n.label.length());
+            n.collect(text, result, limit);
+        }
+        return result;
+    }
+    /** Canonicalize typed input the way the grammars expect: lower case,
+     *  hyphens as spaces, and single spaces between words.  A trailing
+     *  space is kept, since it ends the last word. */
+    private static String normalize(String s) {
+        s = s.replace('-',' ').toLowerCase().replaceAll("\\s+", " ");
+        return s.startsWith(" ") ? s.substring(1) : s;
+    }
+
+    /** Sort order for phrases: alphabetical, with placeholders last, as in
+     *  {@link CompletionEngine#complete(Program,String,int)}. */
+    private static final Comparator<String> PHRASE_ORDER =
+        new Comparator<String>() {
+            public int compare(String s1, String s2) {
+                int n = Math.min(s1.length(), s2.length());
+                for (int i=0; i<n; i++) {
+                    int c = key(s1.charAt(i)) - key(s2.charAt(i));
+                    if (c != 0) return c;
+                }
+                return s1.length() - s2.length();
+            }
+        };
+    private static char key(char c) { return (c=='<') ? '~' : c; }
+
+    /** A node of the trie.  Nodes are immutable, and identical subtrees
+     *  (such as the lists of suffixes shared by most calls) are
+     *  shared. */
+    private static final class Node {
+        /** The characters on the edge leading to this node. */
+        final String label;
+        /** True if a phrase ends at this node. */
+        final boolean end;
+        /** Child nodes, in {@link #PHRASE_ORDER} of their labels. */
+        final Node[] children;
+        final int hashCode;
+        Node(String label, boolean end, Node[] children) {
+            this.label = label;
+            this.end = end;
+            this.children = children;
+            int h = label.hashCode() + (end ? 1 : 0);
+            for (Node c : children)
+                h = 31*h + System.identityHashCode(c);
+            this.hashCode = h;
+        }
+        /** Return the child whose label starts with the given character,
+         *  or null. */
+        Node child(char c) {
+            int lo = 0, hi = children.length - 1;
+            char k = key(c);
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                char m = key(children[mid].label.charAt(0));
+                if (m < k) lo = mid + 1;
+                else if (m > k) hi = mid - 1;
+                else return children[mid];
+            }
+            return null;
+        }
+        /** Add the phrases at and below this node, which start with the
+         *  given text, to the given list in order, until it holds
+         *  <code>limit</code> of them. */
+        void collect(StringBuilder text, List<String> result, int limit) {
+            if (end) result.add(text.toString());
+            int length = text.length();
+            for (Node c : children) {
+                if (result.size() >= limit) return;
+                text.append(c.label);
+                c.collect(text, result, limit);
+                text.setLength(length);
+            }
+        }
+        /** Nodes are equal if they have the same label and end flag, and
+         *  the very same children. */
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            Node n = (Node) o;
+            if (this.hashCode != n.hashCode || this.end != n.end ||
+                !this.label.equals(n.label) ||
+                this.children.length != n.children.length)
+                return false;
+            for (int i=0; i<children.length; i++)
+                if (this.children[i] != n.children[i])
+                    return false;
+            return true;
+        }
+        @Override
+        public int hashCode() { return hashCode; }
+    }
+    /** Build the node for the sorted, distinct phrases in
+     *  <code>[lo, hi)</code>, which share their first <code>depth</code>
+     *  characters, reusing any identical node already in
+     *  <code>nodes</code>. */
+    private static Node build(String[] sorted, int lo, int hi, int depth,
+                              String label, Map<Node,Node> nodes) {
+        boolean end = false;
+        if (lo < hi && sorted[lo].length() == depth) {
+            end = true; // a prefix sorts before its extensions
+            lo++;
+        }
+        List<Node> children = new ArrayList<Node>();
+        while (lo < hi) {
+            // group the phrases with the same next character
+            char c = sorted[lo].charAt(depth);
+            int last = lo + 1;
+            while (last < hi && sorted[last].charAt(depth) == c)
+                last++;
+            // the group's common prefix is that of its first & last members
+            String first = sorted[lo], lastPhrase = sorted[last-1];
+            int d = depth + 1;
+            while (d < first.length() && d < lastPhrase.length() &&
+                   first.charAt(d) == lastPhrase.charAt(d))
+                d++;
+            children.add(build(sorted, lo, last, d,
+                               first.substring(depth, d), nodes));
+            lo = last;
+        }
+        Node n = new Node(label, end,
+                          children.toArray(new Node[children.size()]));
+        Node shared = nodes.get(n);
+        if (shared != null) return shared;
+        nodes.put(n, n);
+        return n;
+    }
+
+    /** Walks the grammar to find its completion phrases, treating
+     *  nonterminals the way the {@link CompletionEngine} does at the end
+     *  of its input. */
+    private static final class PhraseCollector {
+        /** Marks the end of a nonterminal's expansion in a to-do list. */
+        private static final Object EXIT = new Object();
+        final Map<String,Grm> rules;
+        final Set<String> phrases = new HashSet<String>();
+        PhraseCollector(Map<String,Grm> rules) { this.rules = rules; }
+
+        /** Record every phrase which finishes the given list of grammar
+         *  items after the given words (last word first).
+         *  <code>active</code> holds the nonterminals being expanded. */
+        void walk(LL<Object> todo, LL<String> words,
+                  boolean matchedTerminal, LL<String> active) {
+            if (todo.isEmpty()) {
+                StringBuilder sb = new StringBuilder();
+                for (String w : words.reverse()) {
+                    if (sb.length() > 0) sb.append(' ');
+                    sb.append(w);
+                }
+                phrases.add(sb.toString());
+                return;
+            }
+            Object item = todo.head;
+            LL<Object> rest = todo.pop();
+            if (item == EXIT) {
+                walk(rest, words, matchedTerminal, active.pop());
+            } else if (item instanceof Terminal) {
+                walk(rest, words.push(((Terminal) item).literal), true,
+                     active);
+            } else if (item instanceof Alt) {
+                for (Grm g : ((Alt) item).alternates)
+                    walk(rest.push(g), words, matchedTerminal, active);
+            } else if (item instanceof Concat) {
+                List<Grm> seq = ((Concat) item).sequence;
+                for (int i=seq.size()-1; i>=0; i--)
+                    rest = rest.push(seq.get(i));
+                walk(rest, words, matchedTerminal, active);
+            } else if (item instanceof Mult) {
+                // as at the end of the input: 'x+' is 'x x?', and
+                // 'x*' is 'x?'
+                Mult m = (Mult) item;
+                if (m.type == Mult.Type.PLUS)
+                    rest = rest.push(new Mult(m.operand, Mult.Type.QUESTION));
+                else
+                    walk(rest, words, matchedTerminal, active);
+                walk(rest.push(m.operand), words, matchedTerminal, active);
+            } else {
+                nonterminal((Nonterminal) item, rest, words,
+                            matchedTerminal, active);
+            }
+        }
+        private void nonterminal(Nonterminal nt, LL<Object> rest,
+                                 LL<String> words, boolean matchedTerminal,
+                                 LL<String> active) {
+            String name = nt.ruleName;
+            if (name.equals("EOF") || name.equals("<NULL>")) {
+                walk(rest, words, matchedTerminal, active);
+                return;
+            }
+            if (name.equals("VOID") || name.equals("NUMBER"))
+                return; // these never match at the end of the input
+            boolean expandNT = !matchedTerminal;
+            if (name.equals("number") || name.equals("times") ||
+                name.equals("digit_greater_than_two"))
+                expandNT = false;
+            if (nt.prettyName == null) expandNT = true;
+            if (!expandNT) {
+                walk(rest, words.push("<"+nt.prettyName+">"),
+                     matchedTerminal, active);
+                return;
+            }
+            // cut off recursive expansions, which would never end.
+            for (String a : active)
+                if (a.equals(name))
+                    return;
+            Grm g = rules.get(name);
+            assert g != null : "missing rule: "+name;
+            walk(rest.push(EXIT).push(g), words, matchedTerminal,
+                 active.push(name));
+        }
+    }
+}
@@ -3,8 +3,6 @@ package net.cscott.sdr.calls.grm;
 import static net.cscott.sdr.util.StringEscapeUtils.escapeJava;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -13,7 +11,6 @@ import java.util.Map;
 import java.util.TreeMap;
 
 import net.cscott.jutil.MultiMap;
-import net.cscott.sdr.DevSettings;
 import net.cscott.sdr.calls.Program;
 import net.cscott.sdr.calls.grm.Grm.Alt;
 import net.cscott.sdr.calls.grm.Grm.Concat;
@@ -127,67 +124,69 @@ public class EmitJava extends AbstractEmit {
         public String visit(Terminal term) { return term.repr(); }
     };
     public String emit() {
-        // emit all the grammars
-	Collection<Program> pp = grmTable.keySet();
-	if (DevSettings.ONLY_C4_GRAMMAR)
-	    pp = Arrays.asList(Program.values());
-
-        for (Program p: pp) {
-            sb.append("    /** Map from nonterminal names to grammar ");
-            sb.append("productions for the ");
-            sb.append(p.name());
-            sb.append(NL);
-            sb.append("     *  dance program. */");
-            sb.append(NL);
-            sb.append("    public static final Map<String,Grm> ");
-            sb.append(p.name());
-            sb.append(";");
-            sb.append(NL);
+        // emit the accessor for all the grammars
+        sb.append("    /** Return the map from nonterminal names to grammar ");
+        sb.append("productions for"+NL);
+        sb.append("     *  the given dance program, building it if ");
+        sb.append("necessary. */"+NL);
+        sb.append("    public static Map<String,Grm> grammar(Program p) {"+NL);
+        sb.append(INDENT);
+        sb.append("switch (p) {"+NL);
+        for (Program p: Program.values()) {
+            Program q = grmTable.containsKey(p) ? p : Program.C4;
+            sb.append(INDENT);
+            sb.append("case "+p.name()+": return _"+q.name()+".G;"+NL);
         }
-        sb.append("    static {"+NL);
         sb.append(INDENT);
-        sb.append("List<Grm> l = _build();");
+        sb.append("default: throw new IllegalArgumentException(p.name());");
         sb.append(NL);
+        sb.append(INDENT);
+        sb.append("}"+NL);
+        sb.append("    }"+NL);
+
+        // emit a lazily-initialized holder class for each grammar.  The
+        // productions are numbered in program order, so each grammar
+        // only needs a prefix of the shared list of productions.
         for (Program p: grmTable.keySet()) {
             Map<String,Grm> m = grmTable.get(p);
-            sb.append(INDENT);
-            sb.append("Map<String,Grm> _");
-            sb.append(p.name());
-            sb.append(" = new HashMap<String,Grm>();");
-            sb.append(NL);
+            StringBuilder puts = new StringBuilder();
+            int needed = 0;
             for (String nonterm : m.keySet()) {
                 Grm g = SimplifyGrm.simplify(m.get(nonterm)).intern();
                 int n = num(g);
-                sb.append(INDENT);
-                sb.append("_");
-                sb.append(p.name());
-                sb.append(".put(\"");
-                sb.append(escapeJava(nonterm));
-                sb.append("\",l.get("+n+"));"+NL);
+                needed = Math.max(needed, n+1);
+                puts.append(INDENT+"    ");
+                puts.append("_m.put(\"");
+                puts.append(escapeJava(nonterm));
+                puts.append("\",l.get("+n+"));"+NL);
             }
-            sb.append(INDENT);
-            sb.append(p.name());
-            sb.append(" = Collections.unmodifiableMap(_");
+            sb.append("    /** Map from nonterminal names to grammar ");
+            sb.append("productions for the ");
             sb.append(p.name());
-            sb.append(");");
             sb.append(NL);
+            sb.append("     *  dance program. */");
+            sb.append(NL);
+            sb.append("    private static class _"+p.name()+" {"+NL);
+            sb.append("        static final Map<String,Grm> G;"+NL);
+            sb.append("        static {"+NL);
+            sb.append(INDENT+"    ");
+            sb.append("List<Grm> l = _build("+needed+");"+NL);
+            sb.append(INDENT+"    ");
+            sb.append("Map<String,Grm> _m = new HashMap<String,Grm>();");
+            sb.append(NL);
+            sb.append(puts);
+            sb.append(INDENT+"    ");
+            sb.append("G = Collections.unmodifiableMap(_m);"+NL);
+            sb.append("        }"+NL);
+            sb.append("    }"+NL);
         }
-	if (DevSettings.ONLY_C4_GRAMMAR) {
-	    for (Program p : Program.values()) {
-		if (p==Program.C4) continue;
-		sb.append(INDENT);
-		sb.append(p.name());
-		sb.append(" = _C4;");
-		sb.append(NL);
-	    }
-	}
-        sb.append("    }"+NL);
 
         // create the _build function, broken up into subfunctions to avoid
         // exceeding the maximum method size limit.
-        sb.append("    private static List<Grm> _build() {"+NL);
-        sb.append(INDENT);
-        sb.append("List<Grm> l = new ArrayList<Grm>("+numbering.size()+");");
+        sb.append("    private static final List<Grm> _l = new ArrayList<Grm>(");
+        sb.append(numbering.size()+");"+NL);
+        sb.append("    /** Build (at least) the first n productions. */"+NL);
+        sb.append("    private static synchronized List<Grm> _build(int n) {");
         sb.append(NL);
         sb.append(INDENT);
         sb.append("/* Break construction into multiple functions to avoid");
@@ -195,13 +194,23 @@ public class EmitJava extends AbstractEmit {
         sb.append(INDENT);
         sb.append(" * exceeding maximum method bytecode size limit. */");
         sb.append(NL);
+        sb.append(INDENT);
+        sb.append("for (int i=_l.size()/500; _l.size() < n; i++) {"+NL);
+        sb.append(INDENT);
+        sb.append("    switch (i) {"+NL);
         for (int i=0; i*500 < buildLines.size(); i++) {
             sb.append(INDENT);
-            sb.append("_build"+i+"(l);");
-            sb.append(NL);
+            sb.append("    case "+i+": _build"+i+"(_l); break;"+NL);
         }
         sb.append(INDENT);
-        sb.append("return l;");
+        sb.append("    }"+NL);
+        sb.append(INDENT);
+        sb.append("}"+NL);
+        sb.append(INDENT);
+        sb.append("// copy, since other threads may add to _l later");
+        sb.append(NL);
+        sb.append(INDENT);
+        sb.append("return new ArrayList<Grm>(_l.subList(0, n));");
         sb.append(NL);
         sb.append("    }"+NL);
         // _buildN subfunctions
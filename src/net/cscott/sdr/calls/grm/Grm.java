@@ -1,5 +1,7 @@
 package net.cscott.sdr.calls.grm;
 
+import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -35,7 +37,7 @@ import static net.cscott.sdr.util.StringEscapeUtils.escapeJava;
  * @version $Id: Grm.java,v 1.3 2006-10-22 15:46:06 cananian Exp $
  */
 @RunWith(value=JDoctestRunner.class)
-public abstract class Grm {
+public abstract class Grm implements Serializable {
     public abstract int precedence();
     public abstract <T> T accept(GrmVisitor<T> v);
     public final String toString() {
@@ -67,11 +69,13 @@ public abstract class Grm {
      *  true
      */
     public Grm intern() {
-        if (!internMap.containsKey(this)) {
-            Grm g = buildIntern();
-            internMap.put(g, g);
+        synchronized (internMap) { // call lists may be parsed in parallel
+            if (!internMap.containsKey(this)) {
+                Grm g = buildIntern();
+                internMap.put(g, g);
+            }
+            return internMap.get(this);
         }
-        return internMap.get(this);
     }
     private static final Map<Grm,Grm> internMap = new WeakHashMap<Grm,Grm>();
     public int hashCode() {
@@ -306,7 +310,8 @@ public abstract class Grm {
      * The grammar is expressed as a map from nonterminal names to
      * {@link Grm}s. The start production is a nonterminal named 'start'.
      * This grammar is generated by the {@link EmitJava} class,
-     * invoked from {@link BuildGrammars}.*/
+     * invoked from {@link BuildGrammars}, and is only built the first time
+     * it is requested.*/
     @SuppressWarnings("unchecked")
     public static Map<String,Grm> grammar(Program p) {
         if (p!=Program.C4 && DevSettings.ONLY_C4_GRAMMAR) p=Program.C4;
@@ -314,12 +319,13 @@ public abstract class Grm {
         try {
             return (Map<String,Grm>)
                 Class.forName("net.cscott.sdr.calls.lists.AllGrm")
-                .getField(p.name()).get(null);
+                .getMethod("grammar", Program.class).invoke(null, p);
         } catch (ClassNotFoundException e) {
         } catch (SecurityException e) {
-        } catch (NoSuchFieldException e) {
+        } catch (NoSuchMethodException e) {
         } catch (IllegalArgumentException e) {
         } catch (IllegalAccessException e) {
+        } catch (InvocationTargetException e) {
         }
         assert false : "grammars not generated yet?";
         return null;
@@ -1,5 +1,6 @@
 package net.cscott.sdr.calls.grm;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
@@ -9,7 +10,7 @@ import net.cscott.sdr.util.Fraction;
 
 /** Grammar rule: a right-hand side, left-hand side,
  *  a precedence level, and a set of {@link Option}s. */
-public class Rule {
+public class Rule implements Serializable {
     public final String lhs;
     public final Grm rhs;
     public final Fraction prec; // precedence level
@@ -21,6 +21,7 @@ import net.cscott.sdr.calls.ExactRotation;
 import net.cscott.sdr.calls.Formation;
 import net.cscott.sdr.calls.FormationList;
 import net.cscott.sdr.calls.FormationMatch;
+import net.cscott.sdr.calls.IdentityUse;
 import net.cscott.sdr.calls.MatcherList;
 import net.cscott.sdr.calls.Position;
 import net.cscott.sdr.calls.Program;
@@ -588,6 +589,7 @@ public abstract class BasicList {
                 @Override
                 public Evaluator evaluate(DanceState ds) {
                     Formation currentFormation = ds.currentFormation();
+                    IdentityUse.note(); // home depends on who we are
                     for (Dancer d : currentFormation.dancers()) {
                         if (!(d instanceof StandardDancer)) continue;
                         StandardDancer sd = (StandardDancer) d;
@@ -23,6 +23,7 @@ import net.cscott.sdr.calls.transform.Finish.PartSelectorCall;
 import net.cscott.sdr.calls.transform.FirstPart;
 import net.cscott.sdr.calls.transform.LikeA;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.Point;
 
 import org.junit.runner.RunWith;
 
@@ -144,12 +145,12 @@ public abstract class C4List {
                     Formation f = ds.currentFormation();
                     for (int x = -1; x <= 1; x+=2) {
                         for (int y = -1; y <= 1; y+=2) {
-                            Dancer center = findDancerAt(f, x, y);
+                            Dancer center = f.dancerAt(new Point(x, y));
                             if (center==null)
                                 throw new BadCallException("No center dancer.");
                             Position oldCenterPos = f.location(center);
-                            Dancer end1 = findDancerAt(f, x*3, y);
-                            Dancer end2 = findDancerAt(f, x, y*3);
+                            Dancer end1 = f.dancerAt(new Point(x*3, y));
+                            Dancer end2 = f.dancerAt(new Point(x, y*3));
                             Dancer end;
                             int newCenterX, newCenterY;
                             int newEndX=x, newEndY=y;
@@ -188,17 +189,6 @@ public abstract class C4List {
                     Position f2 = from.sideStep(Fraction.mTWO, false);
                     return (f1.equals(to) || f2.equals(to));
                 }
-                private Dancer findDancerAt(Formation f, int x, int y) {
-                    Fraction fx = Fraction.valueOf(x);
-                    Fraction fy = Fraction.valueOf(y);
-                    for (Dancer d : f.dancers()) {
-                        Position p = f.location(d);
-                        if (p.x.compareTo(fx)==0 &&
-                            p.y.compareTo(fy)==0)
-                            return d;
-                    }
-                    return null; // dancer not found at this location
-                }
             };
         };
     };
@@ -1,14 +1,17 @@
 package net.cscott.sdr.calls.parser;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import net.cscott.sdr.calls.BadCallException;
 import net.cscott.sdr.calls.Call;
 import net.cscott.sdr.calls.DanceState;
 import net.cscott.sdr.calls.Evaluator;
 import net.cscott.sdr.calls.ExactRotation;
+import net.cscott.sdr.calls.ExprFunc;
 import net.cscott.sdr.calls.Program;
 import net.cscott.sdr.calls.ast.Apply;
 import net.cscott.sdr.calls.ast.Comp;
@@ -31,7 +34,10 @@ import net.cscott.sdr.util.Fraction;
  * The {@link BuilderHelper} class helps with the generation of parameterized
  * calls.  It supports an abstraction which lets us treat AST trees as
  * "AST tree generation functions", while optimizing the case where the
- * function generates a constant.
+ * function generates a constant.  Builders (and the calls made from them)
+ * are {@link Serializable}, so that they can be saved in a
+ * {@link net.cscott.sdr.calls.CallDBSnapshot}; for this reason they must
+ * only be created from static contexts.
  * @author C. Scott Ananian
  */
 abstract class BuilderHelper {
@@ -60,7 +66,7 @@ abstract class BuilderHelper {
     /**
      * 'B' is pronounced as 'Builder'.  So a B&lt;Prim&gt; builds Prim objects.
      */
-    static abstract class B<T> {
+    static abstract class B<T> implements Serializable {
         public abstract T build(List<Expr> args);
         /** 
          * Returns true if the build operation will succeed given a zero-length
@@ -90,6 +96,39 @@ abstract class BuilderHelper {
     static <T> B<T> optimize(B<T> b, boolean isConstant) {
         return (isConstant) ? mkConstant(b.build(null)) : b;
     }
+    /** Build the given call argument, as a string. */
+    static B<String> mkStringRef(final int param) {
+        return new B<String>() {
+            public String build(List<Expr> args) {
+                // XXX: this should be an Expr retval, not a String
+                try {
+                    return args.get(param).evaluate(String.class, null);
+                } catch (ExprFunc.EvaluationException ee) {
+                    throw new BadCallException("Can't evaluate!");
+                }
+            }
+        };
+    }
+    /** Build an expression whose function is named by the given call
+     *  argument, applied to the given expression arguments (or quoted, if
+     *  <code>exprArgs</code> is null). */
+    static B<Expr> mkRef(final int param, final List<B<Expr>> exprArgs) {
+        return new B<Expr>() {
+            public Expr build(List<Expr> args) {
+                Expr e = args.get(param);
+                // note that this strips off the arguments.
+                String atom = e.atom;
+                if (e.args.size() > 0) {
+                    // XXX should desugar to use of the _apply() concept.
+                    assert exprArgs==null : "don't know how to merge params";
+                    return e;
+                }
+                if (exprArgs==null)
+                    return new Expr("literal", new Expr(atom));
+                return new Expr(atom, reduce(exprArgs, args));
+            }
+        };
+    }
     static B<Apply> mkApply(final B<Expr> call) {
         return optimize(new B<Apply>() {
             public Apply build(List<Expr> fargs) {
@@ -212,31 +251,51 @@ abstract class BuilderHelper {
                                       Expr.literal(a.defaultValue));
         }
 
-        return new Call() {
-            @Override
-            public String getName() { return name; }
-            @Override
-            public Program getProgram() { return program; }
-            @Override
-            public int getMinNumberOfArguments() {
-                return minNumberOfArguments;
-            }
-            @Override
-            public List<Expr> getDefaultArguments() {
-                return defaultArguments;
-            }
-            @Override
-            public Rule getRule() { return rule; }
-            @Override
-            public Evaluator getEvaluator(DanceState ds, List<Expr> args) {
-                assert args.size() >= minNumberOfArguments :
-                    "not enough arguments to call: "+getName();
-                List<Expr> nargs = new ArrayList<Expr>(args);
-                /* add default arguments if missing */
-                for (int i=nargs.size(); i<defaultArguments.size(); i++)
-                    nargs.add(defaultArguments.get(i));
-                return new Evaluator.Standard(b.build(nargs));
-            }
-        };
+        return new ParameterizedCall(name, program, b, minNumberOfArguments,
+                                     defaultArguments, rule);
+    }
+    /** A call whose definition is built from its arguments. */
+    private static class ParameterizedCall extends Call
+        implements Serializable {
+        private final String name;
+        private final Program program;
+        private final B<? extends Comp> b;
+        private final int minNumberOfArguments;
+        private final List<Expr> defaultArguments;
+        private final Rule rule;
+        ParameterizedCall(String name, Program program, B<? extends Comp> b,
+                          int minNumberOfArguments,
+                          List<Expr> defaultArguments, Rule rule) {
+            this.name = name;
+            this.program = program;
+            this.b = b;
+            this.minNumberOfArguments = minNumberOfArguments;
+            this.defaultArguments = defaultArguments;
+            this.rule = rule;
+        }
+        @Override
+        public String getName() { return name; }
+        @Override
+        public Program getProgram() { return program; }
+        @Override
+        public int getMinNumberOfArguments() {
+            return minNumberOfArguments;
+        }
+        @Override
+        public List<Expr> getDefaultArguments() {
+            return defaultArguments;
+        }
+        @Override
+        public Rule getRule() { return rule; }
+        @Override
+        public Evaluator getEvaluator(DanceState ds, List<Expr> args) {
+            assert args.size() >= minNumberOfArguments :
+                "not enough arguments to call: "+getName();
+            List<Expr> nargs = new ArrayList<Expr>(args);
+            /* add default arguments if missing */
+            for (int i=nargs.size(); i<defaultArguments.size(); i++)
+                nargs.add(defaultArguments.get(i));
+            return new Evaluator.Standard(b.build(nargs));
+        }
     }
 }
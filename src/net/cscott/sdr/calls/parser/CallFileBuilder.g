@@ -318,18 +318,7 @@ words_or_ref returns [B<String> b]
     : s=simple_words
     { $b = mkConstant(s); }
     | r=ref
-    { final int param = r;
-      $b = new B<String>() {
-        public String build(List<Expr> args) {
-          // XXX: this should be an Expr retval, not a String
-          try {
-            return args.get(param).evaluate(String.class, null);
-          } catch (ExprFunc.EvaluationException ee) {
-            throw new BadCallException("Can't evaluate!");
-          }
-        }
-      };
-    }
+    { $b = mkStringRef(r); }
     ;
 
 call_body returns [B<Apply> ast]
@@ -351,24 +340,8 @@ expr_body returns [B<Expr> eb]
     // parameter reference
     | ( ^(EXPR REF (.)* ) ) =>
         ^(EXPR r=ref args=expr_args )
-    { final int param = r;
-      final List<B<Expr>> expr_args = args;
-      // use the given parameter as a string.
-      $eb = new B<Expr>() {
-        public Expr build(List<Expr> args) {
-            Expr e = args.get(param);
-            // note that this strips off the arguments.
-            String atom = e.atom;
-            if (e.args.size() > 0) {
-                // XXX should desugar to use of the _apply() concept.
-               assert expr_args==null : "don't know how to merge params";
-               return e;
-            }
-            if (expr_args==null)
-                return new Expr("literal", new Expr(atom));
-            return new Expr(atom, reduce(expr_args, args));
-        }
-      };
+    { // use the given parameter as a string.
+      $eb = mkRef(r, args);
     }
     | ^(EXPR s=simple_words args=expr_args )
     {  if (args == null) {
@@ -3,9 +3,11 @@
 //         to proportionally allocate the number of beats we will be given.
 package net.cscott.sdr.calls.transform;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import net.cscott.jdoctest.JDoctestRunner;
 import net.cscott.sdr.calls.DanceState;
@@ -26,6 +28,7 @@ import net.cscott.sdr.calls.ast.Prim;
 import net.cscott.sdr.calls.ast.Seq;
 import net.cscott.sdr.calls.ast.SeqCall;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.PackedFraction;
 import static net.cscott.sdr.util.Tools.s;
 
 import org.junit.runner.RunWith;
@@ -57,14 +60,29 @@ class BeatCounter extends ValueVisitor<Fraction,Void> {
     private final DanceState ds;
     public BeatCounter(DanceState ds) { this.ds = ds; }
     private final Map<AstNode,Fraction> inherent = new HashMap<AstNode,Fraction>();
+    /** Beat counts of subtrees which could be counted without consulting
+     *  the {@link DanceState}, shared by all {@link BeatCounter}s. */
+    private static final Map<AstNode,Fraction> closedBeats =
+        Collections.synchronizedMap(new WeakHashMap<AstNode,Fraction>());
+    /** Number of times this counter has consulted {@link #ds}. */
+    private int stateUses = 0;
     public Fraction getBeats(AstNode ast) {
-        if (!inherent.containsKey(ast))
-            inherent.put(ast, ast.accept(this, null));
+        Fraction f = closedBeats.get(ast);
+        if (f != null)
+            return f;
+        if (!inherent.containsKey(ast)) {
+            int uses = stateUses;
+            f = ast.accept(this, null);
+            if (uses == stateUses)
+                closedBeats.put(ast, f);
+            inherent.put(ast, f);
+        }
         return inherent.get(ast);
     }
     @Override
     public Fraction visit(Apply apply, Void v) {
         // careful with recursive calls here!
+        stateUses++;
         Evaluator e = apply.evaluator(ds);
         if (e.hasSimpleExpansion() &&
             !callBlacklist.contains(apply.call.atom))
@@ -82,6 +100,8 @@ class BeatCounter extends ValueVisitor<Fraction,Void> {
     @Override
     public Fraction visit(In in, Void v) {
         // ignore child's length, and use the length of the 'in' instead.
+        if (!in.count.isConstant(Fraction.class))
+            stateUses++;
         try {
             return in.count.evaluate(Fraction.class, ds);
         } catch (EvaluationException e) {
@@ -123,6 +143,8 @@ class BeatCounter extends ValueVisitor<Fraction,Void> {
         // adjust" portions of a call.  Make these still count as one part
         // for the purposes of dividing beats.
         Fraction howMany;
+        if (!p.howMany.isConstant(Fraction.class))
+            stateUses++;
         try {
             howMany = p.howMany.evaluate(Fraction.class, ds);
         } catch (EvaluationException e) {
@@ -136,10 +158,10 @@ class BeatCounter extends ValueVisitor<Fraction,Void> {
     }
     @Override
     public Fraction visit(Seq s, Void v) {
-        Fraction f = Fraction.ZERO;
+        long f = PackedFraction.ZERO;
         for (SeqCall sc : s.children)
-            f = f.add(getBeats(sc));
-        return f;
+            f = PackedFraction.add(f, PackedFraction.valueOf(getBeats(sc)));
+        return PackedFraction.toFraction(f);
     }
     @Override
     public Fraction visit(Comp c, Void t) {
@@ -3,7 +3,15 @@ package net.cscott.sdr.calls.transform;
 import java.io.Reader;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.runner.RunWith;
 
@@ -32,17 +40,86 @@ public abstract class CallFileLoader {
      *  js> CallFileLoader.load(u('a2'), m)
      */
     public static void load(URL file, Map<String,Call> db) {
+        for (Call c : load(file)) {
+            assert !db.containsKey(c.getName()) :
+                "duplicate call: "+c.getName();
+            db.put(c.getName(), c);
+        }
+    }
+    /** Parse a call list, returning its calls in the order they are
+     *  defined.  Errors are reported on standard error, and the calls
+     *  parsed before the error (if any) are returned. */
+    public static List<Call> load(URL file) {
         try {
 	    Reader r = new InputStreamReader(file.openStream(), "utf-8");
-            for (Call c : CallFileBuilder.parseCalllist(r, file.getFile())) {
-                assert !db.containsKey(c.getName()) :
-                    "duplicate call: "+c.getName();
-                db.put(c.getName(), c);
-            }
+            return CallFileBuilder.parseCalllist(r, file.getFile());
         }
         catch (Exception e) {
             System.err.println("parser exception loading "+file);
             e.printStackTrace();   // so we can get stack trace             
+            return Collections.emptyList();
+        }
+    }
+    /**
+     * Parse several call lists in parallel, returning all their calls in
+     * the order of the given list of files.
+     * @doc.test
+     *  js> function u(name) {
+     *    >   c=java.lang.Class.forName("net.cscott.sdr.calls.transform.CallFileLoader")
+     *    >   p="net/cscott/sdr/calls/lists/"+name+".calls"
+     *    >   return c.getClassLoader().getResource(p)
+     *    > }
+     *  js> l = CallFileLoader.loadAll(java.util.Arrays.asList(u('basic'), u('plus'))); undefined
+     *  js> l.get(0).getProgram()
+     *  BASIC
+     *  js> l.get(l.size()-1).getProgram()
+     *  PLUS
+     */
+    public static List<Call> loadAll(List<URL> files) {
+        int threads = Math.min(files.size(),
+                               Runtime.getRuntime().availableProcessors());
+        if (threads < 2) {
+            List<Call> result = new ArrayList<Call>();
+            for (URL file : files)
+                result.addAll(load(file));
+            return result;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<Call>>> parsed =
+                new ArrayList<Future<List<Call>>>(files.size());
+            for (final URL file : files)
+                parsed.add(pool.submit(new Callable<List<Call>>() {
+                    public List<Call> call() { return load(file); }
+                }));
+            List<Call> result = new ArrayList<Call>();
+            for (Future<List<Call>> f : parsed)
+                result.addAll(getUninterruptibly(f));
+            return result;
+        } finally {
+            pool.shutdown();
+        }
+    }
+    private static <T> T getUninterruptibly(Future<T> f) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true; // keep waiting
+                } catch (ExecutionException e) {
+                    Throwable t = e.getCause();
+                    if (t instanceof RuntimeException)
+                        throw (RuntimeException) t;
+                    if (t instanceof Error)
+                        throw (Error) t;
+                    throw new RuntimeException(t);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
     }
 }
@@ -2,9 +2,12 @@ package net.cscott.sdr.calls.transform;
 
 import static net.cscott.sdr.calls.parser.CallFileLexer.APPLY;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import net.cscott.sdr.calls.BadCallException;
 import net.cscott.sdr.calls.DanceState;
@@ -26,6 +29,7 @@ import net.cscott.sdr.calls.ast.Prim;
 import net.cscott.sdr.calls.ast.Seq;
 import net.cscott.sdr.calls.ast.SeqCall;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.PackedFraction;
 
 import org.junit.runner.RunWith;
 
@@ -72,6 +76,26 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
     final DanceState ds;
     public PartsCounter(DanceState ds) { this.ds = ds; }
 
+    /** Part counts of subtrees which could be counted without consulting
+     *  the {@link DanceState}, shared by all {@link PartsCounter}s. */
+    private static final Map<AstNode,Fraction> closedCounts =
+        Collections.synchronizedMap(new WeakHashMap<AstNode,Fraction>());
+    /** Number of times this counter has consulted {@link #ds}. */
+    private int stateUses = 0;
+    /** Count the parts in the given subtree, reusing the count for a
+     *  structurally-equal subtree if it didn't depend on the dance
+     *  state. */
+    private Fraction count(AstNode node, Void t) {
+        Fraction f = closedCounts.get(node);
+        if (f != null)
+            return f;
+        int uses = stateUses;
+        f = node.accept(this, t);
+        if (uses == stateUses)
+            closedCounts.put(node, f);
+        return f;
+    }
+
     @Override
     public Fraction visit(Apply apply, Void t) {
         // optimization: some concepts are safe to hoist this concept thru
@@ -107,6 +131,7 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
         }
         // okay, we have to expand the call in order to fractionalize the
         // contents.
+        stateUses++;
         Evaluator e = apply.evaluator(ds);
         if (!e.hasSimpleExpansion())
             throw new CantCountPartsException("Can't expand complex concept to find parts: "+apply);
@@ -128,12 +153,12 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
 
     @Override
     public Fraction visit(If iff, Void t) {
-        return iff.child.accept(this, t);
+        return count(iff.child, t);
     }
 
     @Override
     public Fraction visit(In in, Void t) {
-        return in.child.accept(this, t);
+        return count(in.child, t);
     }
 
     @Override
@@ -145,7 +170,7 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
         // all have the same # of parts!
         Fraction howMany = null;
         for (AstNode node: children) {
-            Fraction f = node.accept(this, t);
+            Fraction f = count(node, t);
             if (f.equals(Fraction.ZERO)) {
                 // don't count this as a real part
             } else if (howMany==null) {
@@ -159,7 +184,7 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
 
     @Override
     public Fraction visit(OptCall oc, Void t) {
-        return oc.child.accept(this, t);
+        return count(oc.child, t);
     }
 
     @Override
@@ -170,7 +195,7 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
 
     @Override
     public Fraction visit(ParCall pc, Void t) {
-        return pc.child.accept(this, t);
+        return count(pc.child, t);
     }
 
     @Override
@@ -180,6 +205,8 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
     private Fraction partsInSeqCall(SeqCall sc, Void t) {
         if (!sc.isIndeterminate()) {
             try {
+                if (!sc.parts().isConstant(Fraction.class))
+                    stateUses++;
                 return sc.parts().evaluate(Fraction.class, ds);
             } catch (EvaluationException e) {
                 assert false : "bug in call definition: "+e;
@@ -211,12 +238,13 @@ public class PartsCounter extends ValueVisitor<Fraction, Void> {
             //  ipart if you actually wanted to define it as a single part)
             return s.children.get(0).accept(this, t);
         }
-        Fraction totalParts = Fraction.ZERO;
+        long totalParts = PackedFraction.ZERO;
         for (SeqCall sc : s.children) {
             Fraction howMany = partsInSeqCall(sc, t);
-            totalParts = totalParts.add(howMany);
+            totalParts = PackedFraction.add
+                (totalParts, PackedFraction.valueOf(howMany));
         }
-        return totalParts;
+        return PackedFraction.toFraction(totalParts);
     }
 
     @Override
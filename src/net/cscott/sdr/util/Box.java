@@ -10,6 +10,7 @@ import org.junit.runner.RunWith;
 @RunWith(value=JDoctestRunner.class)
 public class Box {
     public final Point ll, ur;
+    private static final long TWO = PackedFraction.valueOf(2);
     /** Basic constructor.
      * @param ll Lower-left corner (minimum x, minimum y)
      * @param ur Upper-right corner (maximum x, maximum y)
@@ -37,9 +38,11 @@ public class Box {
      *  1 1/2,2
      */
     public Point center() {
-        return new Point(
-                ll.x.add(ur.x).divide(Fraction.TWO),
-                ll.y.add(ur.y).divide(Fraction.TWO));
+        return new Point(midpoint(ll.x, ur.x), midpoint(ll.y, ur.y));
+    }
+    private static Fraction midpoint(Fraction a, Fraction b) {
+        return PackedFraction.toFraction(PackedFraction.divide(PackedFraction.add
+            (PackedFraction.valueOf(a), PackedFraction.valueOf(b)), TWO));
     }
     /** Returns a box which contains both this box and the given one.
      * @doc.test
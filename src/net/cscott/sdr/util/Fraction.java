@@ -16,7 +16,6 @@
 package net.cscott.sdr.util;
 
 import java.io.Serializable;
-import java.math.BigInteger;
 
 /**
  * <p><code>Fraction</code> is a <code>Number</code> which implements
@@ -314,7 +313,7 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
     }
     /** Return a fraction from reduced/canonical numerator/denominator pairs,
      *  reusing objects for common numbers. */
-    private static Fraction _valueOf(int numerator, int denominator) {
+    static Fraction _valueOf(int numerator, int denominator) {
         // reuse existing objects if possible
         switch (denominator) {
         case 1:
@@ -928,21 +927,6 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
     // Arithmetic
     //-------------------------------------------------------------------
 
-    /** Multiply two integers, checking for overflow.
-     * @param x a factor
-     * @param y a factor
-     * @return the product <code>x*y</code>
-     * @throws ArithmeticException if the result can not be represented as
-     *                             an int
-     */
-    private static int mulAndCheck(int x, int y) {
-        long m = ((long)x)*((long)y);
-        if (m < Integer.MIN_VALUE ||
-            m > Integer.MAX_VALUE) {
-            throw new ArithmeticException("overflow: mul");
-        }
-        return (int)m;
-    }
     /** Multiply two non-negative integers, checking for overflow.
      * @param x a non-negative factor
      * @param y a non-negative factor
@@ -958,36 +942,6 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
         }
         return (int)m;
     }
-    /** Add two integers, checking for overflow.
-     * @param x an addend
-     * @param y an addend
-     * @return the sum <code>x+y</code>
-     * @throws ArithmeticException if the result can not be represented as
-     *                             an int
-     */
-    private static int addAndCheck(int x, int y) {
-        long s = (long)x+(long)y;
-        if (s < Integer.MIN_VALUE ||
-            s > Integer.MAX_VALUE) {
-            throw new ArithmeticException("overflow: add");
-        }
-        return (int)s;
-    }
-    /** Subtract two integers, checking for overflow.
-     * @param x the minuend
-     * @param y the subtrahend
-     * @return the difference <code>x-y</code>
-     * @throws ArithmeticException if the result can not be represented as
-     *                             an int
-     */
-    private static int subAndCheck(int x, int y) {
-        long s = (long)x-(long)y;
-        if (s < Integer.MIN_VALUE ||
-            s > Integer.MAX_VALUE) {
-            throw new ArithmeticException("overflow: add");
-        }
-        return (int)s;
-    }
     /**
      * <p>Adds the value of this fraction to another.
      * The algorithm follows Knuth, 4.5.1.</p>
@@ -1017,6 +971,9 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
     }
 
     /** Implement add and subtract using algorithm described in Knuth 4.5.1.
+     * The 65-bit intermediate quantity Knuth requires (4.5.1 exercise 7)
+     * is avoided by doing the arithmetic on packed 64-bit values; see
+     * {@link PackedFraction}.
      * @param fraction the fraction to subtract, must not be <code>null</code>
      * @param isAdd true to add, false to subtract
      * @return a <code>Fraction</code> instance with the resulting values
@@ -1034,40 +991,11 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
         }
         if (fraction.numerator == 0) {
             return this;
-        }     
-        // if denominators are randomly distributed, d1 will be 1 about 61%
-        // of the time.
-        int d1 = greatestCommonDivisor(denominator, fraction.denominator);
-        if (d1==1) {
-            // result is ( (u*v' +/- u'v) / u'v')
-            int uvp = mulAndCheck(numerator, fraction.denominator);
-            int upv = mulAndCheck(fraction.numerator, denominator);
-            return _valueOf
-                (isAdd ? addAndCheck(uvp, upv) : subAndCheck(uvp, upv),
-                 mulPosAndCheck(denominator, fraction.denominator));
         }
-        // the quantity 't' requires 65 bits of precision; see knuth 4.5.1
-        // exercise 7.  we're going to use a BigInteger.
-        // t = u(v'/d1) +/- v(u'/d1)
-        BigInteger uvp = BigInteger.valueOf(numerator)
-            .multiply(BigInteger.valueOf(fraction.denominator/d1));
-        BigInteger upv = BigInteger.valueOf(fraction.numerator)
-            .multiply(BigInteger.valueOf(denominator/d1));
-        BigInteger t = isAdd ? uvp.add(upv) : uvp.subtract(upv);
-        // but d2 doesn't need extra precision because
-        // d2 = gcd(t,d1) = gcd(t mod d1, d1)
-        int tmodd1 = t.mod(BigInteger.valueOf(d1)).intValue();
-        int d2 = (tmodd1==0)?d1:greatestCommonDivisor(tmodd1, d1);
-
-        // result is (t/d2) / (u'/d1)(v'/d2)
-        BigInteger w = t.divide(BigInteger.valueOf(d2));
-        if (w.bitLength() > 31) {
-            throw new ArithmeticException
-                ("overflow: numerator too large after multiply");
-        }
-        return _valueOf
-            (w.intValue(),
-             mulPosAndCheck(denominator/d1, fraction.denominator/d2));
+        long a = PackedFraction.valueOf(this);
+        long b = PackedFraction.valueOf(fraction);
+        return PackedFraction.toFraction
+            (isAdd ? PackedFraction.add(a, b) : PackedFraction.subtract(a, b));
     }
 
     /**
@@ -1112,13 +1040,8 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
             case -1: return this.negate();
             }
         }
-        // knuth 4.5.1
-        // make sure we don't overflow unless the result *must* overflow.
-        int d1 = greatestCommonDivisor(numerator, fraction.denominator);
-        int d2 = greatestCommonDivisor(fraction.numerator, denominator);
-        return _valueOf
-            (mulAndCheck(numerator/d1, fraction.numerator/d2),
-             mulPosAndCheck(denominator/d2, fraction.denominator/d1));
+        return PackedFraction.toFraction(PackedFraction.multiply
+            (PackedFraction.valueOf(this), PackedFraction.valueOf(fraction)));
     }
 
     /**
@@ -1152,7 +1075,11 @@ public class Fraction extends Number implements Serializable, Comparable<Fractio
         if (fraction.numerator == 0) {
             throw new ArithmeticException("The fraction to divide by must not be zero");
         }
-        return multiply(fraction.invert());
+        if (fraction.denominator == 1 && fraction.numerator == 1) {
+            return this;
+        }
+        return PackedFraction.toFraction(PackedFraction.divide
+            (PackedFraction.valueOf(this), PackedFraction.valueOf(fraction)));
     }
 
     // Basics
@@ -0,0 +1,140 @@
+package net.cscott.sdr.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.cscott.jdoctest.JDoctestRunner;
+
+import org.junit.runner.RunWith;
+
+/**
+ * A thread-safe bounded cache with least-recently-used eviction.
+ * Each entry is given a weight when it is inserted (by default 1), and
+ * the least-recently-used entries are evicted whenever the total weight
+ * of the cache exceeds its capacity.  Weights are typically either entry
+ * counts or rough estimates of memory size in bytes.
+ * The cache also keeps hit, miss, and eviction counts for monitoring.
+ * @author C. Scott Ananian
+ * @doc.test
+ *  js> c = new LRUCache(3); undefined
+ *  js> c.put("a", 1); c.put("b", 2); c.put("c", 3); c.size()
+ *  3
+ *  js> c.get("a")
+ *  1.0
+ *  js> c.put("d", 4); c.get("b") == null // least recently used was evicted
+ *  true
+ *  js> c.size()
+ *  3
+ *  js> c
+ *  LRUCache[size=3,weight=3/3,hits=1,misses=1,evictions=1]
+ * @doc.test Entries can be weighted:
+ *  js> c = new LRUCache(10); undefined
+ *  js> c.put("a", 1, 4); c.put("b", 2, 4); c.weight()
+ *  8
+ *  js> c.put("c", 3, 4); c.containsKey("a")
+ *  false
+ *  js> c.weight()
+ *  8
+ *  js> c.put("d", 4, 20); c.size() // too big to cache at all
+ *  2
+ * @doc.test The capacity can be changed later:
+ *  js> c = new LRUCache(3); undefined
+ *  js> c.put("a", 1); c.put("b", 2); c.put("c", 3); c.setCapacity(1); c
+ *  LRUCache[size=1,weight=1/1,hits=0,misses=0,evictions=2]
+ *  js> c.containsKey("c")
+ *  true
+ */
+@RunWith(value=JDoctestRunner.class)
+public class LRUCache<K,V> {
+    private long capacity;
+    private final Map<K,Entry<V>> map =
+        new LinkedHashMap<K,Entry<V>>(16, 0.75f, true/*access order*/);
+    private long weight = 0;
+    private long hits = 0, misses = 0, evictions = 0;
+
+    /** Create a cache which holds entries whose total weight is no more
+     *  than the given capacity. */
+    public LRUCache(long capacity) {
+        assert capacity >= 0;
+        this.capacity = capacity;
+    }
+
+    /** Return the cached value for the given key, or {@code null} if the
+     *  key is not present.  Counts as a hit or a miss. */
+    public synchronized V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e == null) { misses++; return null; }
+        hits++;
+        return e.value;
+    }
+    /** Return true if the given key is present.  Does not affect the
+     *  hit and miss counts or the eviction order. */
+    public synchronized boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+    /** Add an entry with weight 1 to the cache. */
+    public void put(K key, V value) {
+        put(key, value, 1);
+    }
+    /** Add an entry with the given weight to the cache, evicting
+     *  least-recently-used entries as necessary.  An entry which by
+     *  itself exceeds the capacity of the cache is not stored. */
+    public synchronized void put(K key, V value, long entryWeight) {
+        assert value != null && entryWeight >= 0;
+        Entry<V> old = map.remove(key);
+        if (old != null) weight -= old.weight;
+        if (entryWeight > capacity) return;
+        map.put(key, new Entry<V>(value, entryWeight));
+        weight += entryWeight;
+        evict();
+    }
+    /** Evict least-recently-used entries until the cache is within its
+     *  capacity. */
+    private void evict() {
+        for (Iterator<Entry<V>> it = map.values().iterator();
+             weight > capacity && it.hasNext(); ) {
+            weight -= it.next().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+    /** Remove all entries from the cache.  The statistics are preserved. */
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    /** Return the number of entries in the cache. */
+    public synchronized int size() { return map.size(); }
+    /** Return the total weight of the entries in the cache. */
+    public synchronized long weight() { return weight; }
+    /** Return the maximum total weight of the entries in the cache. */
+    public synchronized long capacity() { return capacity; }
+    /** Change the maximum total weight of the entries in the cache,
+     *  evicting least-recently-used entries if it is now too full.
+     *  A capacity of zero disables the cache. */
+    public synchronized void setCapacity(long capacity) {
+        assert capacity >= 0;
+        this.capacity = capacity;
+        evict();
+    }
+    /** Return the number of successful lookups. */
+    public synchronized long hits() { return hits; }
+    /** Return the number of unsuccessful lookups. */
+    public synchronized long misses() { return misses; }
+    /** Return the number of entries evicted to make room for others. */
+    public synchronized long evictions() { return evictions; }
+
+    @Override
+    public synchronized String toString() {
+        return "LRUCache[size="+map.size()+",weight="+weight+"/"+capacity+
+            ",hits="+hits+",misses="+misses+",evictions="+evictions+"]";
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long weight;
+        Entry(V value, long weight) { this.value = value; this.weight = weight; }
+    }
+}
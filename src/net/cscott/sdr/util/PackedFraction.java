@@ -0,0 +1,173 @@
+package net.cscott.sdr.util;
+
+import net.cscott.jdoctest.JDoctestRunner;
+
+import org.junit.runner.RunWith;
+
+/**
+ * Allocation-free arithmetic on {@link Fraction} values packed into a
+ * primitive <code>long</code>: the numerator in the high 32 bits and the
+ * (always positive) denominator in the low 32 bits.  Packed values are
+ * always in lowest terms, so two packed values are numerically equal iff
+ * they are <code>==</code>.  As with {@link Fraction}, an
+ * {@link ArithmeticException} is thrown if a result can not be represented
+ * with an <code>int</code> numerator and denominator.
+ * <p>
+ * Intermediate products are computed with 64-bit arithmetic, which is
+ * always enough for the products of two 32-bit values, so no
+ * <code>BigInteger</code> is ever needed.  {@link Fraction} uses these
+ * methods to implement its own arithmetic.</p>
+ * @doc.test
+ *  js> a = PackedFraction.valueOf(Fraction.valueOf(1,6)); undefined
+ *  js> b = PackedFraction.valueOf(3, -4); undefined
+ *  js> PackedFraction.toFraction(PackedFraction.add(a, b))
+ *  -7/12
+ *  js> PackedFraction.toFraction(PackedFraction.subtract(a, b))
+ *  11/12
+ *  js> PackedFraction.toFraction(PackedFraction.multiply(a, b))
+ *  -1/8
+ *  js> PackedFraction.toFraction(PackedFraction.divide(a, b))
+ *  -2/9
+ *  js> PackedFraction.compare(a, b)
+ *  1
+ *  js> PackedFraction.floor(b)
+ *  -1
+ *  js> // intermediates which overflow an int are fine...
+ *  js> big = PackedFraction.valueOf(2147483647, 2147483646); undefined
+ *  js> PackedFraction.toFraction(PackedFraction.subtract(big, big))
+ *  0/1
+ *  js> // ...but results which overflow are not.
+ *  js> try { PackedFraction.add(big, PackedFraction.valueOf(1, 3)); } catch (e) { print(e.javaException); }
+ *  java.lang.ArithmeticException: overflow: add
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class PackedFraction {
+    private PackedFraction() { /* static methods only */ }
+
+    /** Packed representation of zero. */
+    public static final long ZERO = pack(0, 1);
+    /** Packed representation of one. */
+    public static final long ONE = pack(1, 1);
+
+    private static long pack(int numerator, int denominator) {
+        return (((long) numerator) << 32) | (denominator & 0xFFFFFFFFL);
+    }
+    /** Return the numerator of the given packed fraction. */
+    public static int numerator(long f) { return (int) (f >> 32); }
+    /** Return the (positive) denominator of the given packed fraction. */
+    public static int denominator(long f) { return (int) f; }
+
+    /** Pack the given {@link Fraction}. */
+    public static long valueOf(Fraction f) {
+        return pack(f.numerator, f.denominator);
+    }
+    /** Pack the given integer. */
+    public static long valueOf(int i) {
+        return pack(i, 1);
+    }
+    /** Pack the fraction <code>numerator/denominator</code>, reducing it
+     *  to lowest terms.
+     *  @throws ArithmeticException if the denominator is zero */
+    public static long valueOf(int numerator, int denominator) {
+        if (denominator == 0)
+            throw new ArithmeticException("The denominator must not be zero");
+        return reduce(numerator, denominator, "valueOf");
+    }
+    /** Return a {@link Fraction} with the value of the given packed
+     *  fraction, reusing a shared instance where possible. */
+    public static Fraction toFraction(long f) {
+        return Fraction._valueOf(numerator(f), denominator(f));
+    }
+
+    public static long add(long a, long b) {
+        int an = numerator(a), bn = numerator(b);
+        if (an == 0) return b;
+        if (bn == 0) return a;
+        long ad = denominator(a), bd = denominator(b);
+        if (ad == bd)
+            return reduce(((long) an) + bn, ad, "add");
+        return reduce(an * bd + bn * ad, ad * bd, "add");
+    }
+    public static long subtract(long a, long b) {
+        int an = numerator(a), bn = numerator(b);
+        if (bn == 0) return a;
+        long ad = denominator(a), bd = denominator(b);
+        if (ad == bd)
+            return reduce(((long) an) - bn, ad, "subtract");
+        return reduce(an * bd - bn * ad, ad * bd, "subtract");
+    }
+    public static long multiply(long a, long b) {
+        if (b == ONE) return a;
+        if (a == ONE) return b;
+        return reduce(((long) numerator(a)) * numerator(b),
+                      ((long) denominator(a)) * denominator(b), "multiply");
+    }
+    /** @throws ArithmeticException if <code>b</code> is zero */
+    public static long divide(long a, long b) {
+        int bn = numerator(b);
+        if (bn == 0)
+            throw new ArithmeticException
+                ("The fraction to divide by must not be zero");
+        return reduce(((long) numerator(a)) * denominator(b),
+                      ((long) denominator(a)) * bn, "divide");
+    }
+    public static long negate(long a) {
+        int an = numerator(a);
+        if (an == Integer.MIN_VALUE)
+            throw new ArithmeticException("overflow: can't negate");
+        return pack(-an, denominator(a));
+    }
+    /** Returns a negative number, zero, or a positive number as
+     *  <code>a</code> is less than, equal to, or greater than
+     *  <code>b</code>. */
+    public static int compare(long a, long b) {
+        if (a == b) return 0;
+        long first = ((long) numerator(a)) * denominator(b);
+        long second = ((long) numerator(b)) * denominator(a);
+        return (first < second) ? -1 : (first == second) ? 0 : 1;
+    }
+    /** Returns -1, 0, or 1 as the given fraction is negative, zero or
+     *  positive. */
+    public static int signum(long a) {
+        return Integer.signum(numerator(a));
+    }
+    /** Return the largest integer not greater than the given fraction. */
+    public static int floor(long a) {
+        long n = numerator(a), d = denominator(a);
+        return (int) ((n >= 0) ? n / d : -((d - 1 - n) / d));
+    }
+    public static long min(long a, long b) {
+        return compare(a, b) <= 0 ? a : b;
+    }
+    public static long max(long a, long b) {
+        return compare(a, b) >= 0 ? a : b;
+    }
+
+    /** Reduce <code>n/d</code> to lowest terms and pack it.  The
+     *  magnitudes of <code>n</code> and <code>d</code> must be less than
+     *  2<sup>63</sup>. */
+    private static long reduce(long n, long d, String op) {
+        if (n == 0) return ZERO;
+        if (d < 0) { n = -n; d = -d; }
+        long g = gcd(Math.abs(n), d);
+        n /= g;
+        d /= g;
+        if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE ||
+            d > Integer.MAX_VALUE)
+            throw new ArithmeticException("overflow: "+op);
+        return pack((int) n, (int) d);
+    }
+    /** Binary GCD of two positive longs (Knuth 4.5.2 algorithm B). */
+    private static long gcd(long u, long v) {
+        assert u > 0 && v > 0;
+        if (u == 1 || v == 1) return 1;
+        int k = Long.numberOfTrailingZeros(u | v);
+        u >>= Long.numberOfTrailingZeros(u);
+        do {
+            v >>= Long.numberOfTrailingZeros(v);
+            if (u > v) { long t = v; v = u; u = t; }
+            v -= u;
+        } while (v != 0);
+        return u << k;
+    }
+}
@@ -0,0 +1,167 @@
+package net.cscott.sdr.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.cscott.jdoctest.JDoctestRunner;
+
+import org.junit.runner.RunWith;
+
+/**
+ * A {@link Timeline} is a compact sorted map from {@link Fraction} times to
+ * values, stored as a pair of parallel arrays.  The
+ * {@link net.cscott.sdr.calls.DanceState} keeps its
+ * formations and each dancer's paths in {@link Timeline}s.
+ * <p>
+ * Timelines are copy-on-write: {@link #share()} marks a timeline as shared
+ * between two owners in constant time, and each owner must call
+ * {@link #writable()} (which copies a shared timeline) before mutating it.
+ * This makes snapshots of a dance state cheap.
+ * @doc.test
+ *  js> t = new Timeline(); t.put(Fraction.ONE, "a"); t.put(Fraction.TWO, "b"); t
+ *  {1/1=a, 2/1=b}
+ *  js> s = t.share(); t = t.writable(); t.put(Fraction.ONE_HALF, "c"); t
+ *  {1/2=c, 1/1=a, 2/1=b}
+ *  js> s
+ *  {1/1=a, 2/1=b}
+ *  js> t.floor(Fraction.valueOf(3,2))
+ *  a
+ *  js> t.ceilingIndex(Fraction.valueOf(3,2))
+ *  2
+ * @author C. Scott Ananian
+ */
+@RunWith(value=JDoctestRunner.class)
+public final class Timeline<V> {
+    private static final Fraction[] NO_TIMES = new Fraction[0];
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private Fraction[] times;
+    private Object[] values;
+    private int size;
+    /** True if this timeline may be referenced by more than one owner. */
+    private boolean shared;
+
+    public Timeline() {
+        this.times = NO_TIMES;
+        this.values = NO_VALUES;
+        this.size = 0;
+    }
+    private Timeline(Timeline<V> t) {
+        this.times = Arrays.copyOf(t.times, t.size);
+        this.values = Arrays.copyOf(t.values, t.size);
+        this.size = t.size;
+    }
+
+    /** Mark this timeline as shared, and return it. */
+    public Timeline<V> share() {
+        this.shared = true;
+        return this;
+    }
+    /** Return this timeline, or a private copy of it if it is shared. */
+    public Timeline<V> writable() {
+        return shared ? new Timeline<V>(this) : this;
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    public Fraction time(int i) { assert i < size; return times[i]; }
+    @SuppressWarnings("unchecked")
+    public V value(int i) { assert i < size; return (V) values[i]; }
+    public Fraction firstTime() { return times[0]; }
+    public Fraction lastTime() { return times[size-1]; }
+    public V lastValue() { return value(size-1); }
+
+    /** Return the index of the entry at exactly the given time, or
+     *  <code>-(insertion point) - 1</code> if there is none. */
+    public int indexOf(Fraction time) {
+        // entries are almost always added at the end; check there first.
+        if (size > 0) {
+            int c = time.compareTo(times[size-1]);
+            if (c == 0) return size-1;
+            if (c > 0) return -size-1;
+        }
+        return Arrays.binarySearch(times, 0, size, time);
+    }
+    /** Return the index of the last entry at or before the given time, or
+     *  -1 if there is none. */
+    public int floorIndex(Fraction time) {
+        int i = indexOf(time);
+        return (i >= 0) ? i : (-i-1) - 1;
+    }
+    /** Return the index of the first entry at or after the given time, or
+     *  {@link #size()} if there is none. */
+    public int ceilingIndex(Fraction time) {
+        int i = indexOf(time);
+        return (i >= 0) ? i : (-i-1);
+    }
+    /** Return the value at exactly the given time, or null. */
+    public V get(Fraction time) {
+        int i = indexOf(time);
+        return (i >= 0) ? value(i) : null;
+    }
+    /** Return the value at the last entry at or before the given time. */
+    public V floor(Fraction time) {
+        int i = floorIndex(time);
+        return (i >= 0) ? value(i) : null;
+    }
+
+    /** Set the value at the given time, adding a new entry if necessary.
+     *  Returns the index of the entry. */
+    public int put(Fraction time, V value) {
+        assert !shared;
+        int i = indexOf(time);
+        if (i >= 0) {
+            values[i] = value;
+            return i;
+        }
+        i = -i-1;
+        if (size == times.length) {
+            int n = Math.max(4, size*2);
+            times = Arrays.copyOf(times, n);
+            values = Arrays.copyOf(values, n);
+        }
+        System.arraycopy(times, i, times, i+1, size-i);
+        System.arraycopy(values, i, values, i+1, size-i);
+        times[i] = time;
+        values[i] = value;
+        size++;
+        return i;
+    }
+    /** Replace the value of the given entry. */
+    public void set(int i, V value) {
+        assert !shared && i < size;
+        values[i] = value;
+    }
+    /** Remove all entries from the given index on. */
+    public void truncate(int newSize) {
+        assert !shared && newSize <= size;
+        Arrays.fill(times, newSize, size, null);
+        Arrays.fill(values, newSize, size, null);
+        size = newSize;
+    }
+
+    /** Return an unmodifiable view of the values, in time order.  The view
+     *  must not outlive the next modification. */
+    public List<V> values() {
+        return new AbstractList<V>() {
+            @Override
+            public V get(int i) {
+                if (i >= size) throw new IndexOutOfBoundsException();
+                return value(i);
+            }
+            @Override
+            public int size() { return size; }
+        };
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i=0; i<size; i++) {
+            if (i>0) sb.append(", ");
+            sb.append(times[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
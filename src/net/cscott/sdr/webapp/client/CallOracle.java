@@ -7,27 +7,51 @@ import java.util.List;
 import net.cscott.sdr.calls.Program;
 import net.cscott.sdr.calls.grm.CompletionEngine;
 
+import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.google.gwt.user.client.ui.SuggestOracle;
 
+/** Suggests completions of a partial call, from the server's completion
+ *  tries; see {@link DanceEngineService#suggest}.  If the server can't be
+ *  reached, the completions are computed locally instead. */
 public class CallOracle extends SuggestOracle {
+    private final DanceEngineServiceAsync danceEngine;
     private Program program = Program.PLUS;
+    /** Counts requests, so that responses to superseded ones are dropped. */
+    private int requestNumber = 0;
+    public CallOracle(DanceEngineServiceAsync danceEngine) {
+        this.danceEngine = danceEngine;
+    }
     public void setProgram(Program p) {
         this.program = p;
     }
 
     @Override
-    public void requestSuggestions(Request request, Callback callback) {
-        List<Suggestion> suggestions = new ArrayList<Suggestion>();
-        String input = request.getQuery();
-        Iterator<String> it = CompletionEngine.complete(program, input);
-        for (int i=0; i<request.getLimit() && it.hasNext(); i++) {
-            String option = it.next();
-            String replace = option.replaceFirst("<.*", "");
-            suggestions.add(new S(option, replace));
-        }
-        Response response = new Response();
-        response.setSuggestions(suggestions);
-        callback.onSuggestionsReady(request, response);
+    public void requestSuggestions(final Request request,
+                                   final Callback callback) {
+        final int thisRequest = ++requestNumber;
+        final Program p = program;
+        danceEngine.suggest(p, request.getQuery(), request.getLimit(),
+                            new AsyncCallback<List<String>>() {
+            public void onSuccess(List<String> options) {
+                respond(options.iterator());
+            }
+            public void onFailure(Throwable caught) {
+                respond(CompletionEngine.complete(p, request.getQuery()));
+            }
+            private void respond(Iterator<String> it) {
+                if (thisRequest != requestNumber)
+                    return; // the user has typed more since
+                List<Suggestion> suggestions = new ArrayList<Suggestion>();
+                for (int i=0; i<request.getLimit() && it.hasNext(); i++) {
+                    String option = it.next();
+                    String replace = option.replaceFirst("<.*", "");
+                    suggestions.add(new S(option, replace));
+                }
+                Response response = new Response();
+                response.setSuggestions(suggestions);
+                callback.onSuggestionsReady(request, response);
+            }
+        });
     }
     static class S implements Suggestion {
         final String display, replacement;
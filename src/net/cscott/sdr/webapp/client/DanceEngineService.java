@@ -1,5 +1,9 @@
 package net.cscott.sdr.webapp.client;
 
+import java.util.List;
+
+import net.cscott.sdr.calls.Program;
+
 import com.google.gwt.user.client.rpc.RemoteService;
 import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
 
@@ -18,6 +22,12 @@ public interface DanceEngineService extends RemoteService {
      */
     public void reloadDB();
 
+    /**
+     * Return up to <code>limit</code> completions of the given partial call
+     * at the given program, for typeahead.
+     */
+    public List<String> suggest(Program program, String prefix, int limit);
+
     // eventually there may be other dance-engine tasks, like 'resolve'
     // or 'classify formation' (at home, allemande left, dixie grand, etc)
 }
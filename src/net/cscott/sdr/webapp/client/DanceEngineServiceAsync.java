@@ -1,5 +1,9 @@
 package net.cscott.sdr.webapp.client;
 
+import java.util.List;
+
+import net.cscott.sdr.calls.Program;
+
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
 public interface DanceEngineServiceAsync {
@@ -15,6 +19,12 @@ public interface DanceEngineServiceAsync {
      * local edits to the call definitions have been made.
      */
     public void reloadDB(AsyncCallback<Void> async);
+    /**
+     * Return up to <code>limit</code> completions of the given partial call
+     * at the given program, for typeahead.
+     */
+    public void suggest(Program program, String prefix, int limit,
+                        AsyncCallback<List<String>> async);
 
     // eventually there may be other dance-engine tasks, like 'resolve'
     // or 'classify formation' (at home, allemande left, dixie grand, etc)
@@ -70,7 +70,9 @@ import com.google.gwt.user.client.ui.HTMLTable.RowFormatter;
 public class SDRweb implements EntryPoint, SequenceChangeHandler, PlayStatusChangeHandler {
     public static final double BPM = 128;
 
-    final CallOracle callOracle = new CallOracle();
+    final DanceEngineServiceAsync danceEngine =
+        GWT.create(DanceEngineService.class);
+    final CallOracle callOracle = new CallOracle(danceEngine);
     final SuggestBox callEntry = new SuggestBox(callOracle);
     final FlexTable callList = new FlexTable();
     final Label currentCall = new Label();
@@ -84,8 +86,6 @@ public class SDRweb implements EntryPoint, SequenceChangeHandler, PlayStatusChan
     DockPanel playBar = new DockPanel();
     Animation animation = null;
 
-    final DanceEngineServiceAsync danceEngine =
-        GWT.create(DanceEngineService.class);
     final SequenceStorageServiceAsync storageService =
         GWT.create(SequenceStorageService.class);
     final Model model = new Model(danceEngine) {
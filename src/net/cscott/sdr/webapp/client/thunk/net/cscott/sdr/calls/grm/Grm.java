@@ -194,19 +194,7 @@ public abstract class Grm {
      * This grammar is generated by the {@link EmitJava} class,
      * invoked from {@link BuildGrammars}.*/
     public static Map<String,Grm> grammar(Program p) {
-        switch(p) {
-        case BASIC: return AllGrm.BASIC;
-        case MAINSTREAM: return AllGrm.MAINSTREAM;
-        case PLUS: return AllGrm.PLUS;
-        case A1: return AllGrm.A1;
-        case A2: return AllGrm.A2;
-        case C1: return AllGrm.C1;
-        case C2: return AllGrm.C2;
-        case C3A: return AllGrm.C3A;
-        case C3B: return AllGrm.C3B;
-        case C4: return AllGrm.C4;
-        default: assert false : "impossible!"; return null;
-        }
+        return AllGrm.grammar(p);
     }
     /**
      * Parse a string representing a {@link Grm}.  Parameter
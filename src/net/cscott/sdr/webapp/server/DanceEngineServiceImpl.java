@@ -6,6 +6,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.ServletException;
+
 import net.cscott.sdr.calls.BadCallException;
 import net.cscott.sdr.calls.CallDB;
 import net.cscott.sdr.calls.DanceProgram;
@@ -16,9 +18,12 @@ import net.cscott.sdr.calls.Evaluator;
 import net.cscott.sdr.calls.ExactRotation;
 import net.cscott.sdr.calls.Formation;
 import net.cscott.sdr.calls.Position;
+import net.cscott.sdr.calls.Program;
 import net.cscott.sdr.calls.StandardDancer;
 import net.cscott.sdr.calls.ast.Seq;
+import net.cscott.sdr.calls.grm.CompletionTrie;
 import net.cscott.sdr.util.Fraction;
+import net.cscott.sdr.util.LRUCache;
 import net.cscott.sdr.util.Point;
 import net.cscott.sdr.util.Bezier.Bezier2D;
 import net.cscott.sdr.webapp.client.DanceEngineService;
@@ -32,11 +37,50 @@ import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 public class DanceEngineServiceImpl extends RemoteServiceServlet
     implements DanceEngineService {
 
-    /** Reload call definitions. */
+    /** Name of the servlet init parameter listing (separated by commas
+     *  or spaces) the programs whose calls, grammars, and completion tries
+     *  should be loaded when the service starts; other programs are loaded
+     *  on first use. */
+    public static final String PREWARM_PARAM = "prewarm";
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        String programs = getInitParameter(PREWARM_PARAM);
+        if (programs == null) return;
+        for (String name : programs.trim().split("[,\\s]+")) {
+            if (name.length() == 0) continue;
+            Program p;
+            try {
+                p = Program.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ServletException("Unknown program: "+name, e);
+            }
+            CallDB.INSTANCE.prewarm(p);
+            CompletionTrie.forProgram(p);
+        }
+    }
+
+    /** Reload call definitions which have changed.  Cached prefixes of
+     *  sequences from the affected programs are no longer used; see
+     *  {@link PrefixKey}. */
     public void reloadDB() {
         CallDB.INSTANCE.reload();
     }
 
+    /** The most suggestions returned by one request. */
+    public static final int MAX_SUGGESTIONS = 100;
+
+    /** Suggest completions of a partial call, from the program's
+     *  {@link CompletionTrie}.  The grammars are compiled in, so the tries
+     *  don't change when the call definitions are reloaded. */
+    public List<String> suggest(Program program, String prefix, int limit) {
+        limit = Math.max(0, Math.min(limit, MAX_SUGGESTIONS));
+        // return a serializable list
+        return new ArrayList<String>
+            (CompletionTrie.suggest(program, prefix, limit));
+    }
+
     /** An angle multiplier used when transforming a standard formation
      *  to this dance type. */
     public static Fraction angleMult(StartingFormationType sft) {
@@ -103,23 +147,69 @@ public class DanceEngineServiceImpl extends RemoteServiceServlet
         }
     }
     /** Attempt to dance the given sequence, and return the dancer paths
-     *  which result.
+     *  which result.  The dance state after each prefix of the call list
+     *  is kept in the {@link #prefixCache()}, so that when a sequence is
+     *  edited only the calls after the first change need to be danced
+     *  again.
      */
     public EngineResults dance(Sequence s, final int sequenceNumber) {
-        // okay, first create the starting formation.
-        Formation startF = baseFormation(s.startingFormation);
-        DanceState ds = new DanceState(new DanceProgram(s.program), startF);
-        // now dance each call
-        int currentCall=0;
+        List<String> calls = s.calls;
+        if (calls.isEmpty()) calls = Collections.singletonList("nothing");
+        // find the longest prefix of the call list we've already danced.
+        long version = CallDB.INSTANCE.version(s.program);
+        Checkpoint cp = null;
+        for (int i=calls.size(); cp==null && i > 0; i--)
+            cp = PREFIX_CACHE.get
+                (new PrefixKey(s, version, calls.subList(0, i)));
+        if (cp==null)
+            cp = startingCheckpoint(s.program, s.startingFormation);
+        // now dance each remaining call
+        int currentCall=cp.depth;
         List<String> messages = new ArrayList<String>
             (Collections.nCopies(s.calls.size(), (String)null));
+        try {
+            for ( ; currentCall < calls.size(); currentCall++) {
+                cp = danceOne(s.startingFormation, cp, calls.get(currentCall));
+                // make sure the checkpoint doesn't get cached unless all of
+                // the above succeeded.
+                PREFIX_CACHE.put
+                    (new PrefixKey(s, version, calls.subList(0, currentCall+1)),
+                     cp, cp.estimatedSize());
+            }
+        } catch (BadCallException e) {
+            messages.set(currentCall, e.getMessage());
+        } catch (Throwable t) {
+            messages.set(currentCall, t.toString());
+        }
+        // collect the movements and timing of all the successful calls
         List<EngineResults.DancerPath> movements =
             new ArrayList<EngineResults.DancerPath>();
         List<Double> timing = new ArrayList<Double>
             (Collections.nCopies(s.calls.size(), Double.valueOf(0)));
+        Fraction totalBeats = cp.totalBeats;
+        for (Checkpoint c = cp; c.parent != null; c = c.parent) {
+            movements.addAll(c.moves);
+            if (!s.calls.isEmpty())
+                timing.set(c.depth-1, c.duration.doubleValue());
+        }
+        if (s.calls.isEmpty()) {
+            totalBeats = Fraction.ZERO;
+            currentCall = 0;
+        }
+        // construct an EngineResults
+        EngineResults results = new EngineResults
+            (sequenceNumber, currentCall, messages, movements, timing,
+             totalBeats.doubleValue());
+        return results;
+    }
+    /** Compute the {@link Checkpoint} representing the starting formation
+     *  of a sequence, before any calls have been danced. */
+    private static Checkpoint startingCheckpoint(Program program,
+                                                 StartingFormationType sft) {
+        Formation startF = baseFormation(sft);
         Map<Dancer,Fraction> winding = new HashMap<Dancer,Fraction>();
         Map<Dancer,Double> correction = new HashMap<Dancer,Double>();
-        for (Dancer d : ds.dancers()) {
+        for (Dancer d : startF.dancers()) {
             // Winding number (modulo 1) always points to the current position
             //  (note that we rotate 180-degrees so couple #1 is at zero)
             Position p = startF.location(d);
@@ -135,62 +225,145 @@ public class DanceEngineServiceImpl extends RemoteServiceServlet
             // The desired rotation is "towards the center" from the
             // transformed position.
             Fraction desiredFacing = w.quantize(4)
-                .multiply(angleMult(s.startingFormation))
+                .multiply(angleMult(sft))
                 .add(Fraction.ONE_HALF);
             // Now compute an appropriate correction factor so that we start
             // facing the right direction, given the initial winding:
             //  desiredFacing = originalFacing + w * headingMult + correction
             // Use angle circularization so we don't square off desiredFacing
             double cc = circular(desiredFacing) - circular(origFacing) -
-                (circular(w) * headingMult(s.startingFormation).doubleValue());
+                (circular(w) * headingMult(sft).doubleValue());
             correction.put(d, cc);
         }
-        Fraction totalBeats = Fraction.ZERO;
-        try {
-            List<String> calls = s.calls;
-            if (calls.isEmpty()) calls = Collections.singletonList("nothing");
-            for (String call: calls) {
-                Seq callAst = new Seq(CallDB.INSTANCE.parse(ds.dance.getProgram(), call));
-                Evaluator.breathedEval(ds.currentFormation(), callAst)
-                    .evaluateAll(ds);
-                List<EngineResults.DancerPath> someMoves =
-                    new ArrayList<EngineResults.DancerPath>();
-                Fraction duration = ds.currentTime();
-                for (Dancer d : ds.dancers()) {
-                    Fraction startTime = totalBeats;
-                    for (DancerPath dp : ds.movements(d)) {
-                        Fraction windingStart = winding.get(d);
-                        Fraction windingEnd = updateWinding(windingStart, dp);
-                        double c = correction.get(d);
-                        someMoves.addAll(convert(d, s.startingFormation, startTime, dp, c, windingStart, windingEnd));
-                        startTime = startTime.add(dp.time);
-                        winding.put(d, windingEnd);
-                    }
-                }
-                ds = ds.cloneAndClear(ds.currentFormation());
-                totalBeats = totalBeats.add(duration);
-                // make sure timing and movements don't get set unless all of
-                // the above succeeded.
-                if (!s.calls.isEmpty())
-                    timing.set(currentCall, duration.doubleValue());
-                movements.addAll(someMoves);
-                currentCall++;
+        return new Checkpoint(null, program, startF, winding,
+                              Collections.unmodifiableMap(correction),
+                              Fraction.ZERO, Fraction.ZERO,
+                              Collections.<EngineResults.DancerPath>emptyList());
+    }
+    /** Dance a single call starting from the given {@link Checkpoint},
+     *  returning a new {@link Checkpoint} representing the result. */
+    private static Checkpoint danceOne(StartingFormationType sft,
+                                       Checkpoint cp, String call) {
+        DanceState ds = new DanceState(new DanceProgram(cp.program),
+                                       cp.formation);
+        Seq callAst = new Seq(CallDB.INSTANCE.parse(ds.dance.getProgram(), call));
+        Evaluator.breathedEval(ds.currentFormation(), callAst)
+            .evaluateAll(ds);
+        List<EngineResults.DancerPath> someMoves =
+            new ArrayList<EngineResults.DancerPath>();
+        Map<Dancer,Fraction> winding =
+            new HashMap<Dancer,Fraction>(cp.winding);
+        Fraction duration = ds.currentTime();
+        for (Dancer d : ds.dancers()) {
+            Fraction startTime = cp.totalBeats;
+            for (DancerPath dp : ds.movements(d)) {
+                Fraction windingStart = winding.get(d);
+                Fraction windingEnd = updateWinding(windingStart, dp);
+                double c = cp.correction.get(d);
+                someMoves.addAll(convert(d, sft, startTime, dp, c, windingStart, windingEnd));
+                startTime = startTime.add(dp.time);
+                winding.put(d, windingEnd);
             }
-        } catch (BadCallException e) {
-            messages.set(currentCall, e.getMessage());
-        } catch (Throwable t) {
-            messages.set(currentCall, t.toString());
         }
-        if (s.calls.isEmpty()) {
-            totalBeats = Fraction.ZERO;
-            currentCall = 0;
+        return new Checkpoint(cp, cp.program, ds.currentFormation(),
+                              Collections.unmodifiableMap(winding),
+                              cp.correction, cp.totalBeats.add(duration),
+                              duration,
+                              Collections.unmodifiableList(someMoves));
+    }
+
+    // ---- prefix cache
+
+    /** Rough upper bound on the memory used by the {@link #prefixCache()},
+     *  in bytes. */
+    public static final long PREFIX_CACHE_SIZE = 32 * 1024 * 1024;
+    private static final LRUCache<PrefixKey,Checkpoint> PREFIX_CACHE =
+        new LRUCache<PrefixKey,Checkpoint>(PREFIX_CACHE_SIZE);
+    /** Return the cache of danced call-list prefixes, so that its hit and
+     *  miss counts can be monitored. */
+    public static LRUCache<?,?> prefixCache() { return PREFIX_CACHE; }
+
+    /** Key for the {@link #prefixCache()}: the program, starting formation,
+     *  and some prefix of the call list of a {@link Sequence}, along with
+     *  the {@link CallDB#version(Program)} of the call definitions used to
+     *  dance it.  Reloading a call list thus invalidates the prefixes of
+     *  the programs which include it, and no others; the stale entries are
+     *  eventually evicted. */
+    private static class PrefixKey {
+        final Program program;
+        final long version;
+        final StartingFormationType startingFormation;
+        final List<String> calls;
+        final int hashCode;
+        PrefixKey(Sequence s, long version, List<String> calls) {
+            this.program = s.program;
+            this.version = version;
+            this.startingFormation = s.startingFormation;
+            this.calls = new ArrayList<String>(calls);
+            this.hashCode = program.hashCode() + (int) version +
+                7*startingFormation.hashCode() + 31*calls.hashCode();
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PrefixKey)) return false;
+            PrefixKey pk = (PrefixKey) o;
+            return this.hashCode == pk.hashCode &&
+                this.program == pk.program &&
+                this.version == pk.version &&
+                this.startingFormation == pk.startingFormation &&
+                this.calls.equals(pk.calls);
+        }
+        @Override
+        public int hashCode() { return hashCode; }
+    }
+    /** The state of a dance after some prefix of the call list has been
+     *  danced.  Each {@link Checkpoint} holds only the movements for the
+     *  last call danced; the movements for earlier calls are found by
+     *  following the {@link #parent} links. */
+    private static class Checkpoint {
+        /** The checkpoint before the last call, or null for the starting
+         *  formation. */
+        final Checkpoint parent;
+        /** The number of calls danced to reach this state. */
+        final int depth;
+        final Program program;
+        /** The formation after the last call. */
+        final Formation formation;
+        /** Winding numbers for each dancer after the last call. */
+        final Map<Dancer,Fraction> winding;
+        /** Heading correction for each dancer; depends only on the
+         *  starting formation. */
+        final Map<Dancer,Double> correction;
+        /** The total length of all calls danced. */
+        final Fraction totalBeats;
+        /** The length of the last call danced. */
+        final Fraction duration;
+        /** The movements for the last call danced. */
+        final List<EngineResults.DancerPath> moves;
+        Checkpoint(Checkpoint parent, Program program, Formation formation,
+                   Map<Dancer,Fraction> winding,
+                   Map<Dancer,Double> correction,
+                   Fraction totalBeats, Fraction duration,
+                   List<EngineResults.DancerPath> moves) {
+            this.parent = parent;
+            this.depth = (parent==null) ? 0 : (parent.depth + 1);
+            this.program = program;
+            this.formation = formation;
+            this.winding = winding;
+            this.correction = correction;
+            this.totalBeats = totalBeats;
+            this.duration = duration;
+            this.moves = moves;
+        }
+        /** A rough estimate of the memory used by this checkpoint (not
+         *  including its parent), in bytes. */
+        long estimatedSize() {
+            // a formation of 8 dancers is about 2k; each converted dancer
+            // path holds a pair of cubic beziers, about 400 bytes.
+            return 2048 + 400 * moves.size();
         }
-        // construct an EngineResults
-        EngineResults results = new EngineResults
-            (sequenceNumber, currentCall, messages, movements, timing,
-             totalBeats.doubleValue());
-        return results;
     }
+
     /** Convert a {@link DancerPath} to a simplified JavaScript-friendly
      *  version. */
     private static List<EngineResults.DancerPath>